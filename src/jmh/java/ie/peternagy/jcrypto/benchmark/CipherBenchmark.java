@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description CipherBenchmark - AES encrypt/decrypt throughput by payload size
+ * @package ie.peternagy.jcrypto.benchmark
+ */
+package ie.peternagy.jcrypto.benchmark;
+
+import ie.peternagy.jcrypto.algo.AesWrapper;
+import ie.peternagy.jcrypto.algo.ChunkedAesWrapper;
+import ie.peternagy.jcrypto.algo.EllipticCurveWrapper;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CipherBenchmark {
+
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int payloadSize;
+    private byte[] plain;
+    private byte[] cbcCipherText;
+    private byte[] chunkBody;
+    private AesWrapper encWrapper;
+    private AesWrapper decWrapper;
+    private ChunkedAesWrapper chunkedWrapper;
+
+    @Setup
+    public void setUp() {
+        EllipticCurveWrapper curve = new EllipticCurveWrapper();
+        plain = CryptoSecurityUtil.getSecureBytes(payloadSize);
+        encWrapper = new AesWrapper(curve, true);
+        decWrapper = new AesWrapper(curve, true);
+        cbcCipherText = decWrapper.doFinal(plain);
+        decWrapper.initCipher(false);
+
+        chunkedWrapper = new ChunkedAesWrapper(curve, payloadSize);
+        byte[] frame = chunkedWrapper.encryptChunk(0, plain, 0, plain.length, true);
+        chunkBody = Arrays.copyOfRange(frame, Integer.BYTES, frame.length);
+    }
+
+    @Benchmark
+    public byte[] encryptCbc() {
+        return encWrapper.doFinal(plain);
+    }
+
+    @Benchmark
+    public byte[] decryptCbc() {
+        return decWrapper.doFinal(cbcCipherText);
+    }
+
+    @Benchmark
+    public byte[] encryptChunk() {
+        return chunkedWrapper.encryptChunk(0, plain, 0, plain.length, true);
+    }
+
+    @Benchmark
+    public byte[] decryptChunk() {
+        return chunkedWrapper.decryptChunk(0, chunkBody);
+    }
+}
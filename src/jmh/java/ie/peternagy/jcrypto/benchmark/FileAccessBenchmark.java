@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description FileAccessBenchmark - FileAccessUtil read/write by file size
+ * @package ie.peternagy.jcrypto.benchmark
+ */
+package ie.peternagy.jcrypto.benchmark;
+
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import ie.peternagy.jcrypto.util.FileAccessUtil;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileAccessBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    public int fileSize;
+    private byte[] data;
+    private File readFile;
+    private File writeFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        data = CryptoSecurityUtil.getSecureBytes(fileSize);
+        readFile = File.createTempFile("jcrypto-bench", ".read");
+        writeFile = File.createTempFile("jcrypto-bench", ".write");
+        FileAccessUtil.writeToDisk(readFile, data);
+    }
+
+    @TearDown
+    public void tearDown() {
+        readFile.delete();
+        writeFile.delete();
+    }
+
+    @Benchmark
+    public byte[] readFromDisk() {
+        return FileAccessUtil.readFromDisk(readFile);
+    }
+
+    @Benchmark
+    public boolean writeToDisk() {
+        return FileAccessUtil.writeToDisk(writeFile, data);
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description HeaderBenchmark - Header creation/extraction and EC key wrapping
+ * @package ie.peternagy.jcrypto.benchmark
+ */
+package ie.peternagy.jcrypto.benchmark;
+
+import ie.peternagy.jcrypto.algo.AesWrapper;
+import ie.peternagy.jcrypto.algo.EllipticCurveWrapper;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeaderBenchmark {
+
+    private static final int PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    private EllipticCurveWrapper curve;
+    private AesWrapper encWrapper;
+    private AesWrapper decWrapper;
+    private byte[] header;
+    private byte[] baseKey;
+    private byte[] wrappedKey;
+    private byte[] encryptedPayload;
+
+    @Setup
+    public void setUp() throws IOException {
+        curve = new EllipticCurveWrapper();
+        encWrapper = new AesWrapper(curve, true);
+        decWrapper = new AesWrapper(curve, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encWrapper.writeHeader(out);
+        header = out.toByteArray();
+        baseKey = CryptoSecurityUtil.getSecureBytes(64);
+        wrappedKey = curve.doFinalWithHeader(baseKey, true);
+        encryptedPayload = new AesWrapper(curve, true).doFinalWithHeader(CryptoSecurityUtil.getSecureBytes(PAYLOAD_SIZE));
+    }
+
+    @Benchmark
+    public int createHeader() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(2048);
+        encWrapper.writeHeader(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public AesWrapper extractHeader() throws IOException {
+        decWrapper.readHeader(new ByteArrayInputStream(header));
+        return decWrapper;
+    }
+
+    @Benchmark
+    public byte[] ecWrapKey() {
+        return curve.doFinalWithHeader(baseKey, true);
+    }
+
+    @Benchmark
+    public byte[] ecUnwrapKey() {
+        return curve.doFinalWithHeader(wrappedKey, false);
+    }
+
+    /**
+     * Parse and decrypt a 16MB message, with -prof gc the
+     * gc.alloc.rate.norm shows the bytes allocated per call - the plain
+     * output plus the header fields when the payload is not copied
+     */
+    @Benchmark
+    public byte[] decryptWithHeader() {
+        return new AesWrapper(curve, false).doFinalWithHeader(encryptedPayload);
+    }
+}
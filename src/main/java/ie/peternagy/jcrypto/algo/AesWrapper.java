@@ -23,45 +23,47 @@
  */
 package ie.peternagy.jcrypto.algo;
 
+import ie.peternagy.jcrypto.util.ConstantExchange;
 import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import ie.peternagy.jcrypto.util.KeyDerivationUtil;
+import ie.peternagy.jcrypto.util.MetricsRegistry;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.security.NoSuchAlgorithmException;
-import java.security.Security;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
-import org.apache.commons.lang3.ArrayUtils;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.apache.commons.io.IOUtils;
 import org.bouncycastle.util.encoders.Hex;
 
 public class AesWrapper {
 
-    private final String KEYGEN_ALGORITHM = "PBKDF2WithHmacSHA512";
+    protected static final int MAX_HEADER_FIELD_LENGTH = 4096;
+    protected static final MetricsRegistry METRICS = MetricsRegistry.getInstance();
+    private final byte[] KEY_INFO = "jcrypto-aes-256".getBytes();
     private final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
-    private final EllipticCurveWrapper curve;
+    protected final EllipticCurveWrapper curve;
     private Cipher cipher;
-    private SecretKey secretKey;
+    protected SecretKey secretKey;
     private byte[] iv;
-    private byte[] salt;
-    private byte[] baseKey;
-    private final String ALGORITHM_NAME = "AES";
-    private boolean state;//true>>encrypt
+    protected byte[] salt;
+    protected byte[] baseKey;
+    protected final String ALGORITHM_NAME = "AES";
+    protected boolean state;//true>>encrypt
+    protected boolean isPbkdf2Key;//true>>version 100 key derivation
 
     public AesWrapper(EllipticCurveWrapper curve) {
-        Security.addProvider(new BouncyCastleProvider());
-        Security.getProvider("BC");
         this.curve = curve;
         iv = CryptoSecurityUtil.getSecureBytes(16);
         salt = CryptoSecurityUtil.getSecureBytes(16);
@@ -85,7 +87,9 @@ public class AesWrapper {
     public void initCipher(boolean isEncrypt) {
         try {
             state = isEncrypt;
-            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            if (cipher == null) {
+                cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            }
             cipher.init(isEncrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
         } catch (GeneralSecurityException e) {
             System.err.println(e);
@@ -94,20 +98,21 @@ public class AesWrapper {
     }
 
     /**
-     * Generate secret key from iv, salt, baseKey
+     * Generate secret key from salt, baseKey
      *
+     * The base key is random, so HKDF is enough - PBKDF2 is kept for the
+     * version 100 headers only
      */
     protected final void generateSecretKey() {
-        try {
-            SecretKeyFactory factory = SecretKeyFactory.getInstance(KEYGEN_ALGORITHM);
-            KeySpec keySpec = new PBEKeySpec(new String(baseKey).toCharArray(), salt, 4096, 256);
-            SecretKey generalSecret = factory.generateSecret(keySpec);
-
-            secretKey = new SecretKeySpec(generalSecret.getEncoded(), ALGORITHM_NAME);
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-            Logger.getLogger(AesWrapper.class.getName()).log(Level.SEVERE, null, ex);
-            throw new RuntimeException("Invalid environment, check max key size", ex);
+        long startNanos = METRICS.startTimer();
+        byte[] keyBytes;
+        if (isPbkdf2Key) {
+            keyBytes = KeyDerivationUtil.pbkdf2(new String(baseKey).toCharArray(), salt, 256);
+        } else {
+            keyBytes = KeyDerivationUtil.hkdfSha512(baseKey, salt, KEY_INFO, 32);
         }
+        secretKey = new SecretKeySpec(keyBytes, ALGORITHM_NAME);
+        METRICS.stopTimer(MetricsRegistry.STAGE_KEY_DERIVATION, startNanos);
     }
 
     /**
@@ -139,6 +144,23 @@ public class AesWrapper {
         return null;
     }
 
+    /**
+     * Crypt a region of the data
+     *
+     * @param data - the buffer holding the bytes to work with
+     * @param offset - the region start in data
+     * @param length - the region length
+     * @return the modified bytes
+     */
+    public byte[] doFinal(byte[] data, int offset, int length) {
+        try {
+            return cipher.doFinal(data, offset, length);
+        } catch (IllegalBlockSizeException | BadPaddingException ex) {
+            Logger.getLogger(AesWrapper.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
     /**
      * Encrypt a chunk of data (used in large data sets with doFinal())
      *
@@ -149,13 +171,152 @@ public class AesWrapper {
         return cipher.update(data);
     }
 
+    /**
+     * Crypt a chunk of data into a caller provided buffer (used with doFinal())
+     *
+     * The output buffer has to hold at least length + block size bytes
+     *
+     * @param data - buffer holding the chunk
+     * @param offset - the chunk start in data
+     * @param length - the chunk length
+     * @param output - the buffer to write the crypted bytes to
+     * @return the number of bytes written to output
+     */
+    public int update(byte[] data, int offset, int length, byte[] output) {
+        try {
+            return cipher.update(data, offset, length, output, 0);
+        } catch (ShortBufferException ex) {
+            throw new RuntimeException("Output buffer too small for cipher block", ex);
+        }
+    }
+
+    /**
+     * Crypt a chunk of data between buffers (used with doFinal(ByteBuffer, ByteBuffer))
+     *
+     * @param input - the chunk between position and limit
+     * @param output - receives the crypted bytes, needs input + block size room
+     * @return the number of bytes written to output
+     */
+    public int update(ByteBuffer input, ByteBuffer output) {
+        long startNanos = METRICS.startTimer();
+        try {
+            return cipher.update(input, output);
+        } catch (ShortBufferException ex) {
+            throw new RuntimeException("Output buffer too small for cipher block", ex);
+        } finally {
+            METRICS.stopTimer(MetricsRegistry.STAGE_CIPHER, startNanos);
+        }
+    }
+
+    /**
+     * Close multi part encryption between buffers
+     *
+     * @param input - the last chunk between position and limit, can be empty
+     * @param output - receives the crypted bytes, needs input + block size room
+     * @return the number of bytes written to output, -1 on invalid padding
+     */
+    public int doFinal(ByteBuffer input, ByteBuffer output) {
+        long startNanos = METRICS.startTimer();
+        try {
+            return cipher.doFinal(input, output);
+        } catch (ShortBufferException ex) {
+            throw new RuntimeException("Output buffer too small for cipher block", ex);
+        } catch (IllegalBlockSizeException | BadPaddingException ex) {
+            Logger.getLogger(AesWrapper.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            METRICS.stopTimer(MetricsRegistry.STAGE_CIPHER, startNanos);
+        }
+        return -1;
+    }
+
+    /**
+     * Get the maximum output size of an update for the given input length
+     *
+     * @param length - the input length
+     * @return the required output buffer size
+     */
+    public int getOutputSize(int length) {
+        return cipher.getOutputSize(length);
+    }
+
     public byte[] doFinalWithHeader(byte[] data) {
         if (state) {
-            byte[] finalBlock = doFinal(data);
             byte[] header = createHeader();
-            return ArrayUtils.addAll(header, finalBlock);
+            byte[] output = new byte[header.length + cipher.getOutputSize(data.length)];
+            System.arraycopy(header, 0, output, 0, header.length);
+            try {
+                //encrypt straight behind the header, no intermediate payload copy
+                int written = cipher.doFinal(data, 0, data.length, output, header.length);
+                return header.length + written == output.length ? output : Arrays.copyOf(output, header.length + written);
+            } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException ex) {
+                Logger.getLogger(AesWrapper.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            return null;
         }else{
-            return doFinal(extractHeader(data));
+            int contentOffset = extractHeader(data);
+            return doFinal(data, contentOffset, data.length - contentOffset);
+        }
+    }
+
+    /**
+     * Write the header to a stream (the header does not depend on the data)
+     *
+     * @param out - the stream to write to
+     * @throws IOException
+     */
+    public void writeHeader(OutputStream out) throws IOException {
+        byte[] header = createHeader();
+        if (header == null) {
+            throw new IOException("Unable to create header");
+        }
+        out.write(header);
+    }
+
+    /**
+     * Read the header from a stream and initialize the cipher for the content
+     *
+     * On return the stream is positioned at the first content byte
+     *
+     * @param in - the stream to read from
+     * @throws IOException
+     */
+    public void readHeader(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        int version = dataIn.readByte();
+        if (version != ConstantExchange.PBKDF2_VERSION && version != ConstantExchange.CURRENT_VERSION) {
+            throw new IOException("Invalid container version " + version);
+        }
+        isPbkdf2Key = version == ConstantExchange.PBKDF2_VERSION;
+        int ivLength = dataIn.readInt();
+        int saltLength = dataIn.readInt();
+        int garbageLength = dataIn.readInt();
+        int baseKeyLength = dataIn.readInt();
+        checkHeaderLengths(ivLength, saltLength, garbageLength, baseKeyLength);
+        iv = new byte[ivLength];
+        dataIn.readFully(iv);
+        salt = new byte[saltLength];
+        dataIn.readFully(salt);
+        IOUtils.skipFully(dataIn, garbageLength);
+        byte[] encKeyBase = new byte[baseKeyLength];
+        dataIn.readFully(encKeyBase);
+        baseKey = curve.doFinalWithHeader(encKeyBase, false);
+
+        generateSecretKey();
+        initCipher(state);
+    }
+
+    /**
+     * Check the field lengths read from a header, so a corrupted header fails
+     * before the fields are allocated
+     *
+     * @param lengths - the field lengths
+     * @throws IOException if a length is out of range
+     */
+    protected static void checkHeaderLengths(int... lengths) throws IOException {
+        for (int length : lengths) {
+            if (length < 0 || length > MAX_HEADER_FIELD_LENGTH) {
+                throw new IOException("Invalid header field length " + length + ", the header is corrupted");
+            }
         }
     }
 
@@ -165,7 +326,7 @@ public class AesWrapper {
             byte[] baseKeyEnc = curve.doFinalWithHeader(baseKey, true);
             ByteArrayOutputStream header = new ByteArrayOutputStream();
 
-            header.write((byte) 100);
+            header.write(isPbkdf2Key ? ConstantExchange.PBKDF2_VERSION : ConstantExchange.CURRENT_VERSION);
             header.write(ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(iv.length).array());
             header.write(ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(salt.length).array());
             header.write(ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(garbageByte.length).array());
@@ -183,31 +344,39 @@ public class AesWrapper {
         return null;
     }
     
-    protected byte[] extractHeader(byte[] data){
-        int version = data[0];
-        int currentPosition = 1;
-        int ivLength = ByteBuffer.wrap(ArrayUtils.subarray(data, currentPosition, currentPosition +Integer.BYTES)).getInt();
-        currentPosition += Integer.BYTES;
-        int saltLength = ByteBuffer.wrap(ArrayUtils.subarray(data, currentPosition, currentPosition +Integer.BYTES)).getInt();
-        currentPosition += Integer.BYTES;
-        int garbageLength = ByteBuffer.wrap(ArrayUtils.subarray(data, currentPosition, currentPosition +Integer.BYTES)).getInt();
-        currentPosition += Integer.BYTES;
-        int baseKeyLength = ByteBuffer.wrap(ArrayUtils.subarray(data, currentPosition, currentPosition +Integer.BYTES)).getInt();
-        currentPosition += Integer.BYTES;
-        iv = ArrayUtils.subarray(data, currentPosition, currentPosition + ivLength);
-        currentPosition += ivLength;
-        salt = ArrayUtils.subarray(data, currentPosition, currentPosition + saltLength);
-        currentPosition += saltLength;
-        currentPosition += garbageLength;//skip garbage
-        byte[] encKeyBase = ArrayUtils.subarray(data, currentPosition, currentPosition + baseKeyLength);
-        currentPosition += baseKeyLength;
-        baseKey = curve.doFinalWithHeader(encKeyBase, false);
-        
-        byte[] content = ArrayUtils.subarray(data, currentPosition, data.length);
+    /**
+     * Parse the header in place and initialize the cipher for the content
+     *
+     * @param data - content with header
+     * @return the offset of the first content byte in data
+     */
+    protected int extractHeader(byte[] data){
+        ByteBuffer header = ByteBuffer.wrap(data);
+        int version = header.get();
+        isPbkdf2Key = version == ConstantExchange.PBKDF2_VERSION;
+        int ivLength = header.getInt();
+        int saltLength = header.getInt();
+        int garbageLength = header.getInt();
+        int baseKeyLength = header.getInt();
+        try {
+            if (version != ConstantExchange.PBKDF2_VERSION && version != ConstantExchange.CURRENT_VERSION) {
+                throw new IOException("Invalid container version " + version);
+            }
+            checkHeaderLengths(ivLength, saltLength, garbageLength, baseKeyLength);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex.getMessage(), ex);
+        }
+        iv = new byte[ivLength];
+        header.get(iv);
+        salt = new byte[saltLength];
+        header.get(salt);
+        header.position(header.position() + garbageLength);//skip garbage
+        baseKey = curve.doFinalWithHeader(data, header.position(), baseKeyLength, false);
+        header.position(header.position() + baseKeyLength);
         
         generateSecretKey();
         initCipher(state);
         
-        return content;
+        return header.position();
     }
 }
@@ -0,0 +1,256 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description ChunkCipher - The authenticated ciphers of the chunk frames
+ * @package ie.peternagy.jcrypto.algo
+ */
+package ie.peternagy.jcrypto.algo;
+
+import ie.peternagy.jcrypto.util.CipherPool;
+import ie.peternagy.jcrypto.util.KeyDerivationUtil;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Every cipher seals a chunk into ciphertext + TAG_LENGTH bytes of tag under
+ * a 12 byte nonce, so the frame layout does not depend on the cipher. The id
+ * is written to the container header (see ChunkedAesWrapper), any host can
+ * decrypt a container whatever cipher the encrypting host picked.
+ *
+ * AES_GCM is the default and the only cipher of containers without an id.
+ * AES_CTR_HMAC (encrypt then MAC, HMAC-SHA256 truncated to the tag length)
+ * is for hosts where GHASH is slow, CHACHA20_POLY1305 for hosts without AES
+ * instructions (JDK 11+).
+ */
+public enum ChunkCipher {
+
+    AES_GCM(0, "AES/GCM/NoPadding", "AES") {
+        @Override
+        protected AlgorithmParameterSpec createParameterSpec(byte[] nonce) {
+            return new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, nonce);
+        }
+    },
+    CHACHA20_POLY1305(1, "ChaCha20-Poly1305", "ChaCha20"),
+    AES_CTR_HMAC(2, "AES/CTR/NoPadding", "AES") {
+        @Override
+        protected AlgorithmParameterSpec createParameterSpec(byte[] nonce) {
+            return new IvParameterSpec(Arrays.copyOf(nonce, 16));
+        }
+
+        @Override
+        protected void seal(ChunkKey key, byte[] nonce, byte[] aad, ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+            Cipher cipher = CipherPool.get(transformation, key.provider);
+            cipher.init(Cipher.ENCRYPT_MODE, key.cipherKey, createParameterSpec(nonce));
+            ByteBuffer ciphertext = out.duplicate();
+            cipher.doFinal(plain, out);
+            ciphertext.limit(out.position());
+            out.put(calculateTag(key, nonce, aad, ciphertext));
+        }
+
+        @Override
+        protected void open(ChunkKey key, byte[] nonce, byte[] aad, ByteBuffer sealed, ByteBuffer out) throws GeneralSecurityException {
+            ByteBuffer ciphertext = sealed.duplicate();
+            ciphertext.limit(sealed.limit() - TAG_LENGTH);
+            byte[] tag = new byte[TAG_LENGTH];
+            ((ByteBuffer) sealed.duplicate().position(ciphertext.limit())).get(tag);
+            if (!MessageDigest.isEqual(tag, calculateTag(key, nonce, aad, ciphertext.duplicate()))) {
+                throw new AEADBadTagException("Tag mismatch");
+            }
+
+            Cipher cipher = CipherPool.get(transformation, key.provider);
+            cipher.init(Cipher.DECRYPT_MODE, key.cipherKey, createParameterSpec(nonce));
+            cipher.doFinal(ciphertext, out);
+            sealed.position(sealed.limit());
+        }
+    };
+
+    public static final int TAG_LENGTH = 16;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] CTR_KEY_INFO = "jcrypto-ctr-aes".getBytes();
+    private static final byte[] MAC_KEY_INFO = "jcrypto-ctr-hmac".getBytes();
+    private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(MAC_ALGORITHM);
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException("Invalid environment, " + MAC_ALGORITHM + " is not available", ex);
+        }
+    });
+    protected final String transformation;
+    private final byte id;
+    private final String keyAlgorithm;
+
+    private ChunkCipher(int id, String transformation, String keyAlgorithm) {
+        this.id = (byte) id;
+        this.transformation = transformation;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    /**
+     * Get the cipher of a header id
+     *
+     * @param id - the id written to the header
+     * @return the cipher or null if unknown
+     */
+    public static ChunkCipher fromId(int id) {
+        for (ChunkCipher cipher : values()) {
+            if (cipher.id == id) {
+                return cipher;
+            }
+        }
+
+        return null;
+    }
+
+    public byte getId() {
+        return id;
+    }
+
+    public String getTransformation() {
+        return transformation;
+    }
+
+    /**
+     * Check a provider implements the cipher
+     *
+     * @param provider - the provider or null for the default providers
+     * @return true if available
+     */
+    public boolean isAvailable(Provider provider) {
+        try {
+            CipherPool.get(transformation, provider);
+            return true;
+        } catch (RuntimeException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Build the keys of the cipher from the file key
+     *
+     * @param keyBytes - the 32 byte file key
+     * @param provider - the provider of the cipher or null for the default
+     * @return the chunk key
+     */
+    public ChunkKey createKey(byte[] keyBytes, Provider provider) {
+        if (this != AES_CTR_HMAC) {
+            return new ChunkKey(new SecretKeySpec(keyBytes, keyAlgorithm), null, provider);
+        }
+        byte[] cipherKey = KeyDerivationUtil.hkdfSha512(keyBytes, null, CTR_KEY_INFO, 32);
+        byte[] macKey = KeyDerivationUtil.hkdfSha512(keyBytes, null, MAC_KEY_INFO, 32);
+        ChunkKey key = new ChunkKey(new SecretKeySpec(cipherKey, keyAlgorithm), new SecretKeySpec(macKey, MAC_ALGORITHM), provider);
+        Arrays.fill(cipherKey, (byte) 0);
+        Arrays.fill(macKey, (byte) 0);
+
+        return key;
+    }
+
+    /**
+     * Create the cipher parameters of a nonce
+     *
+     * @param nonce - the 12 byte nonce
+     * @return the parameters
+     */
+    protected AlgorithmParameterSpec createParameterSpec(byte[] nonce) {
+        return new IvParameterSpec(nonce);
+    }
+
+    /**
+     * Encrypt a chunk - safe to call from multiple threads
+     *
+     * @param key - the chunk key
+     * @param nonce - the 12 byte nonce, unique per key
+     * @param aad - the additional authenticated data
+     * @param plain - the chunk between position and limit, consumed
+     * @param out - receives ciphertext and tag, needs plain + TAG_LENGTH room
+     * @throws GeneralSecurityException
+     */
+    protected void seal(ChunkKey key, byte[] nonce, byte[] aad, ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+        Cipher cipher = CipherPool.get(transformation, key.provider);
+        cipher.init(Cipher.ENCRYPT_MODE, key.cipherKey, createParameterSpec(nonce));
+        cipher.updateAAD(aad);
+        cipher.doFinal(plain, out);
+    }
+
+    /**
+     * Authenticate and decrypt a chunk - safe to call from multiple threads
+     *
+     * @param key - the chunk key
+     * @param nonce - the nonce of the frame
+     * @param aad - the additional authenticated data
+     * @param sealed - ciphertext and tag between position and limit, consumed
+     * @param out - receives the plain chunk
+     * @throws AEADBadTagException if the tag does not match
+     * @throws GeneralSecurityException
+     */
+    protected void open(ChunkKey key, byte[] nonce, byte[] aad, ByteBuffer sealed, ByteBuffer out) throws GeneralSecurityException {
+        Cipher cipher = CipherPool.get(transformation, key.provider);
+        cipher.init(Cipher.DECRYPT_MODE, key.cipherKey, createParameterSpec(nonce));
+        cipher.updateAAD(aad);
+        cipher.doFinal(sealed, out);
+    }
+
+    /**
+     * Calculate the truncated HMAC of aad, nonce and ciphertext
+     *
+     * @param key - the chunk key
+     * @param nonce - the nonce of the frame
+     * @param aad - the additional authenticated data
+     * @param ciphertext - the ciphertext between position and limit, consumed
+     * @return the tag
+     * @throws GeneralSecurityException
+     */
+    private static byte[] calculateTag(ChunkKey key, byte[] nonce, byte[] aad, ByteBuffer ciphertext) throws GeneralSecurityException {
+        Mac mac = MACS.get();
+        mac.init(key.macKey);
+        mac.update(aad);
+        mac.update(nonce);
+        mac.update(ciphertext);
+
+        return Arrays.copyOf(mac.doFinal(), TAG_LENGTH);
+    }
+
+    /**
+     * Immutable key material of one container, shared by its chunk threads
+     */
+    public static class ChunkKey {
+
+        private final SecretKey cipherKey;
+        private final SecretKey macKey;
+        private final Provider provider;
+
+        private ChunkKey(SecretKey cipherKey, SecretKey macKey, Provider provider) {
+            this.cipherKey = cipherKey;
+            this.macKey = macKey;
+            this.provider = provider;
+        }
+    }
+}
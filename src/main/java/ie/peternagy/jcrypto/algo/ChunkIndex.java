@@ -0,0 +1,321 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description ChunkIndex - Frame offsets of a chunked container, stored as
+ * a trailer behind the last frame
+ * @package ie.peternagy.jcrypto.algo
+ */
+package ie.peternagy.jcrypto.algo;
+
+import ie.peternagy.jcrypto.util.FileAccessUtil;
+import ie.peternagy.jcrypto.util.MerkleTree;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Trailer layout: long frame offset (repeated, one per chunk), int chunk
+ * count, long plain text length, int magic
+ *
+ * Checksum trailer layout (CHECKSUM_MAGIC): long frame offset, int CRC32C
+ * and SHA-256 leaf hash of the frame (repeated, one per chunk), Merkle root
+ * of the leaves, root tag (nonce + tag), int chunk count, long plain text
+ * length, int magic
+ *
+ * Every chunk but the last holds chunk size plain bytes, so the chunk of a
+ * plain offset is offset / chunk size and the index only has to map chunks
+ * to frame offsets. The offsets are not authenticated, a frame read from a
+ * wrong offset fails on its chunk index in the aad. The checksums cover the
+ * frames as stored, so they are checked without the key. The root tag seals
+ * the Merkle root, chunk count and plain length under the chunk key (see
+ * ChunkedAesWrapper.sealIndex), with the key a root that matches its tag
+ * and the leaves proves the frames untampered.
+ */
+public class ChunkIndex {
+
+    public static final int MAGIC = 0x4A434958;
+    public static final int CHECKSUM_MAGIC = 0x4A434943;
+    public static final int FOOTER_LENGTH = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    public static final int ROOT_TAG_LENGTH = ChunkedAesWrapper.NONCE_LENGTH + ChunkCipher.TAG_LENGTH;
+    private static final int CHECKSUM_ENTRY_LENGTH = Long.BYTES + Integer.BYTES + MerkleTree.HASH_LENGTH;
+    private long[] frameOffsets = new long[64];
+    private int[] frameCrcs;
+    private byte[][] leafHashes;
+    private byte[] rootTag;
+    private int chunkCount;
+    private long plainLength;
+
+    /**
+     * Record the next frame
+     *
+     * @param frameOffset - the offset of the frame length prefix in the file
+     */
+    public void add(long frameOffset) {
+        if (chunkCount == frameOffsets.length) {
+            frameOffsets = Arrays.copyOf(frameOffsets, chunkCount * 2);
+        }
+        frameOffsets[chunkCount++] = frameOffset;
+    }
+
+    /**
+     * Record the next frame with its checksums, all frames of an index either
+     * have checksums or none
+     *
+     * @param frameOffset - the offset of the frame length prefix in the file
+     * @param frameCrc - the CRC32C of the frame
+     * @param leafHash - the Merkle leaf hash of the frame
+     */
+    public void add(long frameOffset, int frameCrc, byte[] leafHash) {
+        if (frameCrcs == null) {
+            if (chunkCount > 0) {
+                throw new IllegalStateException("The index has frames without checksums");
+            }
+            frameCrcs = new int[frameOffsets.length];
+            leafHashes = new byte[frameOffsets.length][];
+        } else if (chunkCount == frameCrcs.length) {
+            frameCrcs = Arrays.copyOf(frameCrcs, chunkCount * 2);
+            leafHashes = Arrays.copyOf(leafHashes, chunkCount * 2);
+        }
+        frameCrcs[chunkCount] = frameCrc;
+        leafHashes[chunkCount] = leafHash;
+        add(frameOffset);
+    }
+
+    /**
+     * Check the frames have checksums
+     *
+     * @return true for a checksum trailer
+     */
+    public boolean hasChecksums() {
+        return frameCrcs != null;
+    }
+
+    public int getFrameCrc(int index) {
+        checkChunk(index);
+        return frameCrcs[index];
+    }
+
+    public byte[] getLeafHash(int index) {
+        checkChunk(index);
+        return leafHashes[index].clone();
+    }
+
+    /**
+     * Get the Merkle root of the frame leaves
+     *
+     * @return the root hash
+     */
+    public byte[] getMerkleRoot() {
+        if (!hasChecksums()) {
+            throw new IllegalStateException("The index has no checksums");
+        }
+        return MerkleTree.calculateRoot(leafHashes, chunkCount);
+    }
+
+    /**
+     * Get the tag sealing the Merkle root
+     *
+     * @return nonce and tag, null until sealed
+     */
+    public byte[] getRootTag() {
+        return rootTag == null ? null : rootTag.clone();
+    }
+
+    /**
+     * Set the tag sealing the Merkle root (see ChunkedAesWrapper.sealIndex)
+     *
+     * @param rootTag - nonce and tag, ROOT_TAG_LENGTH bytes
+     */
+    public void setRootTag(byte[] rootTag) {
+        if (rootTag.length != ROOT_TAG_LENGTH) {
+            throw new IllegalArgumentException("Invalid root tag length " + rootTag.length);
+        }
+        this.rootTag = rootTag.clone();
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public long getFrameOffset(int index) {
+        checkChunk(index);
+        return frameOffsets[index];
+    }
+
+    public long getPlainLength() {
+        return plainLength;
+    }
+
+    public void setPlainLength(long plainLength) {
+        this.plainLength = plainLength;
+    }
+
+    /**
+     * Get the trailer size for the recorded chunks
+     *
+     * @return the trailer length in bytes
+     */
+    public int getTrailerLength() {
+        return getTrailerLength(chunkCount, hasChecksums());
+    }
+
+    /**
+     * Serialize the index as trailer
+     *
+     * @return the trailer bytes
+     */
+    public byte[] toTrailer() {
+        ByteBuffer trailer = ByteBuffer.allocate(getTrailerLength());
+        for (int i = 0; i < chunkCount; i++) {
+            trailer.putLong(frameOffsets[i]);
+            if (hasChecksums()) {
+                trailer.putInt(frameCrcs[i]).put(leafHashes[i]);
+            }
+        }
+        if (hasChecksums()) {
+            if (rootTag == null) {
+                throw new IllegalStateException("The Merkle root is not sealed");
+            }
+            trailer.put(getMerkleRoot()).put(rootTag);
+        }
+        trailer.putInt(chunkCount).putLong(plainLength).putInt(hasChecksums() ? CHECKSUM_MAGIC : MAGIC);
+
+        return trailer.array();
+    }
+
+    /**
+     * Check the index describes the same frames as an other one
+     *
+     * @param other - the index to compare with
+     * @return true if chunk count, offsets and plain length match (the
+     * checksums are not compared)
+     */
+    public boolean isMatching(ChunkIndex other) {
+        return other != null && chunkCount == other.chunkCount && plainLength == other.plainLength
+                && Arrays.equals(Arrays.copyOf(frameOffsets, chunkCount), Arrays.copyOf(other.frameOffsets, other.chunkCount));
+    }
+
+    /**
+     * Parse a trailer
+     *
+     * @param trailer - the trailer bytes between position and limit
+     * @return the index
+     * @throws IOException if the trailer is malformed or the Merkle root does
+     * not match the leaves
+     */
+    public static ChunkIndex fromTrailer(ByteBuffer trailer) throws IOException {
+        if (trailer.remaining() < FOOTER_LENGTH) {
+            throw new IOException("Invalid chunk index, the trailer is truncated");
+        }
+        int footerStart = trailer.limit() - FOOTER_LENGTH;
+        int chunkCount = trailer.getInt(footerStart);
+        long plainLength = trailer.getLong(footerStart + Integer.BYTES);
+        int magic = trailer.getInt(footerStart + Integer.BYTES + Long.BYTES);
+        boolean hasChecksums = magic == CHECKSUM_MAGIC;
+        if ((magic != MAGIC && !hasChecksums) || chunkCount < 1 || plainLength < 0
+                || getTrailerLength(chunkCount, hasChecksums) != trailer.remaining()) {
+            throw new IOException("Invalid chunk index");
+        }
+
+        ChunkIndex index = new ChunkIndex();
+        index.frameOffsets = new long[chunkCount];
+        long previousOffset = -1;
+        for (int i = 0; i < chunkCount; i++) {
+            long frameOffset = trailer.getLong();
+            if (frameOffset <= previousOffset) {
+                throw new IOException("Invalid chunk index, frame offsets are not ascending");
+            }
+            if (hasChecksums) {
+                int frameCrc = trailer.getInt();
+                byte[] leafHash = new byte[MerkleTree.HASH_LENGTH];
+                trailer.get(leafHash);
+                index.add(frameOffset, frameCrc, leafHash);
+            } else {
+                index.add(frameOffset);
+            }
+            previousOffset = frameOffset;
+        }
+        index.setPlainLength(plainLength);
+        if (hasChecksums) {
+            byte[] root = new byte[MerkleTree.HASH_LENGTH];
+            trailer.get(root);
+            if (!Arrays.equals(root, index.getMerkleRoot())) {
+                throw new IOException("Invalid chunk index, the Merkle root does not match the leaves");
+            }
+            index.rootTag = new byte[ROOT_TAG_LENGTH];
+            trailer.get(index.rootTag);
+        }
+
+        return index;
+    }
+
+    /**
+     * Read the trailer from the end of a container
+     *
+     * @param in - the container, the position is changed
+     * @return the index
+     * @throws IOException if the trailer is missing or malformed
+     */
+    public static ChunkIndex read(SeekableByteChannel in) throws IOException {
+        long size = in.size();
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+        if (size < FOOTER_LENGTH) {
+            throw new IOException("Invalid chunk index, the container is truncated");
+        }
+        in.position(size - FOOTER_LENGTH);
+        FileAccessUtil.readFully(in, footer);
+        int magic = footer.getInt(Integer.BYTES + Long.BYTES);
+        long trailerLength = getTrailerLength(footer.getInt(0), magic == CHECKSUM_MAGIC);
+        if ((magic != MAGIC && magic != CHECKSUM_MAGIC) || trailerLength <= 0 || trailerLength > size) {
+            throw new IOException("Invalid chunk index");
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate((int) trailerLength);
+        in.position(size - trailerLength);
+        if (FileAccessUtil.readFully(in, trailer) != trailerLength) {
+            throw new IOException("Invalid chunk index, the trailer is truncated");
+        }
+        trailer.flip();
+
+        return fromTrailer(trailer);
+    }
+
+    /**
+     * Get the trailer size of a chunk count
+     *
+     * @param chunkCount - the number of chunks
+     * @param hasChecksums - true for a checksum trailer
+     * @return the trailer length in bytes, -1 if it does not fit an array
+     */
+    public static int getTrailerLength(int chunkCount, boolean hasChecksums) {
+        long length = hasChecksums
+                ? (long) chunkCount * CHECKSUM_ENTRY_LENGTH + MerkleTree.HASH_LENGTH + ROOT_TAG_LENGTH + FOOTER_LENGTH
+                : (long) chunkCount * Long.BYTES + FOOTER_LENGTH;
+
+        return chunkCount < 0 || length > Integer.MAX_VALUE - 8 ? -1 : (int) length;
+    }
+
+    private void checkChunk(int index) {
+        if (index < 0 || index >= chunkCount) {
+            throw new IndexOutOfBoundsException("Invalid chunk " + index + " of " + chunkCount);
+        }
+    }
+}
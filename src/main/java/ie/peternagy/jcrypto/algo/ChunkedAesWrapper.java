@@ -0,0 +1,736 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description ChunkedAesWrapper - AES wrapper for the chunked container,
+ * every chunk is encrypted independently with its own nonce and tag
+ * @package ie.peternagy.jcrypto.algo
+ */
+package ie.peternagy.jcrypto.algo;
+
+import ie.peternagy.jcrypto.algo.ChunkCipher.ChunkKey;
+import ie.peternagy.jcrypto.util.CompressionUtil;
+import ie.peternagy.jcrypto.util.ConstantExchange;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import ie.peternagy.jcrypto.util.Crc32c;
+import ie.peternagy.jcrypto.util.MerkleTree;
+import ie.peternagy.jcrypto.util.MetricsRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.AEADBadTagException;
+
+/**
+ * Container layout (version 101):
+ *
+ * header: version, flags (HEADER_FLAG_*), [cipher id], chunk size, salt/garbage/wrapped key
+ * lengths, salt, garbage, EC wrapped base key
+ *
+ * cipher: with HEADER_FLAG_CIPHER the id of the chunk cipher follows the
+ * flags (see ChunkCipher), containers without it use AES-GCM
+ *
+ * frame (repeated): int body length, body = flags (FRAME_FLAG_*), nonce,
+ * ciphertext + tag. With HEADER_FLAG_LZ4 a frame can hold an LZ4 block
+ * instead of the raw chunk, marked with FRAME_FLAG_LZ4
+ *
+ * session: with HEADER_FLAG_SESSION the wrapped base key is shared by a
+ * batch of containers (see SessionKey), the salt keeps the file keys unique
+ *
+ * trailer: with HEADER_FLAG_INDEX the frame offsets follow the last frame
+ * (see ChunkIndex), so byte ranges can be decrypted without reading the
+ * frames before them
+ *
+ * checksum: with HEADER_FLAG_CHECKSUM the trailer also holds a CRC32C and a
+ * Merkle leaf hash of every frame plus the Merkle root, so the frames can be
+ * verified without the key (see ChunkVerifier). The root is sealed with the
+ * chunk count and plain length under the chunk key (root tag), a rewritten
+ * trailer fails on decrypt
+ *
+ * The chunk index, the frame flags and the SHA-256 digest of the header are
+ * authenticated as additional data, so reordered, dropped or truncated
+ * frames and an edited header (flags, cipher, chunk size) fail on decrypt.
+ * Unknown header flags are rejected.
+ */
+public class ChunkedAesWrapper extends AesWrapper {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_LENGTH = ChunkCipher.TAG_LENGTH;
+    public static final byte HEADER_FLAG_HKDF = 1;
+    public static final byte HEADER_FLAG_LZ4 = 2;
+    public static final byte HEADER_FLAG_INDEX = 4;
+    public static final byte HEADER_FLAG_SESSION = 8;
+    public static final byte HEADER_FLAG_CIPHER = 16;
+    public static final byte HEADER_FLAG_CHECKSUM = 32;
+    private static final byte HEADER_FLAGS_KNOWN = HEADER_FLAG_HKDF | HEADER_FLAG_LZ4 | HEADER_FLAG_INDEX
+            | HEADER_FLAG_SESSION | HEADER_FLAG_CIPHER | HEADER_FLAG_CHECKSUM;
+    public static final byte FRAME_FLAG_LAST = 1;
+    public static final byte FRAME_FLAG_LZ4 = 2;
+    public static final int FRAME_HEADER_LENGTH = Integer.BYTES + 1 + NONCE_LENGTH;
+    private static final byte ROOT_AAD_FLAG = (byte) 0x80;
+    private int chunkSize;
+    private byte flags = HEADER_FLAG_INDEX | HEADER_FLAG_CHECKSUM;
+    private SessionKey sessionKey;
+    private SessionKeyCache keyCache;
+    private ChunkCipher chunkCipher;
+    private volatile ChunkKey chunkKey;
+    private volatile byte[] headerDigest;
+
+    public ChunkedAesWrapper(EllipticCurveWrapper curve) {
+        this(curve, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ChunkedAesWrapper(EllipticCurveWrapper curve, int chunkSize) {
+        super(curve);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Set the direction only, each chunk is crypted by the GCM cipher of the
+     * calling thread (see CipherPool), the CBC cipher of AesWrapper is unused
+     *
+     * @param isEncrypt - true >> encryption
+     */
+    @Override
+    public void initCipher(boolean isEncrypt) {
+        state = isEncrypt;
+    }
+
+    /**
+     * Get the plain text size of a chunk (the last chunk can be shorter)
+     *
+     * @return the chunk size in bytes
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Compress the chunks with LZ4 before encryption
+     *
+     * Note: the frame sizes then leak how well each chunk compresses
+     *
+     * @param isCompress - true >> compress
+     */
+    public void setCompression(boolean isCompress) {
+        flags = (byte) (isCompress ? flags | HEADER_FLAG_LZ4 : flags & ~HEADER_FLAG_LZ4);
+    }
+
+    /**
+     * Check the chunks are compressed before encryption
+     *
+     * @return true if compressed
+     */
+    public boolean isCompression() {
+        return (flags & HEADER_FLAG_LZ4) != 0;
+    }
+
+    /**
+     * Append the chunk index trailer on encrypt (on by default)
+     *
+     * @param isIndexed - true >> write the index, without it no checksums
+     */
+    public void setIndexed(boolean isIndexed) {
+        flags = (byte) (isIndexed ? flags | HEADER_FLAG_INDEX : flags & ~(HEADER_FLAG_INDEX | HEADER_FLAG_CHECKSUM));
+    }
+
+    /**
+     * Check the container has a chunk index trailer
+     *
+     * @return true if indexed
+     */
+    public boolean isIndexed() {
+        return (flags & HEADER_FLAG_INDEX) != 0;
+    }
+
+    /**
+     * Add the frame checksums to the index trailer on encrypt (on by default)
+     *
+     * @param isChecksummed - true >> write the checksums
+     */
+    public void setChecksummed(boolean isChecksummed) {
+        flags = (byte) (isChecksummed && isIndexed() ? flags | HEADER_FLAG_CHECKSUM : flags & ~HEADER_FLAG_CHECKSUM);
+    }
+
+    /**
+     * Check the index trailer holds the frame checksums
+     *
+     * @return true if checksummed
+     */
+    public boolean isChecksummed() {
+        return (flags & HEADER_FLAG_CHECKSUM) != 0;
+    }
+
+    /**
+     * Encrypt under a batch session key instead of a key of its own, the EC
+     * wrapping is skipped
+     *
+     * @param sessionKey - the session key of the batch
+     */
+    public void setSessionKey(SessionKey sessionKey) {
+        setDataKey(sessionKey);
+        flags |= HEADER_FLAG_SESSION;
+    }
+
+    /**
+     * Encrypt under a key wrapped ahead of time (see DataKeyPool), the EC
+     * wrapping is skipped but the container is written as with a key of its
+     * own
+     *
+     * @param dataKey - a pre-wrapped key used by this container only
+     */
+    public void setDataKey(SessionKey dataKey) {
+        this.sessionKey = dataKey;
+        baseKey = dataKey.getBaseKey();
+        generateSecretKey();
+        chunkKey = null;
+        Arrays.fill(baseKey, (byte) 0);
+    }
+
+    /**
+     * Check the base key is shared by a batch
+     *
+     * @return true if the container uses a session key
+     */
+    public boolean isSession() {
+        return (flags & HEADER_FLAG_SESSION) != 0;
+    }
+
+    /**
+     * Unwrap session keys through the cache of the run, a container without
+     * a cache unwraps its key itself
+     *
+     * @param keyCache - the unwrap cache of the run
+     */
+    public void setKeyCache(SessionKeyCache keyCache) {
+        this.keyCache = keyCache;
+    }
+
+    /**
+     * Encrypt the chunks with another cipher than the calibrated one
+     *
+     * @param chunkCipher - the cipher of new containers
+     */
+    public void setChunkCipher(ChunkCipher chunkCipher) {
+        this.chunkCipher = chunkCipher;
+        chunkKey = null;
+    }
+
+    /**
+     * Get the chunk cipher, for new containers the fastest of the host (see
+     * CipherCalibration)
+     *
+     * @return the cipher
+     */
+    public ChunkCipher getChunkCipher() {
+        if (chunkCipher == null) {
+            chunkCipher = CipherCalibration.getInstance().getPreferred();
+        }
+
+        return chunkCipher;
+    }
+
+    /**
+     * Get the maximum size of an encrypted frame, including the length prefix
+     *
+     * @return the frame size in bytes
+     */
+    public int getMaxFrameSize() {
+        return Integer.BYTES + 1 + NONCE_LENGTH + chunkSize + TAG_LENGTH;
+    }
+
+    /**
+     * Get the buffer size that holds any chunk, frame body or LZ4 block
+     *
+     * @return the capacity in bytes
+     */
+    public int getBufferCapacity() {
+        return 1 + NONCE_LENGTH + Integer.BYTES + chunkSize + chunkSize / 255 + 16 + TAG_LENGTH;
+    }
+
+    /**
+     * Encrypt a chunk between direct buffers - safe to call from multiple
+     * threads
+     *
+     * When the chunk is compressed the plain buffer is reused for the
+     * ciphertext, release the buffer that is not returned
+     *
+     * @param index - the position of the chunk in the stream
+     * @param plain - the chunk between position and limit
+     * @param frameHeader - receives the length prefix, flags and nonce
+     * @param out - buffer of getBufferCapacity() size
+     * @param isLast - true for the final chunk of the stream
+     * @return the buffer holding ciphertext and tag, flipped for writing
+     */
+    public ByteBuffer encryptChunk(long index, ByteBuffer plain, ByteBuffer frameHeader, ByteBuffer out, boolean isLast) {
+        byte frameFlags = isLast ? FRAME_FLAG_LAST : 0;
+        ByteBuffer source = plain;
+        ByteBuffer target = out;
+        if (isCompression() && CompressionUtil.compressBlock(plain, out)) {
+            frameFlags |= FRAME_FLAG_LZ4;
+            source = out;
+            target = plain;
+        }
+        target.clear();
+        byte[] nonce = CryptoSecurityUtil.getSecureBytes(NONCE_LENGTH);
+        frameHeader.clear();
+        frameHeader.putInt(1 + NONCE_LENGTH + source.remaining() + TAG_LENGTH).put(frameFlags).put(nonce).flip();
+
+        long startNanos = METRICS.startTimer();
+        try {
+            getChunkCipher().seal(getChunkKey(), nonce, createChunkAad(index, frameFlags), source, target);
+            target.flip();
+        } catch (GeneralSecurityException ex) {
+            Logger.getLogger(ChunkedAesWrapper.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to encrypt chunk " + index, ex);
+        } finally {
+            METRICS.stopTimer(MetricsRegistry.STAGE_CIPHER, startNanos);
+        }
+
+        return target;
+    }
+
+    /**
+     * Decrypt a frame body between direct buffers - safe to call from
+     * multiple threads
+     *
+     * When the chunk is compressed the body buffer is reused for the plain
+     * chunk, release the buffer that is not returned
+     *
+     * @param index - the expected position of the chunk in the stream
+     * @param body - the frame without the length prefix, between position and
+     * limit
+     * @param out - buffer of getBufferCapacity() size
+     * @return the buffer holding the plain chunk, flipped for writing
+     */
+    public ByteBuffer decryptChunk(long index, ByteBuffer body, ByteBuffer out) {
+        if (body.remaining() < 1 + NONCE_LENGTH + TAG_LENGTH) {
+            throw new RuntimeException("Invalid frame size for chunk " + index);
+        }
+        byte frameFlags = body.get();
+        byte[] nonce = new byte[NONCE_LENGTH];
+        body.get(nonce);
+        out.clear();
+
+        long startNanos = METRICS.startTimer();
+        try {
+            getChunkCipher().open(getChunkKey(), nonce, createChunkAad(index, frameFlags), body, out);
+            out.flip();
+        } catch (AEADBadTagException ex) {
+            throw new RuntimeException("Chunk " + index + " failed authentication, the data is corrupted or tampered", ex);
+        } catch (GeneralSecurityException ex) {
+            Logger.getLogger(ChunkedAesWrapper.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to decrypt chunk " + index, ex);
+        } finally {
+            METRICS.stopTimer(MetricsRegistry.STAGE_CIPHER, startNanos);
+        }
+
+        if ((frameFlags & FRAME_FLAG_LZ4) != 0) {
+            CompressionUtil.decompressBlock(out, body, chunkSize);
+            return body;
+        }
+        return out;
+    }
+
+    /**
+     * Check a frame body length read from the stream
+     *
+     * @param bodyLength - the length prefix of the frame
+     * @throws IOException if the length is out of range
+     */
+    public void checkFrameLength(int bodyLength) throws IOException {
+        if (bodyLength < 1 + NONCE_LENGTH + TAG_LENGTH || bodyLength > getMaxFrameSize() - Integer.BYTES) {
+            throw new IOException("Invalid frame length " + bodyLength);
+        }
+    }
+
+    /**
+     * Encrypt a single chunk into a frame - safe to call from multiple threads
+     *
+     * @param index - the position of the chunk in the stream
+     * @param data - buffer holding the chunk
+     * @param offset - the chunk start in data
+     * @param length - the chunk length
+     * @param isLast - true for the final chunk of the stream
+     * @return the frame, including the length prefix
+     */
+    public byte[] encryptChunk(long index, byte[] data, int offset, int length, boolean isLast) {
+        byte frameFlags = isLast ? FRAME_FLAG_LAST : 0;
+        if (isCompression()) {
+            byte[] block = CompressionUtil.compressBlock(data, offset, length);
+            if (block != null) {
+                frameFlags |= FRAME_FLAG_LZ4;
+                data = block;
+                offset = 0;
+                length = block.length;
+            }
+        }
+        byte[] nonce = CryptoSecurityUtil.getSecureBytes(NONCE_LENGTH);
+        int bodyLength = 1 + NONCE_LENGTH + length + TAG_LENGTH;
+        byte[] frame = new byte[Integer.BYTES + bodyLength];
+        ByteBuffer frameBuffer = ByteBuffer.wrap(frame);
+        frameBuffer.putInt(bodyLength);
+        frameBuffer.put(frameFlags);
+        frameBuffer.put(nonce);
+
+        long startNanos = METRICS.startTimer();
+        try {
+            getChunkCipher().seal(getChunkKey(), nonce, createChunkAad(index, frameFlags), ByteBuffer.wrap(data, offset, length), frameBuffer);
+        } catch (GeneralSecurityException ex) {
+            Logger.getLogger(ChunkedAesWrapper.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to encrypt chunk " + index, ex);
+        } finally {
+            METRICS.stopTimer(MetricsRegistry.STAGE_CIPHER, startNanos);
+        }
+
+        return frame;
+    }
+
+    /**
+     * Decrypt a frame body - safe to call from multiple threads
+     *
+     * @param index - the expected position of the chunk in the stream
+     * @param body - the frame without the length prefix
+     * @return the plain chunk
+     */
+    public byte[] decryptChunk(long index, byte[] body) {
+        if (body.length < 1 + NONCE_LENGTH + TAG_LENGTH) {
+            throw new RuntimeException("Invalid frame size for chunk " + index);
+        }
+
+        try {
+            byte[] chunk = new byte[body.length - 1 - NONCE_LENGTH - TAG_LENGTH];
+            long startNanos = METRICS.startTimer();
+            getChunkCipher().open(getChunkKey(), Arrays.copyOfRange(body, 1, 1 + NONCE_LENGTH), createChunkAad(index, body[0]),
+                    ByteBuffer.wrap(body, 1 + NONCE_LENGTH, chunk.length + TAG_LENGTH), ByteBuffer.wrap(chunk));
+            METRICS.stopTimer(MetricsRegistry.STAGE_CIPHER, startNanos);
+            if ((body[0] & FRAME_FLAG_LZ4) != 0) {
+                chunk = CompressionUtil.decompressBlock(chunk, chunkSize);
+            }
+            return chunk;
+        } catch (AEADBadTagException ex) {
+            throw new RuntimeException("Chunk " + index + " failed authentication, the data is corrupted or tampered", ex);
+        } catch (GeneralSecurityException ex) {
+            Logger.getLogger(ChunkedAesWrapper.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to decrypt chunk " + index, ex);
+        }
+    }
+
+    /**
+     * Seal the Merkle root of a checksummed index under the chunk key, call
+     * before writing the trailer
+     *
+     * @param chunkIndex - the index with all frames and the plain length
+     */
+    public void sealIndex(ChunkIndex chunkIndex) {
+        if (!chunkIndex.hasChecksums()) {
+            return;
+        }
+        byte[] nonce = CryptoSecurityUtil.getSecureBytes(NONCE_LENGTH);
+        ByteBuffer tag = ByteBuffer.allocate(TAG_LENGTH);
+        try {
+            getChunkCipher().seal(getChunkKey(), nonce, createRootAad(chunkIndex), ByteBuffer.allocate(0), tag);
+        } catch (GeneralSecurityException ex) {
+            Logger.getLogger(ChunkedAesWrapper.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to seal the chunk index", ex);
+        }
+        chunkIndex.setRootTag(ByteBuffer.allocate(ChunkIndex.ROOT_TAG_LENGTH).put(nonce).put(tag.array()).array());
+    }
+
+    /**
+     * Authenticate the Merkle root of an index read from the trailer
+     *
+     * @param chunkIndex - the index of the container
+     * @throws RuntimeException if the root tag does not match or the index
+     * does not carry the checksums the header announces
+     */
+    public void checkIndex(ChunkIndex chunkIndex) {
+        if (chunkIndex.hasChecksums() != isChecksummed()) {
+            throw new RuntimeException("The chunk index does not match the header, the data is corrupted or tampered");
+        } else if (!chunkIndex.hasChecksums()) {
+            return;
+        }
+        ByteBuffer rootTag = ByteBuffer.wrap(chunkIndex.getRootTag());
+        byte[] nonce = new byte[NONCE_LENGTH];
+        rootTag.get(nonce);
+        try {
+            getChunkCipher().open(getChunkKey(), nonce, createRootAad(chunkIndex), rootTag, ByteBuffer.allocate(0));
+        } catch (AEADBadTagException ex) {
+            throw new RuntimeException("The chunk index failed authentication, the data is corrupted or tampered", ex);
+        } catch (GeneralSecurityException ex) {
+            Logger.getLogger(ChunkedAesWrapper.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to authenticate the chunk index", ex);
+        }
+    }
+
+    /**
+     * Read the next frame body from the stream
+     *
+     * @param in - the stream positioned at a frame
+     * @return the frame body or null at the end of the stream
+     * @throws IOException
+     */
+    public byte[] readFrame(DataInputStream in) throws IOException {
+        int bodyLength;
+        try {
+            bodyLength = in.readInt();
+        } catch (EOFException ex) {
+            return null;
+        }
+        checkFrameLength(bodyLength);
+        byte[] body = new byte[bodyLength];
+        in.readFully(body);
+
+        return body;
+    }
+
+    /**
+     * Check the last chunk flag of a frame body
+     *
+     * @param body - the frame without the length prefix
+     * @return true if the frame closes the stream
+     */
+    public static boolean isLastFrame(byte[] body) {
+        return (body[0] & FRAME_FLAG_LAST) != 0;
+    }
+
+    @Override
+    public byte[] doFinalWithHeader(byte[] data) {
+        try {
+            if (state) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + data.length / chunkSize * 64 + 1024);
+                ChunkIndex chunkIndex = new ChunkIndex();
+                writeHeader(out);
+                long index = 0;
+                int offset = 0;
+                do {
+                    int length = Math.min(chunkSize, data.length - offset);
+                    byte[] frame = encryptChunk(index++, data, offset, length, offset + length == data.length);
+                    if (isChecksummed()) {
+                        long startNanos = METRICS.startTimer();
+                        ByteBuffer frameBuffer = ByteBuffer.wrap(frame);
+                        chunkIndex.add(out.size(), Crc32c.calculate(frameBuffer), MerkleTree.hashLeaf(frameBuffer));
+                        METRICS.stopTimer(MetricsRegistry.STAGE_CHECKSUM, startNanos);
+                    } else {
+                        chunkIndex.add(out.size());
+                    }
+                    out.write(frame);
+                    offset += length;
+                } while (offset < data.length);
+                if (isIndexed()) {
+                    chunkIndex.setPlainLength(data.length);
+                    sealIndex(chunkIndex);
+                    out.write(chunkIndex.toTrailer());
+                }
+
+                return out.toByteArray();
+            } else {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+                ChunkIndex chunkIndex = new ChunkIndex();
+                readHeader(in);
+                long index = 0;
+                byte[] body;
+                boolean isLast = false;
+                while (!isLast) {
+                    chunkIndex.add(data.length - in.available());
+                    if ((body = readFrame(in)) == null) {
+                        break;
+                    }
+                    out.write(decryptChunk(index++, body));
+                    isLast = isLastFrame(body);
+                }
+                chunkIndex.setPlainLength(out.size());
+                ChunkIndex trailerIndex = isIndexed() && isLast
+                        ? ChunkIndex.fromTrailer(ByteBuffer.wrap(data, data.length - in.available(), in.available())) : null;
+                if (trailerIndex != null) {
+                    checkIndex(trailerIndex);
+                }
+                if (!isLast || (isIndexed() && !chunkIndex.isMatching(trailerIndex))
+                        || (!isIndexed() && in.available() > 0)) {
+                    throw new RuntimeException("Invalid chunk sequence, the data is truncated or extended");
+                }
+
+                return out.toByteArray();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ChunkedAesWrapper.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    @Override
+    protected byte[] createHeader() {
+        try {
+            byte[] garbageByte = CryptoSecurityUtil.getSecureBytes(CryptoSecurityUtil.getRandomIntInRange(0, 768));
+            byte[] baseKeyEnc = sessionKey != null ? sessionKey.getWrappedKey() : curve.doFinalWithHeader(baseKey, true);
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+
+            byte headerFlags = (byte) (isPbkdf2Key ? flags & ~HEADER_FLAG_HKDF : flags | HEADER_FLAG_HKDF);
+            if (getChunkCipher() != ChunkCipher.AES_GCM) {
+                headerFlags |= HEADER_FLAG_CIPHER;
+            }
+            header.write(ConstantExchange.CHUNKED_VERSION);
+            header.write(headerFlags);
+            if ((headerFlags & HEADER_FLAG_CIPHER) != 0) {
+                header.write(getChunkCipher().getId());
+            }
+            header.write(ByteBuffer.allocate(Integer.BYTES).putInt(chunkSize).array());
+            header.write(ByteBuffer.allocate(Integer.BYTES).putInt(salt.length).array());
+            header.write(ByteBuffer.allocate(Integer.BYTES).putInt(garbageByte.length).array());
+            header.write(ByteBuffer.allocate(Integer.BYTES).putInt(baseKeyEnc.length).array());
+            header.write(salt);
+            header.write(garbageByte);
+            header.write(baseKeyEnc);//encrypt with EC
+
+            byte[] headerBytes = header.toByteArray();
+            headerDigest = createHeaderDigest().digest(headerBytes);
+
+            return headerBytes;
+        } catch (IOException ex) {
+            Logger.getLogger(ChunkedAesWrapper.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    @Override
+    public void readHeader(InputStream in) throws IOException {
+        MessageDigest digest = createHeaderDigest();
+        DataInputStream dataIn = new DataInputStream(new DigestInputStream(in, digest));
+        int version = dataIn.readByte();
+        if (version != ConstantExchange.CHUNKED_VERSION) {
+            throw new IOException("Invalid chunked container version " + version);
+        }
+        flags = dataIn.readByte();
+        if ((flags & ~HEADER_FLAGS_KNOWN) != 0) {
+            throw new IOException("Unknown header flags " + (flags & 0xFF) + ", the header is corrupted or from a newer version");
+        }
+        isPbkdf2Key = (flags & HEADER_FLAG_HKDF) == 0;
+        if ((flags & HEADER_FLAG_CIPHER) != 0) {
+            int cipherId = dataIn.readByte();
+            chunkCipher = ChunkCipher.fromId(cipherId);
+            if (chunkCipher == null) {
+                throw new IOException("Unknown chunk cipher " + cipherId);
+            }
+            flags &= ~HEADER_FLAG_CIPHER;
+        } else {
+            chunkCipher = ChunkCipher.AES_GCM;
+        }
+        chunkSize = dataIn.readInt();
+        int saltLength = dataIn.readInt();
+        int garbageLength = dataIn.readInt();
+        int baseKeyLength = dataIn.readInt();
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid chunk size " + chunkSize);
+        }
+        checkHeaderLengths(saltLength, garbageLength, baseKeyLength);
+        salt = new byte[saltLength];
+        dataIn.readFully(salt);
+        //read, not skipped: IOUtils skips through a buffer shared by all threads, the digest would race
+        dataIn.readFully(new byte[garbageLength]);
+        byte[] encKeyBase = new byte[baseKeyLength];
+        dataIn.readFully(encKeyBase);
+        headerDigest = digest.digest();
+        baseKey = isSession() && keyCache != null ? keyCache.unwrap(curve, encKeyBase) : curve.doFinalWithHeader(encKeyBase, false);
+        if (baseKey == null) {
+            throw new IOException("Unable to unwrap the base key, the key does not match");
+        }
+
+        generateSecretKey();
+        chunkKey = null;
+        if (isSession()) {
+            Arrays.fill(baseKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Get the key of the chunk cipher, built once per container and shared
+     * by the chunk threads
+     *
+     * @return the chunk key
+     */
+    private ChunkKey getChunkKey() {
+        ChunkKey key = chunkKey;
+        if (key == null) {
+            ChunkCipher cipher = getChunkCipher();
+            byte[] keyBytes = secretKey.getEncoded();
+            key = cipher.createKey(keyBytes, CipherCalibration.getInstance().getProvider(cipher));
+            Arrays.fill(keyBytes, (byte) 0);
+            chunkKey = key;
+        }
+
+        return key;
+    }
+
+    /**
+     * Build the additional authenticated data of a chunk, binds the chunk to
+     * its position and to the header of the container
+     *
+     * @param index - the chunk position
+     * @param frameFlags - the frame flags
+     * @return the aad bytes
+     */
+    private byte[] createChunkAad(long index, byte frameFlags) {
+        byte[] digest = headerDigest;
+        if (digest == null) {
+            throw new IllegalStateException("The header is not written or read yet");
+        }
+
+        return ByteBuffer.allocate(Long.BYTES + 1 + digest.length).putLong(index).put(frameFlags).put(digest).array();
+    }
+
+    /**
+     * Create the digest of the serialized header
+     *
+     * @return a SHA-256 digest
+     */
+    private static MessageDigest createHeaderDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException("Invalid environment, SHA-256 is not available", ex);
+        }
+    }
+
+    /**
+     * Build the additional authenticated data of the root tag, the position
+     * after the last chunk with a flag no frame carries
+     *
+     * @param chunkIndex - the index of the container
+     * @return the aad bytes
+     */
+    private byte[] createRootAad(ChunkIndex chunkIndex) {
+        byte[] chunkAad = createChunkAad(chunkIndex.getChunkCount(), ROOT_AAD_FLAG);
+        return ByteBuffer.allocate(chunkAad.length + MerkleTree.HASH_LENGTH + Long.BYTES)
+                .put(chunkAad)
+                .put(chunkIndex.getMerkleRoot()).putLong(chunkIndex.getPlainLength()).array();
+    }
+}
@@ -0,0 +1,362 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description CipherCalibration - Pick the fastest chunk cipher and provider
+ * of the host
+ * @package ie.peternagy.jcrypto.algo
+ */
+package ie.peternagy.jcrypto.algo;
+
+import ie.peternagy.jcrypto.algo.ChunkCipher.ChunkKey;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import ie.peternagy.jcrypto.util.FileAccessUtil;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * Every chunk cipher is timed with every provider implementing it (eg:
+ * SunJCE with the AES instructions, the pure Java BouncyCastle) and the
+ * result is kept in the application folder. The calibration takes a few
+ * seconds, so it only runs on request (-C) and is kept per host and JVM
+ * version. Without a calibration new containers use AES-GCM with the default
+ * providers.
+ *
+ * New containers use the fastest cipher, every cipher is decrypted with its
+ * fastest provider. BouncyCastle is only registered when a cipher picked it.
+ */
+public class CipherCalibration {
+
+    public static final String CALIBRATION_FILE_NAME = "cipher.calibration";
+    private static final String FILE_VERSION = "1";
+    private static final int SAMPLE_SIZE = 256 * 1024;
+    private static final long WINDOW_NANOS = 50 * 1000 * 1000L;
+    private static final int MIN_WINDOWS = 3;
+    private static final int MAX_WINDOWS = 20;
+    private static final double STABLE_RATIO = 1.05;
+    private static volatile CipherCalibration instance;
+    private final ChunkCipher preferred;
+    private final Map<ChunkCipher, String> providers;
+    private final Map<ChunkCipher, Double> throughputs;
+    private final Set<String> measuredProviders = new TreeSet<>();
+
+    private CipherCalibration(Map<ChunkCipher, String> providers, Map<ChunkCipher, Double> throughputs) {
+        this.providers = providers;
+        this.throughputs = throughputs;
+        ChunkCipher fastest = ChunkCipher.AES_GCM;
+        for (Map.Entry<ChunkCipher, Double> entry : throughputs.entrySet()) {
+            if (entry.getValue() > throughputs.getOrDefault(fastest, 0.0)) {
+                fastest = entry.getKey();
+            }
+        }
+        this.preferred = fastest;
+    }
+
+    /**
+     * Get the calibration of the host, read from the application folder or
+     * the AES-GCM defaults when the host is not calibrated
+     *
+     * @return the calibration
+     */
+    public static CipherCalibration getInstance() {
+        if (instance == null) {
+            synchronized (CipherCalibration.class) {
+                if (instance == null) {
+                    CipherCalibration calibration = load(getCalibrationFile());
+                    instance = calibration != null ? calibration
+                            : new CipherCalibration(new EnumMap<>(ChunkCipher.class), new EnumMap<>(ChunkCipher.class));
+                }
+            }
+        }
+
+        return instance;
+    }
+
+    /**
+     * Measure again and replace the saved calibration (eg: after a hardware
+     * change)
+     *
+     * @return the new calibration
+     */
+    public static synchronized CipherCalibration recalibrate() {
+        CipherCalibration calibration = calibrate();
+        calibration.trySave(getCalibrationFile());
+        instance = calibration;
+
+        return calibration;
+    }
+
+    /**
+     * Time every cipher with every provider implementing it, BouncyCastle
+     * included
+     *
+     * @return the calibration, not saved
+     */
+    public static CipherCalibration calibrate() {
+        Map<ChunkCipher, String> providers = new EnumMap<>(ChunkCipher.class);
+        Map<ChunkCipher, Double> throughputs = new EnumMap<>(ChunkCipher.class);
+        Set<String> measured = new TreeSet<>();
+        for (ChunkCipher cipher : ChunkCipher.values()) {
+            for (Provider provider : getCandidateProviders()) {
+                if (!cipher.isAvailable(provider)) {
+                    continue;
+                }
+                double throughput = measure(cipher, provider);
+                if (throughput > 0) {
+                    measured.add(provider.getName());
+                }
+                if (throughput > throughputs.getOrDefault(cipher, 0.0)) {
+                    throughputs.put(cipher, throughput);
+                    providers.put(cipher, provider.getName());
+                }
+            }
+        }
+        CipherCalibration calibration = new CipherCalibration(providers, throughputs);
+        calibration.measuredProviders.addAll(measured);
+
+        return calibration;
+    }
+
+    /**
+     * Read a saved calibration
+     *
+     * @param file - the calibration file
+     * @return the calibration or null if missing, unreadable or measured on
+     * another JVM
+     */
+    public static CipherCalibration load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            properties.load(in);
+        } catch (IOException ex) {
+            Logger.getLogger(CipherCalibration.class.getName()).log(Level.WARNING, "Unable to read " + file, ex);
+            return null;
+        }
+        if (!FILE_VERSION.equals(properties.getProperty("version")) || !getHostId().equals(properties.getProperty("host"))) {
+            return null;
+        }
+
+        Map<ChunkCipher, String> providers = new EnumMap<>(ChunkCipher.class);
+        Map<ChunkCipher, Double> throughputs = new EnumMap<>(ChunkCipher.class);
+        for (ChunkCipher cipher : ChunkCipher.values()) {
+            String provider = properties.getProperty(cipher.name() + ".provider");
+            String throughput = properties.getProperty(cipher.name() + ".mbps");
+            if (provider == null || throughput == null
+                    || (Security.getProvider(provider) == null && !BouncyCastleProvider.PROVIDER_NAME.equals(provider))) {
+                continue;
+            }
+            try {
+                throughputs.put(cipher, Double.parseDouble(throughput));
+                providers.put(cipher, provider);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        return new CipherCalibration(providers, throughputs);
+    }
+
+    /**
+     * Write the calibration
+     *
+     * @param file - the calibration file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("version", FILE_VERSION);
+        properties.setProperty("host", getHostId());
+        for (Map.Entry<ChunkCipher, String> entry : providers.entrySet()) {
+            properties.setProperty(entry.getKey().name() + ".provider", entry.getValue());
+            properties.setProperty(entry.getKey().name() + ".mbps", String.format("%.1f", throughputs.get(entry.getKey())));
+        }
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            properties.store(out, "jCrypto chunk cipher calibration, delete to measure again");
+        }
+    }
+
+    /**
+     * Get the cipher of new containers
+     *
+     * @return the fastest available cipher
+     */
+    public ChunkCipher getPreferred() {
+        return preferred;
+    }
+
+    /**
+     * Get the fastest provider of a cipher, BouncyCastle is registered on
+     * first use
+     *
+     * @param cipher - the chunk cipher
+     * @return the provider or null for the default providers
+     */
+    public Provider getProvider(ChunkCipher cipher) {
+        String name = providers.get(cipher);
+        if (BouncyCastleProvider.PROVIDER_NAME.equals(name)) {
+            return CryptoSecurityUtil.getBouncyCastleProvider();
+        }
+
+        return name == null ? null : Security.getProvider(name);
+    }
+
+    /**
+     * Get the measured encryption speed of a cipher
+     *
+     * @param cipher - the chunk cipher
+     * @return the MB/s of the fastest provider, 0 if not available
+     */
+    public double getThroughput(ChunkCipher cipher) {
+        return throughputs.getOrDefault(cipher, 0.0);
+    }
+
+    /**
+     * Get the providers timed by calibrate(), empty for a loaded calibration
+     *
+     * @return the provider names
+     */
+    public Set<String> getMeasuredProviders() {
+        return Collections.unmodifiableSet(measuredProviders);
+    }
+
+    /**
+     * Print the cipher speeds and the pick
+     */
+    public void printReport() {
+        for (ChunkCipher cipher : ChunkCipher.values()) {
+            if (providers.containsKey(cipher)) {
+                System.out.printf("%-18s %-8s %8.1f MB/s%s\n", cipher, providers.get(cipher), getThroughput(cipher), cipher == preferred ? "  <- new containers" : "");
+            } else {
+                System.out.printf("%-18s not available\n", cipher);
+            }
+        }
+    }
+
+    public static File getCalibrationFile() {
+        return new File(FileAccessUtil.getUserHome(true), CALIBRATION_FILE_NAME);
+    }
+
+    /**
+     * Save without failing the caller, the next run measures again
+     *
+     * @param file - the calibration file
+     */
+    private void trySave(File file) {
+        try {
+            save(file);
+        } catch (IOException ex) {
+            Logger.getLogger(CipherCalibration.class.getName()).log(Level.WARNING, "Unable to save " + file, ex);
+        }
+    }
+
+    /**
+     * Identify the JVM and CPU the speeds were measured on
+     *
+     * @return the host id
+     */
+    private static String getHostId() {
+        return System.getProperty("java.vm.version") + "/" + System.getProperty("os.arch") + "/" + Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Get the providers to time: the registered ones and BouncyCastle, which
+     * is only registered on first use, so it is added unregistered when the
+     * EC code has not run yet
+     *
+     * @return the candidate providers
+     */
+    private static List<Provider> getCandidateProviders() {
+        List<Provider> candidates = new ArrayList<>(Arrays.asList(Security.getProviders()));
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            candidates.add(new BouncyCastleProvider());
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Encrypt samples in short windows until the speed stops improving, so
+     * the JIT has compiled (and intrinsified) the cipher code before the best
+     * window is taken
+     *
+     * @param cipher - the chunk cipher
+     * @param provider - the provider to time
+     * @return the MB/s or 0 if the provider fails
+     */
+    private static double measure(ChunkCipher cipher, Provider provider) {
+        try {
+            ChunkKey key = cipher.createKey(CryptoSecurityUtil.getSecureBytes(32), provider);
+            ByteBuffer plain = ByteBuffer.allocateDirect(SAMPLE_SIZE);
+            ByteBuffer out = ByteBuffer.allocateDirect(SAMPLE_SIZE + ChunkCipher.TAG_LENGTH);
+            //chunk index, frame flags and header digest, as ChunkedAesWrapper
+            byte[] aad = new byte[Long.BYTES + 1 + 32];
+            double best = 0;
+            for (int window = 0; window < MAX_WINDOWS; window++) {
+                long bytes = 0;
+                long startTime = System.nanoTime();
+                long elapsed;
+                do {
+                    sealSample(cipher, key, aad, plain, out);
+                    bytes += SAMPLE_SIZE;
+                    elapsed = System.nanoTime() - startTime;
+                } while (elapsed < WINDOW_NANOS);
+
+                double throughput = bytes / (1024.0 * 1024.0) / (elapsed / 1e9);
+                if (window >= MIN_WINDOWS && throughput < best * STABLE_RATIO) {
+                    return Math.max(best, throughput);
+                }
+                best = Math.max(best, throughput);
+            }
+
+            return best;
+        } catch (GeneralSecurityException | RuntimeException ex) {
+            Logger.getLogger(CipherCalibration.class.getName()).log(Level.FINE, cipher + " failed with " + provider.getName(), ex);
+            return 0;
+        }
+    }
+
+    private static void sealSample(ChunkCipher cipher, ChunkKey key, byte[] aad, ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+        plain.clear();
+        out.clear();
+        cipher.seal(key, CryptoSecurityUtil.getSecureBytes(12), aad, plain, out);
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description DataKeyPool - Bounded pool of data keys wrapped ahead of use
+ * @package ie.peternagy.jcrypto.algo
+ */
+package ie.peternagy.jcrypto.algo;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A low priority producer thread keeps up to depth random base keys with
+ * their EC wrapped form ready, so an encryption takes its key from the queue
+ * instead of running the ECIES wrap on the request path. Each key is used by
+ * one container only. An empty pool falls back to wrapping on the caller
+ * thread and counts a miss.
+ *
+ * The keys left in the pool are zeroed by shutdown.
+ */
+public class DataKeyPool {
+
+    public static final int DEFAULT_DEPTH = 32;
+    private final BlockingQueue<SessionKey> keys;
+    private final int depth;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private Thread producer;
+    private volatile boolean isRunning;
+
+    public DataKeyPool() {
+        this(DEFAULT_DEPTH);
+    }
+
+    /**
+     * Create a stopped pool
+     *
+     * @param depth - the number of keys kept ready
+     */
+    public DataKeyPool(int depth) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("Invalid key pool depth " + depth);
+        }
+        this.depth = depth;
+        this.keys = new ArrayBlockingQueue<>(depth);
+    }
+
+    /**
+     * Start filling the pool in the background
+     */
+    public synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+        isRunning = true;
+        producer = new Thread(this::produceKeys, "jcrypto-key-pool");
+        producer.setDaemon(true);
+        producer.setPriority(Thread.MIN_PRIORITY);
+        producer.start();
+    }
+
+    /**
+     * Stop the producer and zero the keys left in the pool
+     */
+    public synchronized void shutdown() {
+        isRunning = false;
+        if (producer != null) {
+            producer.interrupt();
+            try {
+                producer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            producer = null;
+        }
+        SessionKey key;
+        while ((key = keys.poll()) != null) {
+            key.destroy();
+        }
+    }
+
+    /**
+     * Take a ready key, wraps one on the calling thread if the pool is empty
+     *
+     * @param curve - initialized curve of the caller, used on a miss only
+     * @return a key for one container, destroy it once the header is written
+     */
+    public SessionKey take(EllipticCurveWrapper curve) {
+        SessionKey key = keys.poll();
+        if (key != null) {
+            hits.increment();
+            return key;
+        }
+        misses.increment();
+
+        return SessionKey.create(curve);
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Get the number of keys ready to take
+     *
+     * @return the ready key count
+     */
+    public int getReady() {
+        return keys.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the share of takes served from the pool
+     *
+     * @return the hit rate between 0 and 1, 0 before the first take
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Wrap keys until stopped, blocks while the pool is full
+     */
+    private void produceKeys() {
+        EllipticCurveWrapper curve = new EllipticCurveWrapper();
+        while (isRunning) {
+            SessionKey key = null;
+            try {
+                key = SessionKey.create(curve);
+                keys.put(key);
+            } catch (InterruptedException ex) {
+                key.destroy();
+                return;
+            } catch (RuntimeException ex) {
+                Logger.getLogger(DataKeyPool.class.getName()).log(Level.SEVERE, "Unable to fill the key pool", ex);
+                isRunning = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description EllipticCurveKeyRing - Process wide cache of the parsed EC
+ * key pairs, indexed by key id
+ * @package ie.peternagy.jcrypto.algo
+ */
+package ie.peternagy.jcrypto.algo;
+
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import ie.peternagy.jcrypto.util.CryptoSignatureUtil;
+import ie.peternagy.jcrypto.util.FileAccessUtil;
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * The default pair is read from id_ecdsa and id_ecdsa.pub, further pairs
+ * (eg: rotated keys) from id_ecdsa_[name] and id_ecdsa_[name].pub in the
+ * application folder. The files are read and parsed once per process.
+ *
+ * The keys and the default key are published together as one immutable
+ * snapshot, so a reload never shows readers a half filled ring.
+ */
+public class EllipticCurveKeyRing {
+
+    public static final String PRIVATE_KEY_FILE_NAME = "id_ecdsa";
+    public static final String PUBLIC_KEY_SUFFIX = ".pub";
+    private volatile Snapshot snapshot;
+
+    private EllipticCurveKeyRing() {
+    }
+
+    /**
+     * Get the process wide key ring
+     *
+     * @return the key ring
+     */
+    public static EllipticCurveKeyRing getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Get the default key pair, loads the ring on first use
+     *
+     * @return the default key or null if there is none
+     */
+    public KeyEntry getDefaultKey() {
+        return ensureLoaded().defaultKey;
+    }
+
+    /**
+     * Look up a key pair by its id
+     *
+     * @param keyId - the sha256 of the private key
+     * @return the key or null if unknown
+     */
+    public KeyEntry getKey(byte[] keyId) {
+        Snapshot current = ensureLoaded();
+        return keyId == null ? null : current.keys.get(Hex.encodeHexString(keyId));
+    }
+
+    /**
+     * Get the number of loaded key pairs
+     *
+     * @return the key count
+     */
+    public int size() {
+        return ensureLoaded().keys.size();
+    }
+
+    /**
+     * Read the keys again from disk, readers keep the previous keys until the
+     * new ones are complete
+     */
+    public synchronized void reload() {
+        Map<String, KeyEntry> keys = new HashMap<>();
+        KeyEntry defaultKey = null;
+        File[] keyFiles = new File(FileAccessUtil.getUserHome(true)).listFiles((dir, name)
+                -> name.startsWith(PRIVATE_KEY_FILE_NAME) && !name.endsWith(PUBLIC_KEY_SUFFIX));
+
+        if (keyFiles != null) {
+            for (File privateFile : keyFiles) {
+                KeyEntry entry = loadKey(privateFile, new File(privateFile.getPath() + PUBLIC_KEY_SUFFIX));
+                if (entry == null) {
+                    continue;
+                }
+                keys.put(Hex.encodeHexString(entry.getKeyId()), entry);
+                if (PRIVATE_KEY_FILE_NAME.equals(privateFile.getName())) {
+                    defaultKey = entry;
+                }
+            }
+        }
+        snapshot = new Snapshot(Collections.unmodifiableMap(keys), defaultKey);
+    }
+
+    /**
+     * Load the ring once
+     *
+     * @return the current keys
+     */
+    private Snapshot ensureLoaded() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                if (snapshot == null) {
+                    reload();
+                }
+                current = snapshot;
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * Read and parse a hex encoded key pair
+     *
+     * @param privateFile - the private key file
+     * @param publicFile - the public key file, optional
+     * @return the key entry or null if unreadable
+     */
+    private KeyEntry loadKey(File privateFile, File publicFile) {
+        try {
+            KeyFactory fact = KeyFactory.getInstance("ECDSA", CryptoSecurityUtil.getBouncyCastleProvider());
+            byte[] privateBytes = Hex.decodeHex(new String(FileAccessUtil.readFromDisk(privateFile)).toCharArray());
+            PrivateKey privateKey = fact.generatePrivate(new PKCS8EncodedKeySpec(privateBytes));
+            PublicKey publicKey = null;
+            if (publicFile.isFile()) {
+                byte[] publicBytes = Hex.decodeHex(new String(FileAccessUtil.readFromDisk(publicFile)).toCharArray());
+                publicKey = fact.generatePublic(new X509EncodedKeySpec(publicBytes));
+            }
+
+            return new KeyEntry(privateKey, publicKey);
+        } catch (GeneralSecurityException | DecoderException | RuntimeException ex) {
+            Logger.getLogger(EllipticCurveKeyRing.class.getName()).log(Level.SEVERE, "Unable to load key " + privateFile, ex);
+        }
+
+        return null;
+    }
+
+    private static class Holder {
+
+        private static final EllipticCurveKeyRing INSTANCE = new EllipticCurveKeyRing();
+    }
+
+    /**
+     * The keys of one load, never changed once published
+     */
+    private static class Snapshot {
+
+        private final Map<String, KeyEntry> keys;
+        private final KeyEntry defaultKey;
+
+        private Snapshot(Map<String, KeyEntry> keys, KeyEntry defaultKey) {
+            this.keys = keys;
+            this.defaultKey = defaultKey;
+        }
+    }
+
+    /**
+     * Immutable key pair with its memoized id
+     */
+    public static class KeyEntry {
+
+        private final PrivateKey privateKey;
+        private final PublicKey publicKey;
+        private final byte[] keyId;
+
+        public KeyEntry(PrivateKey privateKey, PublicKey publicKey) {
+            this.privateKey = privateKey;
+            this.publicKey = publicKey;
+            this.keyId = CryptoSignatureUtil.calculateSHA256(privateKey.getEncoded());
+        }
+
+        public PrivateKey getPrivateKey() {
+            return privateKey;
+        }
+
+        public PublicKey getPublicKey() {
+            return publicKey;
+        }
+
+        public byte[] getKeyId() {
+            return keyId.clone();
+        }
+    }
+}
@@ -23,74 +23,69 @@
  */
 package ie.peternagy.jcrypto.algo;
 
+import ie.peternagy.jcrypto.util.CipherPool;
 import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
 import ie.peternagy.jcrypto.util.CryptoSignatureUtil;
 import ie.peternagy.jcrypto.util.FileAccessUtil;
+import ie.peternagy.jcrypto.util.MetricsRegistry;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.Security;
 import java.security.spec.ECGenParameterSpec;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.PKCS8EncodedKeySpec;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang3.ArrayUtils;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 public class EllipticCurveWrapper {
 
-    private final String PUBLIC_KEY_FILE_NAME = "id_ecdsa.pub";
-    private final String PRIVATE_KEY_FILE_NAME = "id_ecdsa";
+    private static final MetricsRegistry METRICS = MetricsRegistry.getInstance();
     private final String ALGORITHM_NAME = "ECIES";
     private final String EC_CURVE = "secp521r1";
     private PrivateKey privateKey;
     private PublicKey publicKey;
-    private Cipher ecCipher;
+    private byte[] keyId;
 
+    /**
+     * Create a wrapper of the default keys
+     *
+     * The ECIES cipher is taken from the calling thread (see CipherPool), so
+     * once the keys are loaded one instance can be shared between threads
+     */
     public EllipticCurveWrapper() {
-        Security.addProvider(new BouncyCastleProvider());
-        try {
-            tryLoadKeys();
-            ecCipher = Cipher.getInstance(ALGORITHM_NAME, "BC");
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | NoSuchProviderException ex) {
-            Logger.getLogger(EllipticCurveWrapper.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        tryLoadKeys();
     }
 
     /**
-     * Initialize the cipher for task
+     * Initialize the cipher of the current thread for task
+     *
+     * ECIES draws a new ephemeral key on every encrypt init, so the init
+     * cannot be skipped between messages
      *
      * @param isEncrypt
+     * @param decryptKey - the private key to decrypt with
+     * @return the initialized cipher
      */
-    private void initCipher(boolean isEncrypt) {
-        try {
-            if (isEncrypt) {
-                ecCipher.init(Cipher.ENCRYPT_MODE, publicKey);
-            } else {
-                ecCipher.init(Cipher.DECRYPT_MODE, privateKey);
-            }
-        } catch (InvalidKeyException ex) {
-            Logger.getLogger(EllipticCurveWrapper.class.getName()).log(Level.SEVERE, null, ex);
+    private Cipher initCipher(boolean isEncrypt, PrivateKey decryptKey) throws InvalidKeyException {
+        Cipher ecCipher = CipherPool.get(ALGORITHM_NAME, CryptoSecurityUtil.getBouncyCastleProvider());
+        if (isEncrypt) {
+            ecCipher.init(Cipher.ENCRYPT_MODE, publicKey, CryptoSecurityUtil.getSecureRandom());
+        } else {
+            ecCipher.init(Cipher.DECRYPT_MODE, decryptKey);
         }
+
+        return ecCipher;
     }
 
     /**
@@ -101,11 +96,39 @@ public class EllipticCurveWrapper {
      * @return the modified bytes
      */
     public byte[] doFinal(byte[] data, boolean isEncrypt) {
+        return doFinal(data, isEncrypt, privateKey);
+    }
+
+    /**
+     * Crypt the data with a specific private key on decrypt
+     *
+     * @param data - the bytes to work with
+     * @param isEncrypt
+     * @param decryptKey - the private key to decrypt with
+     * @return the modified bytes
+     */
+    private byte[] doFinal(byte[] data, boolean isEncrypt, PrivateKey decryptKey) {
+        return doFinal(data, 0, data.length, isEncrypt, decryptKey);
+    }
+
+    /**
+     * Crypt a region of the data with a specific private key on decrypt
+     *
+     * @param data - the buffer holding the bytes to work with
+     * @param offset - the region start in data
+     * @param length - the region length
+     * @param isEncrypt
+     * @param decryptKey - the private key to decrypt with
+     * @return the modified bytes
+     */
+    private byte[] doFinal(byte[] data, int offset, int length, boolean isEncrypt, PrivateKey decryptKey) {
+        long startNanos = METRICS.startTimer();
         try {
-            initCipher(isEncrypt);
-            return ecCipher.doFinal(data);
-        } catch (IllegalBlockSizeException | BadPaddingException ex) {
+            return initCipher(isEncrypt, decryptKey).doFinal(data, offset, length);
+        } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException ex) {
             Logger.getLogger(EllipticCurveWrapper.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            METRICS.stopTimer(isEncrypt ? MetricsRegistry.STAGE_EC_WRAP : MetricsRegistry.STAGE_EC_UNWRAP, startNanos);
         }
         return null;
     }
@@ -123,9 +146,27 @@ public class EllipticCurveWrapper {
             
             return ArrayUtils.addAll(rawHeader, outData);
         }else{
-            byte[] content = extractRawHeader(data);
-            return doFinal(content, false);
+            return doFinalWithHeader(data, 0, data.length, false);
+        }
+    }
+
+    /**
+     * Decrypt a region holding data with signature(header), the region is
+     * parsed and decrypted in place
+     *
+     * @param data - the buffer holding the region
+     * @param offset - the region start in data
+     * @param length - the region length
+     * @param isEncrypt - has to be false, encryption needs the whole array
+     * @return the decrypted bytes
+     */
+    public byte[] doFinalWithHeader(byte[] data, int offset, int length, boolean isEncrypt) {
+        if (isEncrypt) {
+            throw new IllegalArgumentException("Region encryption is not supported");
         }
+        int contentOffset = extractRawHeader(data, offset, length);
+        EllipticCurveKeyRing.KeyEntry key = EllipticCurveKeyRing.getInstance().getKey(extractKeyId(data, offset));
+        return doFinal(data, contentOffset, offset + length - contentOffset, false, key.getPrivateKey());
     }
 
     /**
@@ -136,7 +177,6 @@ public class EllipticCurveWrapper {
      */
     public byte[] createRawHeader(long dataCrc) {
         try {
-            byte[] keyId = getKeyId();
             ByteArrayOutputStream header = new ByteArrayOutputStream();
 
             header.write((byte) 100);//version
@@ -155,25 +195,74 @@ public class EllipticCurveWrapper {
     /**
      * Extract header parameters from data
      * @param data - content with header signature
-     * @return 
+     * @return the content bytes
      */
     public byte[] extractRawHeader(byte[] data){
-        int version = data[0];
-        int currentPosition = 1;
-        int keyIdSize = ByteBuffer.wrap(ArrayUtils.subarray(data, currentPosition, currentPosition +Integer.BYTES)).getInt();
-        currentPosition += Integer.BYTES;
-        long crcSum = ByteBuffer.wrap(ArrayUtils.subarray(data, currentPosition, currentPosition + Long.BYTES)).getLong();
-        currentPosition += Long.BYTES;
-        byte[] keyId = ArrayUtils.subarray(data, currentPosition, currentPosition + keyIdSize);
-        currentPosition += keyIdSize;
-        byte[] content = ArrayUtils.subarray(data, currentPosition, data.length);
+        int contentOffset = extractRawHeader(data, 0, data.length);
+        
+        return ArrayUtils.subarray(data, contentOffset, data.length);
+    }
+    
+    /**
+     * Check the header of a region in place, the content is not copied
+     * @param data - the buffer holding content with header signature
+     * @param offset - the region start in data
+     * @param length - the region length
+     * @return the offset of the first content byte in data
+     */
+    public int extractRawHeader(byte[] data, int offset, int length){
+        ByteBuffer header = ByteBuffer.wrap(data, offset, length);
+        int version = header.get();
+        int keyIdSize = header.getInt();
+        long crcSum = header.getLong();
+        checkKeyIdSize(keyIdSize);
+        byte[] keyId = new byte[keyIdSize];
+        header.get(keyId);
+        int contentOffset = header.position();
         
-        if(version != 100 || !Arrays.equals(keyId, getKeyId()) || CryptoSignatureUtil.calculateCrc32(content) != crcSum){
-            String reason = version != 100 ? "Invalid version " : !Arrays.equals(keyId, getKeyId()) ? " Invalid key id" : " Invalid data checksum";
+        boolean isKnownKey = EllipticCurveKeyRing.getInstance().getKey(keyId) != null;
+        
+        if(version != 100 || !isKnownKey || CryptoSignatureUtil.calculateCrc32(data, contentOffset, offset + length - contentOffset) != crcSum){
+            String reason = version != 100 ? "Invalid version " : !isKnownKey ? " Invalid key id" : " Invalid data checksum";
             throw new RuntimeException("EC headers do not match - decrypt " + reason);
         }
         
-        return content;
+        return contentOffset;
+    }
+    
+    /**
+     * Extract the key id from the header
+     * @param data - content with header signature
+     * @return the key id bytes
+     */
+    public byte[] extractKeyId(byte[] data){
+        return extractKeyId(data, 0);
+    }
+    
+    /**
+     * Extract the key id from a header inside a buffer
+     * @param data - the buffer holding content with header signature
+     * @param offset - the header start in data
+     * @return the key id bytes
+     */
+    public byte[] extractKeyId(byte[] data, int offset){
+        int keyIdSize = ByteBuffer.wrap(data, offset + 1, Integer.BYTES).getInt();
+        checkKeyIdSize(keyIdSize);
+        int keyIdStart = offset + 1 + Integer.BYTES + Long.BYTES;
+        
+        return ArrayUtils.subarray(data, keyIdStart, keyIdStart + keyIdSize);
+    }
+
+    /**
+     * Check the key id length read from a header before it is allocated
+     * @param keyIdSize - the key id length field
+     */
+    private static void checkKeyIdSize(int keyIdSize) {
+        try {
+            AesWrapper.checkHeaderLengths(keyIdSize);
+        } catch (IOException ex) {
+            throw new RuntimeException("EC headers do not match - decrypt " + ex.getMessage(), ex);
+        }
     }
 
     /**
@@ -187,29 +276,27 @@ public class EllipticCurveWrapper {
         
         try {
             ECGenParameterSpec ecGenSpec = new ECGenParameterSpec(EC_CURVE);
-            KeyPairGenerator g = KeyPairGenerator.getInstance(ALGORITHM_NAME);
+            KeyPairGenerator g = KeyPairGenerator.getInstance(ALGORITHM_NAME, CryptoSecurityUtil.getBouncyCastleProvider());
             g.initialize(ecGenSpec, CryptoSecurityUtil.getSecureRandom());
             KeyPair pair = g.generateKeyPair();
             privateKey = pair.getPrivate();
             publicKey = pair.getPublic();
 
             writeKeys();
+            EllipticCurveKeyRing.getInstance().reload();
+            tryLoadKeys();
         } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException ex) {
             Logger.getLogger(EllipticCurveWrapper.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
 
     /**
-     * Get the sha256 bytes of private key
+     * Get the sha256 bytes of private key (memoized by the key ring)
      *
      * @return
      */
     public byte[] getKeyId() {
-        if (privateKey != null) {
-            return CryptoSignatureUtil.calculateSHA256(privateKey.getEncoded());
-        }
-
-        return null;
+        return keyId;
     }
 
     /**
@@ -228,17 +315,14 @@ public class EllipticCurveWrapper {
     }
 
     /**
-     * Try load the keys from disk
+     * Try load the default keys from the process wide key ring
      */
     public void tryLoadKeys() {
-        try {
-            byte[] publicBytes = Hex.decodeHex(new String(FileAccessUtil.readFromDisk(getKeyFilePath(false))).toCharArray());
-            byte[] privateBytes = Hex.decodeHex(new String(FileAccessUtil.readFromDisk(getKeyFilePath(true))).toCharArray());
-            KeyFactory fact = KeyFactory.getInstance("ECDSA", "BC");
-            publicKey = fact.generatePublic(new X509EncodedKeySpec(publicBytes));
-            privateKey = fact.generatePrivate(new PKCS8EncodedKeySpec(privateBytes));
-        } catch (NoSuchAlgorithmException | NoSuchProviderException | InvalidKeySpecException | DecoderException ex) {
-            Logger.getLogger(EllipticCurveWrapper.class.getName()).log(Level.SEVERE, null, ex);
+        EllipticCurveKeyRing.KeyEntry key = EllipticCurveKeyRing.getInstance().getDefaultKey();
+        if (key != null) {
+            privateKey = key.getPrivateKey();
+            publicKey = key.getPublicKey();
+            keyId = key.getKeyId();
         }
     }
 
@@ -260,6 +344,7 @@ public class EllipticCurveWrapper {
      * @return the string path
      */
     protected String getKeyFilePath(boolean isPrivate) {
-        return String.format("%s%s%s", FileAccessUtil.getUserHome(true), File.separator, isPrivate ? PRIVATE_KEY_FILE_NAME : PUBLIC_KEY_FILE_NAME);
+        return String.format("%s%s%s%s", FileAccessUtil.getUserHome(true), File.separator, 
+                EllipticCurveKeyRing.PRIVATE_KEY_FILE_NAME, isPrivate ? "" : EllipticCurveKeyRing.PUBLIC_KEY_SUFFIX);
     }
 }
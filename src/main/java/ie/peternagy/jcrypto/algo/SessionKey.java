@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description SessionKey - Base key wrapped once with EC and shared by a
+ * batch of containers
+ * @package ie.peternagy.jcrypto.algo
+ */
+package ie.peternagy.jcrypto.algo;
+
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import java.util.Arrays;
+
+/**
+ * Every container of a batch carries the same EC wrapped base key and its
+ * own random salt, the file key is HKDF(base key, salt) as for single files.
+ * So the ECIES encryption runs once per batch, and decryption once per
+ * batch through the unwrap cache of the run (see SessionKeyCache), while
+ * each file keeps a unique key and stays readable on its own.
+ *
+ * A leaked base key exposes the whole batch instead of one file, the key
+ * is zeroed by destroy when the batch is done. A key used by a single
+ * container (see DataKeyPool) is a plain data key wrapped ahead of time.
+ */
+public class SessionKey {
+
+    public static final int BASE_KEY_LENGTH = 64;
+    private final byte[] baseKey;
+    private final byte[] wrappedKey;
+    private volatile boolean isDestroyed;
+
+    private SessionKey(byte[] baseKey, byte[] wrappedKey) {
+        this.baseKey = baseKey;
+        this.wrappedKey = wrappedKey;
+    }
+
+    /**
+     * Create a random session key and wrap it with the EC public key
+     *
+     * @param curve - initialized curve
+     * @return the session key
+     */
+    public static SessionKey create(EllipticCurveWrapper curve) {
+        byte[] baseKey = CryptoSecurityUtil.getSecureBytes(BASE_KEY_LENGTH);
+        byte[] wrappedKey = curve.doFinalWithHeader(baseKey, true);
+        if (wrappedKey == null) {
+            throw new RuntimeException("Unable to wrap the session key, check the EC keys");
+        }
+
+        return new SessionKey(baseKey, wrappedKey);
+    }
+
+    /**
+     * Get a copy of the base key
+     *
+     * @return the base key
+     * @throws IllegalStateException if the key is destroyed
+     */
+    public byte[] getBaseKey() {
+        if (isDestroyed) {
+            throw new IllegalStateException("The session key is destroyed");
+        }
+        return baseKey.clone();
+    }
+
+    /**
+     * Get the EC wrapped base key, written to every container header
+     *
+     * @return the wrapped key
+     */
+    public byte[] getWrappedKey() {
+        return wrappedKey.clone();
+    }
+
+    /**
+     * Zero the base key, the containers already written stay readable
+     */
+    public void destroy() {
+        isDestroyed = true;
+        Arrays.fill(baseKey, (byte) 0);
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description SessionKeyCache - Unwrapped session base keys of one run
+ * @package ie.peternagy.jcrypto.algo
+ */
+package ie.peternagy.jcrypto.algo;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Owned by one directory or verify run, so each wrapped session key is
+ * decrypted once per run and the base keys do not outlive it. The cached
+ * arrays are never handed out or changed, callers get copies, so clearing
+ * the cache only drops the entries and never races with an unwrap.
+ */
+public class SessionKeyCache {
+
+    private static final int MAX_CACHED_KEYS = 256;
+    private final Map<ByteBuffer, byte[]> unwrappedKeys = new ConcurrentHashMap<>();
+
+    /**
+     * Unwrap a session base key, once per wrapped key
+     *
+     * @param curve - initialized curve holding the private key
+     * @param wrappedKey - the EC wrapped base key of a container header
+     * @return a copy of the base key or null if it does not unwrap
+     */
+    public byte[] unwrap(EllipticCurveWrapper curve, byte[] wrappedKey) {
+        if (unwrappedKeys.size() >= MAX_CACHED_KEYS) {
+            clear();
+        }
+        byte[] baseKey = unwrappedKeys.computeIfAbsent(ByteBuffer.wrap(wrappedKey.clone()),
+                key -> curve.doFinalWithHeader(wrappedKey, false));
+
+        return baseKey == null ? null : baseKey.clone();
+    }
+
+    /**
+     * Drop the unwrapped keys
+     */
+    public void clear() {
+        unwrappedKeys.clear();
+    }
+
+    public int size() {
+        return unwrappedKeys.size();
+    }
+}
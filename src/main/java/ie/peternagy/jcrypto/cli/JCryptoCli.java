@@ -23,11 +23,37 @@
  */
 package ie.peternagy.jcrypto.cli;
 
+import com.amazonaws.services.s3.AmazonS3;
 import ie.peternagy.jcrypto.algo.AesWrapper;
+import ie.peternagy.jcrypto.algo.CipherCalibration;
+import ie.peternagy.jcrypto.algo.DataKeyPool;
 import ie.peternagy.jcrypto.algo.EllipticCurveWrapper;
+import ie.peternagy.jcrypto.module.crypto.DirectoryCrypto;
 import ie.peternagy.jcrypto.module.crypto.FileCrypto;
+import ie.peternagy.jcrypto.module.crypto.FileStateIndex;
+import ie.peternagy.jcrypto.module.crypto.FileVerifier;
+import ie.peternagy.jcrypto.module.config.IConfigHandler;
 import ie.peternagy.jcrypto.module.config.JCryptoConfig;
+import ie.peternagy.jcrypto.module.config.S3ConfigHandler;
+import ie.peternagy.jcrypto.module.daemon.CryptoDaemon;
+import ie.peternagy.jcrypto.module.daemon.DaemonClient;
+import ie.peternagy.jcrypto.module.metrics.MetricsReporter;
+import ie.peternagy.jcrypto.module.storage.DedupBackup;
+import ie.peternagy.jcrypto.module.storage.S3Wrapper;
+import ie.peternagy.jcrypto.util.ConstantExchange;
 import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.cli.CommandLine;
@@ -35,10 +61,13 @@ import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
+import org.apache.commons.io.FilenameUtils;
 
 public class JCryptoCli {
 
     private static boolean isVerbose = false;
+    private static boolean isStdoutData = false;
+    private final static String STREAM_PATH = "-";
     private final static Options OPTIONS = buildCliOptions();
 
     public static void main(String[] args){
@@ -47,11 +76,18 @@ public class JCryptoCli {
             CommandLineParser parser = new DefaultParser();
             CommandLine line = parser.parse(OPTIONS, args);
             isVerbose = line.hasOption('v');
+            MetricsReporter metricsReporter = startMetrics(line);
 
-            routeParams(line);
+            try {
+                routeParams(line);
+            } finally {
+                if (metricsReporter != null) {
+                    metricsReporter.stop();
+                }
+            }
             
             if (isVerbose) {
-                System.out.printf("\n Process finished in %dms\n\n", System.currentTimeMillis() - startTime);
+                (isStdoutData ? System.err : System.out).printf("\n Process finished in %dms\n\n", System.currentTimeMillis() - startTime);
             }
         } catch (org.apache.commons.cli.ParseException ex) {
             printCliHelp();
@@ -68,14 +104,41 @@ public class JCryptoCli {
     private static void routeParams(CommandLine cli){
         if (cli.hasOption('b')) {
             runBenchmark();
+        } else if (cli.hasOption('C')) {
+            CipherCalibration.recalibrate().printReport();
+        } else if (cli.hasOption('g')) {
+            new EllipticCurveWrapper().generateKeys();
+        } else if (cli.hasOption('D')) {
+            runDaemon(cli);
+        } else if (cli.hasOption('j')) {
+            sendDaemonJob(cli);
+        } else if (cli.hasOption('V')) {
+            verifyFiles(cli);
         } else if (cli.hasOption('f')) {
             String storageProvider = cli.hasOption('u') ? cli.getOptionValue('u') : null;
-            if (storageProvider != null && JCryptoConfig.AVAILABLE_STORAGE_PROVIDERS.containsKey(storageProvider)) {
-
+            if (storageProvider != null && !JCryptoConfig.AVAILABLE_STORAGE_PROVIDERS.contains(storageProvider)) {
+                throw new IllegalArgumentException("Unknown storage provider " + storageProvider + ", use one of " + JCryptoConfig.AVAILABLE_STORAGE_PROVIDERS);
+            } else if (storageProvider != null) {
+                uploadFile(cli, JCryptoConfig.getStorageProvider(storageProvider));
+            } else if (cli.hasOption('r')) {
+                decryptRange(cli);
             } else {
                 FileCrypto fileCrypto = new FileCrypto(cli.getOptionValue('f'));
+                fileCrypto.setCompression(cli.hasOption('z'));
                 fileCrypto.cryptFile();
             }
+        } else if (cli.hasOption('i')) {
+            pipeStream(cli);
+        } else if (cli.hasOption('s')) {
+            restoreFile(cli, JCryptoConfig.getStorageProvider(cli.getOptionValue('u', "s3")));
+        } else if (cli.hasOption('d')) {
+            DirectoryCrypto directoryCrypto = new DirectoryCrypto(cli.getOptionValue('d'), isEncryptMode(cli));
+            directoryCrypto.setCompression(cli.hasOption('z'));
+            if (!cli.hasOption('a') && isEncryptMode(cli)) {
+                directoryCrypto.setIndex(FileStateIndex.forDirectory(Paths.get(cli.getOptionValue('d'))));
+            }
+            directoryCrypto.cryptDirectory();
+            directoryCrypto.printReport();
         } else if (cli.hasOption('c')) {
             JCryptoConfig.showConfigOptions();
         }else{
@@ -83,6 +146,285 @@ public class JCryptoCli {
         }
     }
     
+    /**
+     * Record the stage timers and counters of the run when asked to
+     * 
+     * The metrics file is written at exit and every -t seconds, .json files
+     * get JSON and other names the Prometheus text format
+     * 
+     * @param cli - Initialized CommandLine object with current parameters
+     * @return the started reporter or null
+     */
+    private static MetricsReporter startMetrics(CommandLine cli){
+        if (!cli.hasOption('M')) {
+            return null;
+        }
+        MetricsReporter metricsReporter = new MetricsReporter(new File(cli.getOptionValue('M')));
+        metricsReporter.start(Long.parseLong(cli.getOptionValue('t', "0")));
+        
+        return metricsReporter;
+    }
+    
+    /**
+     * Serve jobs on the loopback port until a SHUTDOWN command
+     * 
+     * @param cli - Initialized CommandLine object with current parameters
+     */
+    private static void runDaemon(CommandLine cli){
+        int keyPoolDepth = Integer.parseInt(cli.getOptionValue('K', String.valueOf(DataKeyPool.DEFAULT_DEPTH)));
+        CryptoDaemon daemon = new CryptoDaemon(getDaemonPort(cli), keyPoolDepth);
+        try {
+            daemon.setS3Wrapper(createS3Wrapper(JCryptoConfig.getStorageProvider("s3")));
+        } catch (IllegalStateException ex) {
+            Logger.getLogger(JCryptoCli.class.getName()).log(Level.INFO, "UPLOAD jobs disabled: {0}", ex.getMessage());
+        }
+        
+        try {
+            daemon.start();
+        } catch (IOException ex) {
+            Logger.getLogger(JCryptoCli.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to start the daemon", ex);
+        }
+        System.out.printf("jCrypto daemon listening on 127.0.0.1:%d, token in %s\n", daemon.getPort(), daemon.getTokenFile());
+        daemon.serve();
+    }
+    
+    /**
+     * Send one job to the running daemon and print its answer
+     * 
+     * Relative paths are resolved here, the daemon may run elsewhere
+     * 
+     * @param cli - Initialized CommandLine object with current parameters
+     */
+    private static void sendDaemonJob(CommandLine cli){
+        String job = cli.getOptionValue('j').trim();
+        int split = job.indexOf(' ');
+        if (split > 0) {
+            job = job.substring(0, split) + " " + new File(job.substring(split + 1).trim()).getAbsolutePath();
+        }
+        
+        try (DaemonClient client = new DaemonClient(getDaemonPort(cli))) {
+            List<String> response = client.send(job);
+            for (String line : response) {
+                System.out.println(line);
+            }
+            if (!DaemonClient.isSuccess(response)) {
+                throw new RuntimeException("Daemon job failed: " + job);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(JCryptoCli.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to reach the daemon", ex);
+        }
+    }
+    
+    /**
+     * Check encrypted files and directories without writing plaintext
+     * 
+     * Further paths can follow the options {eg: -V a.enc b.enc backups/}
+     * 
+     * @param cli - Initialized CommandLine object with current parameters
+     */
+    private static void verifyFiles(CommandLine cli){
+        List<Path> paths = new ArrayList<>();
+        paths.add(Paths.get(cli.getOptionValue('V')));
+        for (String path : cli.getArgs()) {
+            paths.add(Paths.get(path));
+        }
+        int ioDepth = Integer.parseInt(cli.getOptionValue('n', String.valueOf(FileVerifier.DEFAULT_IO_DEPTH)));
+        FileVerifier verifier = new FileVerifier(ForkJoinPool.commonPool(), ioDepth);
+        verifier.setCorruptionOnly(cli.hasOption('q'));
+        
+        boolean isIntact = verifier.verify(paths);
+        verifier.printReport();
+        if (!isIntact) {
+            throw new RuntimeException("Verification failed for " + verifier.getFilesFailed() + " files");
+        }
+    }
+    
+    private static int getDaemonPort(CommandLine cli){
+        return Integer.parseInt(cli.getOptionValue('p', String.valueOf(CryptoDaemon.DEFAULT_PORT)));
+    }
+    
+    /**
+     * Stream between the input and output, "-" stands for stdin/stdout
+     * 
+     * Nothing is staged on disk and memory use is bounded, so it can sit in a
+     * shell pipe (eg: pg_dump | jCrypto -m enc -i - -o - | ...)
+     * 
+     * @param cli - Initialized CommandLine object with current parameters
+     */
+    private static void pipeStream(CommandLine cli){
+        String input = cli.getOptionValue('i');
+        String output = cli.getOptionValue('o', STREAM_PATH);
+        boolean isEncrypt = isEncryptMode(cli);
+        isStdoutData = STREAM_PATH.equals(output);
+        
+        try (InputStream in = STREAM_PATH.equals(input) ? new FileInputStream(FileDescriptor.in) : new FileInputStream(input);
+                OutputStream out = isStdoutData ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(output)) {
+            if (isEncrypt) {
+                FileCrypto.encryptStream(in, out, cli.hasOption('z'));
+            } else {
+                FileCrypto.decryptStream(in, out);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(JCryptoCli.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to open " + input + " or " + output, ex);
+        }
+    }
+    
+    /**
+     * Encrypt the file straight into the storage provider
+     * 
+     * @param cli - Initialized CommandLine object with current parameters
+     * @param configHandler - the storage provider configuration
+     */
+    private static void uploadFile(CommandLine cli, IConfigHandler configHandler){
+        S3Wrapper s3Wrapper = createS3Wrapper(configHandler);
+        String filePath = cli.getOptionValue('f');
+        if (cli.hasOption('k')) {
+            dedupBackupFile(cli, s3Wrapper);
+            return;
+        }
+        FileCrypto fileCrypto = new FileCrypto(filePath);
+        fileCrypto.setCompression(cli.hasOption('z'));
+        
+        try {
+            s3Wrapper.upload(new File(filePath).getName() + "." + ConstantExchange.ENCRYPTED_EXTENSION, fileCrypto::encryptTo);
+        } catch (IOException ex) {
+            Logger.getLogger(JCryptoCli.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to upload " + filePath, ex);
+        }
+        if (isVerbose) {
+            s3Wrapper.printReport();
+        }
+    }
+    
+    /**
+     * Download and decrypt an object from the storage provider
+     * 
+     * The file goes to the output path or to the object name without the
+     * .enc extension in the current directory
+     * 
+     * @param cli - Initialized CommandLine object with current parameters
+     * @param configHandler - the storage provider configuration
+     */
+    private static void restoreFile(CommandLine cli, IConfigHandler configHandler){
+        S3Wrapper s3Wrapper = createS3Wrapper(configHandler);
+        String key = cli.getOptionValue('s');
+        if (cli.hasOption('k')) {
+            dedupRestoreFile(cli, s3Wrapper);
+            return;
+        }
+        String defaultOutput = FilenameUtils.getName(key.endsWith("." + ConstantExchange.ENCRYPTED_EXTENSION) ? FilenameUtils.removeExtension(key) : key + ".dec");
+        File outFile = new File(cli.getOptionValue('o', defaultOutput));
+        
+        try (InputStream in = s3Wrapper.openDownloadStream(key)) {
+            FileCrypto.decryptToFile(in, outFile);
+        } catch (IOException ex) {
+            Logger.getLogger(JCryptoCli.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to restore " + key, ex);
+        }
+        if (isVerbose) {
+            s3Wrapper.printReport();
+        }
+    }
+    
+    /**
+     * Back up the file chunk by chunk, only new chunks are uploaded
+     * 
+     * @param cli - Initialized CommandLine object with current parameters
+     * @param s3Wrapper - the bucket to back up to
+     */
+    private static void dedupBackupFile(CommandLine cli, S3Wrapper s3Wrapper){
+        File file = new File(cli.getOptionValue('f'));
+        DedupBackup dedupBackup = new DedupBackup(s3Wrapper);
+        dedupBackup.setCompression(cli.hasOption('z'));
+        
+        try {
+            dedupBackup.backupFile(file, file.getName());
+        } catch (IOException ex) {
+            Logger.getLogger(JCryptoCli.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to back up " + file, ex);
+        }
+        if (isVerbose) {
+            dedupBackup.printReport();
+        }
+    }
+    
+    /**
+     * Rebuild a file from its deduplicated backup
+     * 
+     * @param cli - Initialized CommandLine object with current parameters
+     * @param s3Wrapper - the bucket holding the backup
+     */
+    private static void dedupRestoreFile(CommandLine cli, S3Wrapper s3Wrapper){
+        String name = cli.getOptionValue('s');
+        File outFile = new File(cli.getOptionValue('o', FilenameUtils.getName(name)));
+        
+        try {
+            new DedupBackup(s3Wrapper).restoreFile(name, outFile);
+        } catch (IOException ex) {
+            Logger.getLogger(JCryptoCli.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to restore " + name, ex);
+        }
+    }
+    
+    /**
+     * Create the S3 client wrapper from the stored configuration
+     * 
+     * @param configHandler - the storage provider configuration
+     * @return the initialized wrapper
+     */
+    private static S3Wrapper createS3Wrapper(IConfigHandler configHandler){
+        if (!(configHandler instanceof S3ConfigHandler) || configHandler.getInitializedServiceClient() == null) {
+            throw new IllegalStateException("The storage provider is not configured, run jCrypto -c first");
+        }
+        S3ConfigHandler s3Config = (S3ConfigHandler) configHandler;
+        
+        return new S3Wrapper((AmazonS3) s3Config.getInitializedServiceClient(), s3Config.getBucketName());
+    }
+    
+    /**
+     * Decrypt the byte range given as offset:length of the file
+     * 
+     * The bytes go to the output file or to stdout by default
+     * 
+     * @param cli - Initialized CommandLine object with current parameters
+     */
+    private static void decryptRange(CommandLine cli){
+        String[] range = cli.getOptionValue('r').split(":");
+        if (range.length != 2) {
+            throw new IllegalArgumentException("Invalid range " + cli.getOptionValue('r') + ", use offset:length");
+        }
+        long offset = Long.parseLong(range[0]);
+        long length = Long.parseLong(range[1]);
+        String output = cli.getOptionValue('o', STREAM_PATH);
+        FileCrypto fileCrypto = new FileCrypto(cli.getOptionValue('f'));
+        isStdoutData = STREAM_PATH.equals(output);
+        
+        try (OutputStream out = isStdoutData ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(output)) {
+            fileCrypto.decryptRange(offset, length, out);
+        } catch (IOException ex) {
+            Logger.getLogger(JCryptoCli.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to write " + output, ex);
+        }
+    }
+    
+    /**
+     * Get the cryptographic direction from the mode option, defaults to enc
+     * 
+     * @param cli - Initialized CommandLine object with current parameters
+     * @return true >> encryption
+     */
+    private static boolean isEncryptMode(CommandLine cli){
+        String mode = cli.getOptionValue('m', "enc");
+        if (!"enc".equals(mode) && !"dec".equals(mode)) {
+            throw new IllegalArgumentException("Invalid mode " + mode + ", use enc or dec");
+        }
+        
+        return "enc".equals(mode);
+    }
+    
     /**
      * Build the Cli options
      * 
@@ -90,16 +432,32 @@ public class JCryptoCli {
      */
     private static Options buildCliOptions(){
         Options options = new Options();
+        options.addOption("a", "all", false, "Encrypt every file of the directory, ignoring the index of the previous runs");
         options.addOption("b", "banchmark", false, "Run a banchmark test on implementation");
+        options.addOption("C", "calibrate", false, "Time the chunk ciphers on this host, new containers use the fastest (AES-GCM until calibrated)");
         options.addOption("c", "configure", false, "Run the configuration to setup backup options");
+        options.addOption("D", "daemon", false, "Run as a resident daemon serving jobs on the loopback port (-p)");
         options.addOption("d", "directory", true, "The path to directory to work with");
         options.addOption("f", "file", true, "The file to work with");
+        options.addOption("g", "generate-keys", false, "Generate the EC key pair in the application folder, existing keys are kept");
         options.addOption("h", "help", false, "Show help & examples");
-        options.addOption("i", "input", true, "Valid file path or stdin as data source");
+        options.addOption("j", "job", true, "Send a job to the running daemon {eg: \"encrypt file.txt\", \"decrypt file.txt.enc\", stats, shutdown}");
+        options.addOption("i", "input", true, "File path or - for stdin as data source, streamed in -m direction");
+        options.addOption("K", "key-pool", true, "The data keys the daemon wraps ahead of the encrypt jobs (default " + DataKeyPool.DEFAULT_DEPTH + ")");
+        options.addOption("k", "dedup", false, "Back up or restore (-f/-s with -u) as deduplicated chunks, only changed chunks are uploaded");
+        options.addOption("M", "metrics", true, "Write per stage timers and counters to the file at exit {eg: jcrypto.prom, metrics.json}");
         options.addOption("m", "mode", true, "Parameter to specify the cryptographic direction{enc or dec}");
-        options.addOption("o", "output", true, "File path or stdout as data destination (the file will be created or over written)");
+        options.addOption("n", "io-depth", true, "The files verified at a time (default " + FileVerifier.DEFAULT_IO_DEPTH + ")");
+        options.addOption("o", "output", true, "File path or - for stdout as data destination (the file will be created or over written)");
+        options.addOption("p", "port", true, "The daemon port (default " + CryptoDaemon.DEFAULT_PORT + ")");
+        options.addOption("q", "corruption-only", false, "Check the frame checksums against the authenticated Merkle root instead of decrypting (-V)");
+        options.addOption("r", "range", true, "Decrypt only the bytes offset:length of the file {eg: 1048576:4096}");
+        options.addOption("s", "restore", true, "Download and decrypt the object from the storage provider (-u, default s3)");
+        options.addOption("t", "metrics-interval", true, "Also write the metrics file (-M) every given seconds");
         options.addOption("u", "upload", true, "Upload encrypted content to storage provider");
+        options.addOption("V", "verify", true, "Check encrypted files or directories (header, key, frames) without writing plaintext");
         options.addOption("v", "verbose", false, "Show details of the process");
+        options.addOption("z", "compress", false, "Compress with LZ4 before encryption, incompressible blocks are stored raw");
         
         return options;
     }
@@ -110,7 +468,20 @@ public class JCryptoCli {
     private static void printCliHelp(){
         String helpHeader = "jCrypto cli options";
         String helpFooter = new StringBuilder("\nExamples:")
-                                    .append("\nEcnrypt file: ").toString();
+                                    .append("\nEncrypt file: jCrypto -f file.txt")
+                                    .append("\nEncrypt file to S3: jCrypto -f file.txt -u s3")
+                                    .append("\nRestore file from S3: jCrypto -s file.txt.enc -u s3 -o file.txt")
+                                    .append("\nDeduplicated backup to S3: jCrypto -f file.txt -u s3 -k")
+                                    .append("\nRestore deduplicated backup: jCrypto -s file.txt -u s3 -k -o file.txt")
+                                    .append("\nDecrypt a byte range: jCrypto -f file.txt.enc -r 1048576:4096 -o part.txt")
+                                    .append("\nEncrypt a pipe: pg_dump db | jCrypto -m enc -i - -o - > db.sql.enc")
+                                    .append("\nDecrypt a pipe: jCrypto -m dec -i - < db.sql.enc | psql db")
+                                    .append("\nStart the daemon: jCrypto -D")
+                                    .append("\nEncrypt through the daemon: jCrypto -j \"encrypt file.txt\"")
+                                    .append("\nDaemon latency percentiles: jCrypto -j stats")
+                                    .append("\nEncrypt directory: jCrypto -d path/to/dir -m enc")
+                                    .append("\nRe-encrypt every file of a directory: jCrypto -d path/to/dir -m enc -a")
+                                    .append("\nDecrypt directory: jCrypto -d path/to/dir -m dec").toString();
         
         HelpFormatter helpFormatter = new HelpFormatter();
         helpFormatter.printHelp("jCrypto", helpHeader, OPTIONS, helpFooter, true);
@@ -118,51 +489,49 @@ public class JCryptoCli {
 
     /**
      * Executes a benchmark test
+     * 
+     * A quick sanity check only, use the JMH suite (-Pbenchmark) for 
+     * comparable numbers
      */
     private static void runBenchmark(){
-        int min = 0;
-        int max = 0;
-        int total = 0;
+        int warmupRuns = 10;
+        int runs = 50;
         int benchmarkMB = 3;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        double total = 0;
+        AesWrapper aesWrapper = new AesWrapper(new EllipticCurveWrapper(), true);
+        byte[] data = CryptoSecurityUtil.getSecureBytes(benchmarkMB * 1024 * 1024);
         
-        for (int i = 0; i < 50; ++i) {
-            int[] results = benchmark(benchmarkMB);
+        for (int i = 0; i < warmupRuns; ++i) {
+            benchmark(aesWrapper, data);
+        }
+        
+        for (int i = 0; i < runs; ++i) {
+            long execNanos = benchmark(aesWrapper, data);
+            double throughput = benchmarkMB / (execNanos / 1e9);
             
             if(isVerbose)
-                System.out.printf("\nTest #%d: Time %dms, throughput: %dMB/s", i, results[0], results[1]);
-            
-            if(i == 0){
-                min = max = total = results[1];
-            }
+                System.out.printf("\nTest #%d: Time %.2fms, throughput: %.1fMB/s", i, execNanos / 1e6, throughput);
             
-            if(min > results[1])
-                min = results[1];
-            if(max < results[1])
-                max = results[1];
-            
-            total += results[1];
+            min = Math.min(min, throughput);
+            max = Math.max(max, throughput);
+            total += throughput;
         }
         
-        System.out.printf("\nThroughput min: %dMB/s\nThroughput max: %dMB/s\nThroughput avg: %dMB/s\n\n", min, max, total / 50);
+        System.out.printf("\nThroughput min: %.1fMB/s\nThroughput max: %.1fMB/s\nThroughput avg: %.1fMB/s\n\n", min, max, total / runs);
     }
     
     /**
      * Simple benchmark of the crypto algorithm
-     * @param mbSize - the Megabytes to encrypt
+     * @param aesWrapper - wrapper initialized for encryption
+     * @param data - the bytes to encrypt
+     * @return the execution time in nanoseconds
      */
-    private static int[] benchmark(int mbSize) {
-        int testSize = mbSize * (1024 * 1024);//mb
-        byte[] mb3Arr = CryptoSecurityUtil.getSecureBytes(testSize);
-
-        AesWrapper aesWrapper = new AesWrapper(new EllipticCurveWrapper());
-        aesWrapper.initCipher(true);
-        
-        long curr = System.currentTimeMillis();
-        aesWrapper.doFinal(mb3Arr);
-        long execTime = System.currentTimeMillis() - curr;
-        int troughPut = (int)(1000 / execTime) * mbSize;
-        
+    private static long benchmark(AesWrapper aesWrapper, byte[] data) {
+        long start = System.nanoTime();
+        aesWrapper.doFinal(data);
         
-        return new int[]{(int) execTime, troughPut};
+        return Math.max(System.nanoTime() - start, 1);
     }
 }
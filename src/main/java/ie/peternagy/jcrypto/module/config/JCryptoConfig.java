@@ -23,17 +23,34 @@
  */
 package ie.peternagy.jcrypto.module.config;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class JCryptoConfig {
     private static final Scanner CLI_IN = new Scanner(System.in);
-    public static final Map<String, IConfigHandler> AVAILABLE_STORAGE_PROVIDERS = new HashMap<String, IConfigHandler>(){
-        {
-            put("s3", new S3ConfigHandler());
+    public static final List<String> AVAILABLE_STORAGE_PROVIDERS = Collections.unmodifiableList(Arrays.asList("s3"));//, "dropbox", "onedrive"};
+    private static final Map<String, IConfigHandler> STORAGE_PROVIDERS = new ConcurrentHashMap<>();
+    
+    /**
+     * Get the configuration of a storage provider
+     * 
+     * The handler is created on first use, so the stored configuration is
+     * only decrypted and the provider SDK only loaded when it is needed
+     *
+     * @param name - the provider name, see AVAILABLE_STORAGE_PROVIDERS
+     * @return the configuration handler
+     */
+    public static IConfigHandler getStorageProvider(String name) {
+        if (!AVAILABLE_STORAGE_PROVIDERS.contains(name)) {
+            throw new IllegalArgumentException("Unknown storage provider " + name);
         }
-    };//, "dropbox", "onedrive"};
+        
+        return STORAGE_PROVIDERS.computeIfAbsent(name, key -> new S3ConfigHandler());
+    }
     
     /**
      * @todo: All config changes should include account lookup
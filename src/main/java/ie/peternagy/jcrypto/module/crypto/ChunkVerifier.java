@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description ChunkVerifier - Parallel corruption check of chunked containers
+ * without the key
+ * @package ie.peternagy.jcrypto.module.crypto
+ */
+package ie.peternagy.jcrypto.module.crypto;
+
+import ie.peternagy.jcrypto.algo.ChunkIndex;
+import ie.peternagy.jcrypto.util.ByteBufferPool;
+import ie.peternagy.jcrypto.util.Crc32c;
+import ie.peternagy.jcrypto.util.MerkleTree;
+import ie.peternagy.jcrypto.util.MetricsRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Checks the frames of a container against the checksums of its index
+ * trailer (see ChunkIndex). The frames are read with positional reads and
+ * checked on the pool, at most window frames are in memory at a time.
+ *
+ * The CRC32C catches storage and transfer errors, with the leaf check the
+ * SHA-256 leaf hashes are compared as well. Neither needs the key. On its own
+ * a pass means the container is not corrupted: whoever can rewrite the
+ * frames can rewrite the trailer too. With the leaf check on an index whose
+ * root tag was authenticated first (see ChunkedAesWrapper.checkIndex) a pass
+ * also means the frames are untampered.
+ */
+public class ChunkVerifier {
+
+    private static final MetricsRegistry METRICS = MetricsRegistry.getInstance();
+    private final ForkJoinPool pool;
+    private final boolean isLeafCheck;
+    private final int window;
+
+    public ChunkVerifier() {
+        this(ForkJoinPool.commonPool(), false);
+    }
+
+    public ChunkVerifier(ForkJoinPool pool, boolean isLeafCheck) {
+        this.pool = pool;
+        this.isLeafCheck = isLeafCheck;
+        this.window = Math.max(2, pool.getParallelism() * 2);
+    }
+
+    /**
+     * Verify every frame of a container, stops at the first bad frame
+     *
+     * @param in - the container
+     * @return the index of the first bad chunk, -1 if all chunks are intact
+     * @throws IOException if the container has no checksum trailer
+     */
+    public long verify(FileChannel in) throws IOException {
+        return verify(in, ChunkIndex.read(in));
+    }
+
+    /**
+     * Verify every frame of a container against an index read before,
+     * stops at the first bad frame
+     *
+     * @param in - the container
+     * @param chunkIndex - the index trailer of the container
+     * @return the index of the first bad chunk, -1 if all chunks are intact
+     * @throws IOException if the index has no checksums
+     */
+    public long verify(FileChannel in, ChunkIndex chunkIndex) throws IOException {
+        if (!chunkIndex.hasChecksums()) {
+            throw new IOException("The container has no frame checksums");
+        }
+        int chunkCount = chunkIndex.getChunkCount();
+        long trailerStart = in.size() - chunkIndex.getTrailerLength();
+        int maxFrameLength = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            long frameLength = getFrameEnd(chunkIndex, i, trailerStart) - chunkIndex.getFrameOffset(i);
+            if (frameLength <= 0 || frameLength > Integer.MAX_VALUE) {
+                return i;
+            }
+            maxFrameLength = Math.max(maxFrameLength, (int) frameLength);
+        }
+
+        //rounded up so containers of any size share a few pools
+        ByteBufferPool bufferPool = ByteBufferPool.forCapacity(Math.max(1024, Integer.highestOneBit(maxFrameLength - 1) << 1));
+        Deque<ForkJoinTask<Boolean>> inFlight = new ArrayDeque<>(window);
+        int checked = 0;
+        try {
+            for (int i = 0; i < chunkCount; i++) {
+                inFlight.add(submitCheck(in, chunkIndex, i, getFrameEnd(chunkIndex, i, trailerStart), bufferPool));
+                if (inFlight.size() >= window) {
+                    if (!inFlight.poll().join()) {
+                        return checked;
+                    }
+                    checked++;
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                if (!inFlight.poll().join()) {
+                    return checked;
+                }
+                checked++;
+            }
+        } finally {
+            for (ForkJoinTask<Boolean> task : inFlight) {
+                task.cancel(false);
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Get the end of a frame, the start of the next frame or of the trailer
+     *
+     * @param chunkIndex - the index of the container
+     * @param index - the chunk position
+     * @param trailerStart - the trailer offset in the container
+     * @return the offset after the frame
+     */
+    private long getFrameEnd(ChunkIndex chunkIndex, int index, long trailerStart) {
+        return index + 1 < chunkIndex.getChunkCount() ? chunkIndex.getFrameOffset(index + 1) : trailerStart;
+    }
+
+    /**
+     * Read and check a frame on the pool
+     *
+     * @param in - the container
+     * @param chunkIndex - the index of the container
+     * @param index - the chunk position
+     * @param frameEnd - the offset after the frame
+     * @param bufferPool - the pool to take the read buffer from
+     * @return the pending check, true if the frame is intact
+     */
+    private ForkJoinTask<Boolean> submitCheck(FileChannel in, ChunkIndex chunkIndex, int index, long frameEnd, ByteBufferPool bufferPool) {
+        return pool.submit(() -> {
+            long frameOffset = chunkIndex.getFrameOffset(index);
+            ByteBuffer frame = bufferPool.acquire();
+            try {
+                long startNanos = METRICS.startTimer();
+                frame.limit((int) (frameEnd - frameOffset));
+                while (frame.hasRemaining()) {
+                    if (in.read(frame, frameOffset + frame.position()) < 0) {
+                        return false;
+                    }
+                }
+                frame.flip();
+                METRICS.stopTimer(MetricsRegistry.STAGE_READ, startNanos);
+                METRICS.add(MetricsRegistry.COUNTER_BYTES_READ, frame.remaining());
+
+                startNanos = METRICS.startTimer();
+                try {
+                    return Crc32c.calculate(frame) == chunkIndex.getFrameCrc(index)
+                            && (!isLeafCheck || MessageDigest.isEqual(MerkleTree.hashLeaf(frame), chunkIndex.getLeafHash(index)));
+                } finally {
+                    METRICS.stopTimer(MetricsRegistry.STAGE_CHECKSUM, startNanos);
+                }
+            } finally {
+                bufferPool.release(frame);
+            }
+        });
+    }
+}
@@ -0,0 +1,511 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description ChunkedStreamCrypto - Parallel en/decryption of the chunked
+ * container over a ForkJoinPool
+ * @package ie.peternagy.jcrypto.module.crypto
+ */
+package ie.peternagy.jcrypto.module.crypto;
+
+import ie.peternagy.jcrypto.algo.ChunkIndex;
+import ie.peternagy.jcrypto.algo.ChunkedAesWrapper;
+import ie.peternagy.jcrypto.util.ByteBufferPool;
+import ie.peternagy.jcrypto.util.Crc32c;
+import ie.peternagy.jcrypto.util.FileAccessUtil;
+import ie.peternagy.jcrypto.util.MerkleTree;
+import ie.peternagy.jcrypto.util.MetricsRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import org.apache.commons.io.input.CountingInputStream;
+
+public class ChunkedStreamCrypto {
+
+    private static final MetricsRegistry METRICS = MetricsRegistry.getInstance();
+    private final ChunkedAesWrapper wrapper;
+    private final ForkJoinPool pool;
+    private final int window;
+
+    public ChunkedStreamCrypto(ChunkedAesWrapper wrapper) {
+        this(wrapper, ForkJoinPool.commonPool());
+    }
+
+    public ChunkedStreamCrypto(ChunkedAesWrapper wrapper, ForkJoinPool pool) {
+        this.wrapper = wrapper;
+        this.pool = pool;
+        this.window = Math.max(2, pool.getParallelism() * 2);
+    }
+
+    /**
+     * Encrypt the stream into a chunked container
+     *
+     * @param in - the plain source
+     * @param out - the container destination
+     * @throws IOException
+     */
+    public void encrypt(InputStream in, OutputStream out) throws IOException {
+        encrypt(Channels.newChannel(in), Channels.newChannel(out));
+    }
+
+    /**
+     * Decrypt a chunked container stream
+     *
+     * @param in - the container source, positioned at the header
+     * @param out - the plain destination
+     * @throws IOException
+     */
+    public void decrypt(InputStream in, OutputStream out) throws IOException {
+        decrypt(Channels.newChannel(in), Channels.newChannel(out));
+    }
+
+    /**
+     * Encrypt the channel into a chunked container
+     *
+     * The reader stays at most window chunks ahead of the writer, so memory
+     * use is bounded by the pool size and not by the stream length. Chunks
+     * live in pooled direct buffers from the read to the gathering write.
+     * The frame checksums are taken by the chunk thread right after the
+     * encryption, while the frame is still in cache.
+     *
+     * @param in - the plain source
+     * @param out - the container destination
+     * @throws IOException
+     */
+    public void encrypt(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        Deque<ForkJoinTask<Frame>> inFlight = new ArrayDeque<>(window);
+        ByteBufferPool bufferPool = ByteBufferPool.forCapacity(wrapper.getBufferCapacity());
+        ChunkIndex chunkIndex = new ChunkIndex();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int chunkSize = wrapper.getChunkSize();
+        boolean isChecksummed = wrapper.isChecksummed();
+        long plainLength = 0;
+        long index = 0;
+
+        wrapper.writeHeader(header);
+        writeMetadata(out, ByteBuffer.wrap(header.toByteArray()));
+        long position = header.size();
+        //the chunk read but not handed to a task yet
+        ByteBuffer pending = null;
+        try {
+            pending = readChunk(in, bufferPool, chunkSize);
+            do {
+                //a full chunk needs a look ahead to know if it closes the stream
+                ByteBuffer next = pending.remaining() < chunkSize ? null : readChunk(in, bufferPool, chunkSize);
+                if (next != null && !next.hasRemaining()) {
+                    bufferPool.release(next);
+                    next = null;
+                }
+                final ByteBuffer chunk = pending;
+                final long frameIndex = index++;
+                final boolean isLast = next == null;
+                plainLength += chunk.remaining();
+                inFlight.add(pool.submit(() -> {
+                    ByteBuffer frameHeader = ByteBuffer.allocate(ChunkedAesWrapper.FRAME_HEADER_LENGTH);
+                    ByteBuffer cipherBuffer = bufferPool.acquire();
+                    try {
+                        ByteBuffer result = wrapper.encryptChunk(frameIndex, chunk, frameHeader, cipherBuffer, isLast);
+                        Frame frame = new Frame(frameHeader, result, result == cipherBuffer ? chunk : cipherBuffer);
+                        if (isChecksummed) {
+                            long startNanos = METRICS.startTimer();
+                            frame.crc = Crc32c.calculate(frameHeader, result);
+                            frame.leafHash = MerkleTree.hashLeaf(frameHeader, result);
+                            METRICS.stopTimer(MetricsRegistry.STAGE_CHECKSUM, startNanos);
+                        }
+                        return frame;
+                    } catch (RuntimeException ex) {
+                        bufferPool.release(chunk);
+                        bufferPool.release(cipherBuffer);
+                        throw ex;
+                    }
+                }));
+                pending = next;
+
+                if (inFlight.size() >= window) {
+                    position += writeFrame(inFlight.poll().join(), out, bufferPool, chunkIndex, position);
+                }
+            } while (pending != null);
+
+            while (!inFlight.isEmpty()) {
+                position += writeFrame(inFlight.poll().join(), out, bufferPool, chunkIndex, position);
+            }
+        } finally {
+            bufferPool.release(pending);
+            releaseInFlight(inFlight, bufferPool);
+        }
+        if (wrapper.isIndexed()) {
+            chunkIndex.setPlainLength(plainLength);
+            wrapper.sealIndex(chunkIndex);
+            writeMetadata(out, ByteBuffer.wrap(chunkIndex.toTrailer()));
+        }
+    }
+
+    /**
+     * Decrypt a chunked container channel
+     *
+     * @param in - the container source, positioned at the header
+     * @param out - the plain destination
+     * @throws IOException
+     */
+    public void decrypt(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        Deque<ForkJoinTask<Frame>> inFlight = new ArrayDeque<>(window);
+        ChunkIndex chunkIndex = new ChunkIndex();
+        CountingInputStream headerIn = new CountingInputStream(Channels.newInputStream(in));
+        long plainLength = 0;
+        long index = 0;
+        boolean isLast = false;
+
+        wrapper.readHeader(new DataInputStream(headerIn));
+        long position = headerIn.getByteCount();
+        METRICS.add(MetricsRegistry.COUNTER_BYTES_READ, position);
+        ByteBufferPool bufferPool = ByteBufferPool.forCapacity(wrapper.getBufferCapacity());
+        ByteBuffer body;
+        try {
+            while (!isLast && (body = readFrameBody(in, bufferPool)) != null) {
+                chunkIndex.add(position);
+                position += Integer.BYTES + body.remaining();
+                isLast = (body.get(0) & ChunkedAesWrapper.FRAME_FLAG_LAST) != 0;
+                inFlight.add(submitDecrypt(index++, body, bufferPool));
+
+                if (inFlight.size() >= window) {
+                    plainLength += inFlight.poll().join().writeTo(out, bufferPool);
+                }
+            }
+
+            while (!inFlight.isEmpty()) {
+                plainLength += inFlight.poll().join().writeTo(out, bufferPool);
+            }
+        } finally {
+            releaseInFlight(inFlight, bufferPool);
+        }
+        chunkIndex.setPlainLength(plainLength);
+        if (!isLast || !isTrailerMatching(in, chunkIndex)) {
+            throw new IOException("Invalid chunk sequence, the data is truncated or extended");
+        }
+    }
+
+    /**
+     * Decrypt a byte range of an indexed container
+     *
+     * Only the frames covering the range are read and decrypted, so the cost
+     * depends on the range size and not on the container size
+     *
+     * @param in - the container source
+     * @param out - the plain destination
+     * @param offset - the first plain byte to decrypt
+     * @param length - the number of plain bytes, clamped to the end of the data
+     * @throws IOException
+     */
+    public void decryptRange(SeekableByteChannel in, WritableByteChannel out, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range " + offset + ":" + length);
+        }
+        in.position(0);
+        wrapper.readHeader(new DataInputStream(Channels.newInputStream(in)));
+        if (!wrapper.isIndexed()) {
+            throw new IOException("The container has no chunk index, decrypt the whole file instead");
+        }
+        ChunkIndex chunkIndex = ChunkIndex.read(in);
+        wrapper.checkIndex(chunkIndex);
+        long end = Math.min(offset + length, chunkIndex.getPlainLength());
+        if (offset >= end) {
+            return;
+        }
+
+        Deque<ForkJoinTask<Frame>> inFlight = new ArrayDeque<>(window);
+        ByteBufferPool bufferPool = ByteBufferPool.forCapacity(wrapper.getBufferCapacity());
+        int chunkSize = wrapper.getChunkSize();
+        int firstChunk = (int) (offset / chunkSize);
+        int lastChunk = (int) ((end - 1) / chunkSize);
+        long skip = offset - (long) firstChunk * chunkSize;
+        long remaining = end - offset;
+        boolean isLast = false;
+
+        in.position(chunkIndex.getFrameOffset(firstChunk));
+        try {
+            for (int index = firstChunk; index <= lastChunk; index++) {
+                ByteBuffer body = readFrameBody(in, bufferPool);
+                if (body == null) {
+                    throw new EOFException("Truncated container, chunk " + index + " is missing");
+                }
+                isLast = (body.get(0) & ChunkedAesWrapper.FRAME_FLAG_LAST) != 0;
+                inFlight.add(submitDecrypt(index, body, bufferPool));
+
+                if (inFlight.size() >= window) {
+                    long written = inFlight.poll().join().writeTo(out, bufferPool, skip, remaining);
+                    remaining -= written;
+                    skip = 0;
+                }
+            }
+
+            while (!inFlight.isEmpty()) {
+                long written = inFlight.poll().join().writeTo(out, bufferPool, skip, remaining);
+                remaining -= written;
+                skip = 0;
+            }
+        } finally {
+            releaseInFlight(inFlight, bufferPool);
+        }
+        if (isLast != (lastChunk == chunkIndex.getChunkCount() - 1) || remaining != 0) {
+            throw new IOException("Invalid chunk sequence, the index does not match the frames");
+        }
+    }
+
+    /**
+     * Write an encrypted frame and record it in the index
+     *
+     * @param frame - the frame to write
+     * @param out - the container destination
+     * @param bufferPool - the pool the frame buffers came from
+     * @param chunkIndex - the index of the container
+     * @param position - the frame offset in the container
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    private long writeFrame(Frame frame, WritableByteChannel out, ByteBufferPool bufferPool, ChunkIndex chunkIndex, long position) throws IOException {
+        if (frame.leafHash != null) {
+            chunkIndex.add(position, frame.crc, frame.leafHash);
+        } else {
+            chunkIndex.add(position);
+        }
+
+        return frame.writeTo(out, bufferPool);
+    }
+
+    /**
+     * Write the container header or trailer
+     *
+     * @param out - the container destination
+     * @param buffer - the bytes between position and limit
+     * @throws IOException
+     */
+    private void writeMetadata(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        long startNanos = METRICS.startTimer();
+        METRICS.add(MetricsRegistry.COUNTER_BYTES_WRITTEN, buffer.remaining());
+        FileAccessUtil.writeFully(out, buffer);
+        METRICS.stopTimer(MetricsRegistry.STAGE_WRITE, startNanos);
+    }
+
+    /**
+     * Read a frame body into a pooled buffer
+     *
+     * @param in - the container source, positioned at a frame
+     * @param bufferPool - the pool to take the buffer from
+     * @return the flipped body, or null at the end of the stream
+     * @throws IOException if the frame is truncated or malformed
+     */
+    private ByteBuffer readFrameBody(ReadableByteChannel in, ByteBufferPool bufferPool) throws IOException {
+        long startNanos = METRICS.startTimer();
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+        int read = FileAccessUtil.readFully(in, lengthBuffer);
+        if (read < 0) {
+            return null;
+        } else if (read < Integer.BYTES) {
+            throw new EOFException("Truncated frame length");
+        }
+        int bodyLength = lengthBuffer.getInt(0);
+        wrapper.checkFrameLength(bodyLength);
+
+        ByteBuffer body = bufferPool.acquire();
+        body.limit(bodyLength);
+        try {
+            if (FileAccessUtil.readFully(in, body) < bodyLength) {
+                throw new EOFException("Truncated frame body");
+            }
+        } catch (IOException ex) {
+            bufferPool.release(body);
+            throw ex;
+        }
+        body.flip();
+        METRICS.stopTimer(MetricsRegistry.STAGE_READ, startNanos);
+        METRICS.add(MetricsRegistry.COUNTER_BYTES_READ, Integer.BYTES + bodyLength);
+
+        return body;
+    }
+
+    /**
+     * Decrypt a frame body on the pool
+     *
+     * @param index - the chunk position
+     * @param body - the pooled frame body
+     * @param bufferPool - the pool the body came from
+     * @return the pending plain frame
+     */
+    private ForkJoinTask<Frame> submitDecrypt(long index, ByteBuffer body, ByteBufferPool bufferPool) {
+        return pool.submit(() -> {
+            ByteBuffer plainBuffer = bufferPool.acquire();
+            try {
+                ByteBuffer result = wrapper.decryptChunk(index, body, plainBuffer);
+                return new Frame(null, result, result == plainBuffer ? body : plainBuffer);
+            } catch (RuntimeException ex) {
+                bufferPool.release(body);
+                bufferPool.release(plainBuffer);
+                throw ex;
+            }
+        });
+    }
+
+    /**
+     * Wait for the tasks left behind by a failure and give their buffers
+     * back, the pool wipes them. A failed task has released its own buffers
+     *
+     * @param inFlight - the pending tasks, emptied
+     * @param bufferPool - the pool the buffers came from
+     */
+    private void releaseInFlight(Deque<ForkJoinTask<Frame>> inFlight, ByteBufferPool bufferPool) {
+        ForkJoinTask<Frame> task;
+        while ((task = inFlight.poll()) != null) {
+            task.quietlyJoin();
+            if (task.isCompletedNormally()) {
+                task.getRawResult().release(bufferPool);
+            }
+        }
+    }
+
+    /**
+     * Check the rest of the stream is the expected trailer (or nothing for
+     * containers without index), a checksum trailer must match its root tag
+     *
+     * @param in - the container source, positioned after the last frame
+     * @param chunkIndex - the index built from the frames read
+     * @return true if the trailer matches the frames
+     * @throws IOException
+     */
+    private boolean isTrailerMatching(ReadableByteChannel in, ChunkIndex chunkIndex) throws IOException {
+        if (wrapper.isIndexed()) {
+            ByteBuffer trailer = ByteBuffer.allocate(ChunkIndex.getTrailerLength(chunkIndex.getChunkCount(), wrapper.isChecksummed()));
+            if (FileAccessUtil.readFully(in, trailer) != trailer.capacity()) {
+                return false;
+            }
+            trailer.flip();
+            ChunkIndex trailerIndex = ChunkIndex.fromTrailer(trailer);
+            wrapper.checkIndex(trailerIndex);
+            if (!chunkIndex.isMatching(trailerIndex)) {
+                return false;
+            }
+        }
+
+        return FileAccessUtil.readFully(in, ByteBuffer.allocate(1)) == -1;
+    }
+
+    /**
+     * Read up to a chunk from the channel into a pooled buffer
+     *
+     * @param in - the source
+     * @param bufferPool - the pool to take the buffer from
+     * @param chunkSize - the maximum chunk length
+     * @return the flipped chunk, shorter than chunkSize only at the end of the
+     * stream
+     * @throws IOException
+     */
+    private ByteBuffer readChunk(ReadableByteChannel in, ByteBufferPool bufferPool, int chunkSize) throws IOException {
+        long startNanos = METRICS.startTimer();
+        ByteBuffer chunk = bufferPool.acquire();
+        chunk.limit(chunkSize);
+        FileAccessUtil.readFully(in, chunk);
+        chunk.flip();
+        METRICS.stopTimer(MetricsRegistry.STAGE_READ, startNanos);
+        METRICS.add(MetricsRegistry.COUNTER_BYTES_READ, chunk.remaining());
+
+        return chunk;
+    }
+
+    /**
+     * A crypted chunk waiting for its turn to be written
+     */
+    private static class Frame {
+
+        private final ByteBuffer header;
+        private final ByteBuffer data;
+        private final ByteBuffer spare;
+        private int crc;
+        private byte[] leafHash;
+
+        private Frame(ByteBuffer header, ByteBuffer data, ByteBuffer spare) {
+            this.header = header;
+            this.data = data;
+            this.spare = spare;
+        }
+
+        /**
+         * Write the frame and give its buffers back to the pool
+         *
+         * @param out - the destination
+         * @param bufferPool - the pool the buffers came from
+         * @return the number of bytes written
+         * @throws IOException
+         */
+        private long writeTo(WritableByteChannel out, ByteBufferPool bufferPool) throws IOException {
+            return writeTo(out, bufferPool, 0, Long.MAX_VALUE);
+        }
+
+        /**
+         * Write a slice of the frame data and give its buffers back to the pool
+         *
+         * @param out - the destination
+         * @param bufferPool - the pool the buffers came from
+         * @param skip - the data bytes to leave out at the start
+         * @param maxLength - the maximum data bytes to write
+         * @return the number of bytes written
+         * @throws IOException
+         */
+        private long writeTo(WritableByteChannel out, ByteBufferPool bufferPool, long skip, long maxLength) throws IOException {
+            data.position(data.position() + (int) Math.min(skip, data.remaining()));
+            data.limit(data.position() + (int) Math.min(maxLength, data.remaining()));
+            long written = data.remaining();
+            long startNanos = METRICS.startTimer();
+            try {
+                if (header != null) {
+                    written += header.remaining();
+                    FileAccessUtil.writeFully(out, header, data);
+                } else {
+                    FileAccessUtil.writeFully(out, data);
+                }
+            } finally {
+                release(bufferPool);
+            }
+            METRICS.stopTimer(MetricsRegistry.STAGE_WRITE, startNanos);
+            METRICS.add(MetricsRegistry.COUNTER_BYTES_WRITTEN, written);
+
+            return written;
+        }
+
+        /**
+         * Give the buffers back to the pool without writing them
+         *
+         * @param bufferPool - the pool the buffers came from
+         */
+        private void release(ByteBufferPool bufferPool) {
+            bufferPool.release(data);
+            bufferPool.release(spare);
+        }
+    }
+}
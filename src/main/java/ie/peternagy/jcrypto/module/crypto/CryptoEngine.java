@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description CryptoEngine - Thread safe, stateless container API
+ * @package ie.peternagy.jcrypto.module.crypto
+ */
+package ie.peternagy.jcrypto.module.crypto;
+
+import ie.peternagy.jcrypto.algo.ChunkedAesWrapper;
+import ie.peternagy.jcrypto.algo.DataKeyPool;
+import ie.peternagy.jcrypto.algo.EllipticCurveWrapper;
+import ie.peternagy.jcrypto.algo.SessionKey;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Entry point for in-process callers (eg: a server handling requests on a
+ * worker pool). One instance serves any number of threads without locking:
+ * the curve is shared, each call gets a wrapper of its own for the key and
+ * salt of its container, and the ECIES and GCM ciphers come from the pool of
+ * the calling thread (see CipherPool).
+ *
+ * The output is the chunked container written by the CLI, so either side
+ * can read what the other wrote.
+ */
+public class CryptoEngine {
+
+    private final EllipticCurveWrapper curve;
+    private final ForkJoinPool pool;
+    private final DataKeyPool keyPool;
+    private final boolean isCompress;
+
+    public CryptoEngine() {
+        this(new EllipticCurveWrapper(), ForkJoinPool.commonPool(), null, false);
+    }
+
+    /**
+     * Create an engine
+     *
+     * @param curve - initialized curve
+     * @param pool - the pool the chunks of the channel calls are spread on
+     * @param keyPool - started pool of pre-wrapped data keys or null to wrap
+     * a key per container
+     * @param isCompress - true >> compress with LZ4 before encryption
+     */
+    public CryptoEngine(EllipticCurveWrapper curve, ForkJoinPool pool, DataKeyPool keyPool, boolean isCompress) {
+        this.curve = curve;
+        this.pool = pool;
+        this.keyPool = keyPool;
+        this.isCompress = isCompress;
+    }
+
+    /**
+     * Encrypt a buffer into a container
+     *
+     * @param input - the plain data
+     * @return the container bytes
+     */
+    public byte[] encrypt(byte[] input) {
+        ChunkedAesWrapper wrapper = createWrapper(true);
+        byte[] output = wrapper.doFinalWithHeader(input);
+        if (output == null) {
+            throw new RuntimeException("Unable to encrypt");
+        }
+
+        return output;
+    }
+
+    /**
+     * Decrypt a container buffer
+     *
+     * @param input - the container bytes
+     * @return the plain data
+     */
+    public byte[] decrypt(byte[] input) {
+        ChunkedAesWrapper wrapper = createWrapper(false);
+        byte[] output = wrapper.doFinalWithHeader(input);
+        if (output == null) {
+            throw new RuntimeException("Unable to decrypt, the container is invalid");
+        }
+
+        return output;
+    }
+
+    /**
+     * Encrypt a channel into a container, the chunks are spread on the pool
+     *
+     * @param input - the plain data
+     * @param output - receives the container
+     * @throws IOException
+     */
+    public void encrypt(ReadableByteChannel input, WritableByteChannel output) throws IOException {
+        new ChunkedStreamCrypto(createWrapper(true), pool).encrypt(input, output);
+    }
+
+    /**
+     * Decrypt a container channel, the chunks are spread on the pool
+     *
+     * @param input - the container
+     * @param output - receives the plain data
+     * @throws IOException if the container is invalid
+     */
+    public void decrypt(ReadableByteChannel input, WritableByteChannel output) throws IOException {
+        new ChunkedStreamCrypto(createWrapper(false), pool).decrypt(input, output);
+    }
+
+    /**
+     * Create the wrapper of one call
+     *
+     * @param isEncrypt - true >> encryption
+     * @return the wrapper
+     */
+    private ChunkedAesWrapper createWrapper(boolean isEncrypt) {
+        ChunkedAesWrapper wrapper = new ChunkedAesWrapper(curve);
+        wrapper.initCipher(isEncrypt);
+        if (isEncrypt) {
+            wrapper.setCompression(isCompress);
+            if (keyPool != null) {
+                SessionKey dataKey = keyPool.take(curve);
+                wrapper.setDataKey(dataKey);
+                dataKey.destroy();
+            }
+        }
+
+        return wrapper;
+    }
+}
@@ -0,0 +1,357 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description DirectoryCrypto - Recursive directory en/decryption on a
+ * work-stealing pool
+ * @package ie.peternagy.jcrypto.module.crypto
+ */
+package ie.peternagy.jcrypto.module.crypto;
+
+import ie.peternagy.jcrypto.algo.EllipticCurveWrapper;
+import ie.peternagy.jcrypto.algo.SessionKey;
+import ie.peternagy.jcrypto.algo.SessionKeyCache;
+import ie.peternagy.jcrypto.module.crypto.FileStateIndex.FileState;
+import ie.peternagy.jcrypto.util.ConstantExchange;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FilenameUtils;
+
+public class DirectoryCrypto {
+
+    private static final long SMALL_FILE_SIZE = 4 * 1024 * 1024;
+    private static final long BATCH_MAX_BYTES = 16 * 1024 * 1024;
+    private static final int BATCH_MAX_FILES = 256;
+    private final Path rootPath;
+    private final boolean isEncrypt;
+    private final ForkJoinPool pool;
+    private final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+    private final LongAdder filesDone = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder filesSkipped = new LongAdder();
+    private final Map<Path, FileState> walkStates = new ConcurrentHashMap<>();
+    private final LongAdder bytesDone = new LongAdder();
+    private final SessionKeyCache keyCache = new SessionKeyCache();
+    private boolean isCompress;
+    private FileStateIndex index;
+    private SessionKey sessionKey;
+    private List<Path> batch = new ArrayList<>();
+    private long batchBytes;
+    private long elapsedMillis;
+
+    public DirectoryCrypto(String dirPath, boolean isEncrypt) {
+        this(dirPath, isEncrypt, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a directory job on a given pool
+     *
+     * @param dirPath - the directory to walk
+     * @param isEncrypt - true >> encryption
+     * @param pool - the pool to run on, the caller owns and shuts it down
+     */
+    public DirectoryCrypto(String dirPath, boolean isEncrypt, ForkJoinPool pool) {
+        this.rootPath = Paths.get(dirPath);
+        this.isEncrypt = isEncrypt;
+        this.pool = pool;
+    }
+
+    /**
+     * Compress the files with LZ4 before encryption
+     *
+     * @param isCompress - true >> compress
+     */
+    public void setCompression(boolean isCompress) {
+        this.isCompress = isCompress;
+    }
+
+    /**
+     * Skip the files encrypted by a previous run, unchanged files cost one
+     * stat (ignored on decrypt)
+     *
+     * @param index - the index of this directory or null for a full run
+     */
+    public void setIndex(FileStateIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Walk the tree once and crypt every matching file
+     *
+     * Small files are grouped into batches sharing one curve, large files get
+     * their own task and spread their chunks over the same pool. On encrypt
+     * all files of the run share one session key, so the EC wrapping runs
+     * once per run instead of once per file
+     */
+    public void cryptDirectory() {
+        long startTime = System.currentTimeMillis();
+        try {
+            Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && isMatching(file) && !isSkipped(file, attrs)) {
+                        queueFile(file, attrs.size());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    Logger.getLogger(DirectoryCrypto.class.getName()).log(Level.WARNING, "Unable to read " + file, ex);
+                    filesFailed.increment();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            flushBatch();
+
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+            saveIndex();
+        } catch (IOException ex) {
+            Logger.getLogger(DirectoryCrypto.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to walk directory " + rootPath, ex);
+        } finally {
+            destroySessionKey();
+            keyCache.clear();
+            elapsedMillis = System.currentTimeMillis() - startTime;
+        }
+    }
+
+    /**
+     * Print the files/sec and MB/sec of the last run
+     */
+    public void printReport() {
+        double seconds = Math.max(elapsedMillis, 1) / 1000.0;
+        System.out.printf("\nFiles: %d done, %d skipped, %d failed in %.2fs\nThroughput: %.1f files/s, %.2f MB/s\n",
+                filesDone.sum(), filesSkipped.sum(), filesFailed.sum(), seconds,
+                filesDone.sum() / seconds, bytesDone.sum() / (1024.0 * 1024.0) / seconds);
+    }
+
+    public long getFilesDone() {
+        return filesDone.sum();
+    }
+
+    public long getFilesFailed() {
+        return filesFailed.sum();
+    }
+
+    public long getFilesSkipped() {
+        return filesSkipped.sum();
+    }
+
+    /**
+     * Check the file belongs to the current direction
+     *
+     * @param file - the file path
+     * @return true if the file should be processed
+     */
+    protected boolean isMatching(Path file) {
+        boolean isEncrypted = ConstantExchange.ENCRYPTED_EXTENSION.equals(FilenameUtils.getExtension(file.toString()));
+
+        return isEncrypt != isEncrypted;
+    }
+
+    /**
+     * Check the index holds the file with the same stat and its output exists
+     *
+     * The stat of changed files is kept for the worker
+     *
+     * @param file - the file path
+     * @param attrs - the attributes of the walk
+     * @return true if the file is unchanged since the last run
+     */
+    private boolean isSkipped(Path file, BasicFileAttributes attrs) {
+        if (index == null || !isEncrypt) {
+            return false;
+        }
+        String indexKey = getIndexKey(file);
+        FileState state = FileState.fromAttributes(attrs);
+        if (index.isUnchanged(indexKey, state) && Files.exists(getOutputPath(file))) {
+            index.keep(indexKey);
+            filesSkipped.increment();
+            return true;
+        }
+        walkStates.put(file, state);
+
+        return false;
+    }
+
+    /**
+     * Check a file with a new stat (eg: touched, copied back) still has the
+     * plaintext of the last run, only read when the size did not change
+     *
+     * @param file - the file path
+     * @param state - the stat of the walk
+     * @return true if the content is unchanged, the index is updated
+     * @throws IOException
+     */
+    private boolean isUnchangedContent(Path file, FileState state) throws IOException {
+        String indexKey = getIndexKey(file);
+        FileState previous = index.getPrevious(indexKey);
+        if (previous == null || previous.getSize() != state.getSize() || !Files.exists(getOutputPath(file))) {
+            return false;
+        }
+        byte[] plainHash;
+        try (InputStream in = Files.newInputStream(file)) {
+            plainHash = DigestUtils.sha256(in);
+        }
+        if (previous.isSameHash(plainHash)) {
+            index.update(indexKey, state.withHash(plainHash));
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Write the index of this run, a failure only costs a full next run
+     */
+    private void saveIndex() {
+        if (index == null || !isEncrypt) {
+            return;
+        }
+        try {
+            index.save();
+        } catch (IOException ex) {
+            Logger.getLogger(DirectoryCrypto.class.getName()).log(Level.WARNING, "Unable to save the index", ex);
+        }
+    }
+
+    /**
+     * Get the session key of the run, wrapped on first use so a run without
+     * changed files does no EC work
+     *
+     * @param curve - the curve of the calling worker
+     * @return the session key
+     */
+    private synchronized SessionKey getSessionKey(EllipticCurveWrapper curve) {
+        if (sessionKey == null) {
+            sessionKey = SessionKey.create(curve);
+        }
+
+        return sessionKey;
+    }
+
+    /**
+     * Zero the session key of the run, the next run wraps a new one
+     */
+    private synchronized void destroySessionKey() {
+        if (sessionKey != null) {
+            sessionKey.destroy();
+            sessionKey = null;
+        }
+    }
+
+    private String getIndexKey(Path file) {
+        return rootPath.relativize(file).toString();
+    }
+
+    private Path getOutputPath(Path file) {
+        return Paths.get(file + "." + ConstantExchange.ENCRYPTED_EXTENSION);
+    }
+
+    /**
+     * Queue a file either on its own or in the current small file batch
+     *
+     * @param file - the file path
+     * @param size - the file size
+     */
+    private void queueFile(Path file, long size) {
+        if (size >= SMALL_FILE_SIZE) {
+            List<Path> single = new ArrayList<>(1);
+            single.add(file);
+            tasks.add(pool.submit(() -> cryptFiles(single)));
+            return;
+        }
+
+        batch.add(file);
+        batchBytes += size;
+        if (batch.size() >= BATCH_MAX_FILES || batchBytes >= BATCH_MAX_BYTES) {
+            flushBatch();
+        }
+    }
+
+    /**
+     * Submit the current batch to the pool
+     */
+    private void flushBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final List<Path> files = batch;
+        tasks.add(pool.submit(() -> cryptFiles(files)));
+        batch = new ArrayList<>();
+        batchBytes = 0;
+    }
+
+    /**
+     * Crypt a list of files on the current worker
+     *
+     * @param files - the files to crypt
+     */
+    private void cryptFiles(List<Path> files) {
+        EllipticCurveWrapper curve = new EllipticCurveWrapper();
+        for (Path file : files) {
+            try {
+                FileState state = walkStates.remove(file);
+                if (state != null && isUnchangedContent(file, state)) {
+                    filesSkipped.increment();
+                    continue;
+                }
+                long size = Files.size(file);
+                MessageDigest plainDigest = state == null ? null : DigestUtils.getSha256Digest();
+                FileCrypto fileCrypto = new FileCrypto(file.toString(), curve, pool);
+                fileCrypto.setCompression(isCompress);
+                fileCrypto.setPlainDigest(plainDigest);
+                if (isEncrypt) {
+                    fileCrypto.setSessionKey(getSessionKey(curve));
+                } else {
+                    fileCrypto.setKeyCache(keyCache);
+                }
+                fileCrypto.cryptFile();
+                if (state != null) {
+                    index.update(getIndexKey(file), state.withHash(plainDigest.digest()));
+                }
+                filesDone.increment();
+                bytesDone.add(size);
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(DirectoryCrypto.class.getName()).log(Level.SEVERE, "Unable to crypt " + file, ex);
+                filesFailed.increment();
+            }
+        }
+    }
+}
@@ -24,45 +24,381 @@
 package ie.peternagy.jcrypto.module.crypto;
 
 import ie.peternagy.jcrypto.algo.AesWrapper;
+import ie.peternagy.jcrypto.algo.ChunkedAesWrapper;
+import ie.peternagy.jcrypto.algo.DataKeyPool;
 import ie.peternagy.jcrypto.algo.EllipticCurveWrapper;
+import ie.peternagy.jcrypto.algo.SessionKey;
+import ie.peternagy.jcrypto.algo.SessionKeyCache;
+import ie.peternagy.jcrypto.util.ByteBufferPool;
+import ie.peternagy.jcrypto.util.ConstantExchange;
+import ie.peternagy.jcrypto.util.DigestChannel;
 import ie.peternagy.jcrypto.util.FileAccessUtil;
+import ie.peternagy.jcrypto.util.MetricsRegistry;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.apache.commons.io.FilenameUtils;
 
 public class FileCrypto {
-    private final AesWrapper aesWrapper;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int CIPHER_BLOCK_SIZE = 16;
+    private static final MetricsRegistry METRICS = MetricsRegistry.getInstance();
     private final EllipticCurveWrapper curve;
+    private final ForkJoinPool pool;
     private final File inputFile;
     private final String inputFileString;
     private boolean isEncrypt;
+    private boolean isCompress;
+    private MessageDigest plainDigest;
+    private SessionKey sessionKey;
+    private DataKeyPool keyPool;
+    private SessionKeyCache keyCache;
     
     public FileCrypto(String filePath) {
-        curve = new EllipticCurveWrapper();
-        aesWrapper = new AesWrapper(curve);
+        this(filePath, new EllipticCurveWrapper(), ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Create a file worker sharing the curve and pool with other workers
+     * 
+     * @param filePath - the file to work with
+     * @param curve - initialized curve, can be shared between threads
+     * @param pool - the pool the chunks are spread on
+     */
+    public FileCrypto(String filePath, EllipticCurveWrapper curve, ForkJoinPool pool) {
+        this.curve = curve;
+        this.pool = pool;
         inputFile = FileAccessUtil.getFileByName(filePath);
         inputFileString = filePath;
-        if("enc".equals(FilenameUtils.getExtension(filePath))){
-            isEncrypt = false;
-            aesWrapper.initCipher(false);
-        }else{
-            isEncrypt = true;
-            aesWrapper.initCipher(true);
-        }
+        isEncrypt = !ConstantExchange.ENCRYPTED_EXTENSION.equals(FilenameUtils.getExtension(filePath));
+    }
+    
+    /**
+     * Compress the data with LZ4 before encryption (ignored on decrypt)
+     * 
+     * @param isCompress - true >> compress
+     */
+    public void setCompression(boolean isCompress){
+        this.isCompress = isCompress;
+    }
+    
+    /**
+     * Encrypt under the session key of a batch, see SessionKey (ignored on
+     * decrypt)
+     * 
+     * @param sessionKey - the batch session key or null for a key of its own
+     */
+    public void setSessionKey(SessionKey sessionKey){
+        this.sessionKey = sessionKey;
+    }
+    
+    /**
+     * Take the data key from a pool of pre-wrapped keys, so the EC wrapping
+     * is off the request path (ignored on decrypt and with a session key)
+     * 
+     * @param keyPool - the started pool or null to wrap a key inline
+     */
+    public void setDataKeyPool(DataKeyPool keyPool){
+        this.keyPool = keyPool;
+    }
+    
+    /**
+     * Unwrap session keys through the cache of a run (ignored on encrypt)
+     * 
+     * @param keyCache - the unwrap cache of the run or null
+     */
+    public void setKeyCache(SessionKeyCache keyCache){
+        this.keyCache = keyCache;
+    }
+    
+    /**
+     * Hash the plaintext while encrypting, so callers get it without a second
+     * read (ignored on decrypt)
+     * 
+     * @param plainDigest - the digest to update or null
+     */
+    public void setPlainDigest(MessageDigest plainDigest){
+        this.plainDigest = plainDigest;
     }
     
+    /**
+     * Crypt the input file to its .enc pair (or back) 
+     * 
+     * The file is streamed through the cipher with bounded direct buffers,
+     * so memory use does not depend on the file size
+     */
     public void cryptFile(){
-        byte[] fileContent = FileAccessUtil.readFromDisk(inputFile);
-        byte[] data;
         String outFileName;
         if(isEncrypt){
-            data = aesWrapper.doFinalWithHeader(fileContent);
-            outFileName = inputFileString + ".enc";
+            outFileName = inputFileString + "." + ConstantExchange.ENCRYPTED_EXTENSION;
         }else{
-            data = aesWrapper.doFinalWithHeader(fileContent);
             outFileName = inputFileString.substring(0, inputFileString.length() - 4);
         }
+        File outFile = new File(outFileName);
+        
+        try(FileChannel in = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+            
+            if(isEncrypt){
+                ChunkedAesWrapper wrapper = createEncryptor();
+                new ChunkedStreamCrypto(wrapper, pool).encrypt(plainDigest == null ? in : new DigestChannel(in, plainDigest), out);
+            }else{
+                decryptChannel(in, out);
+            }
+            METRICS.add(MetricsRegistry.COUNTER_FILES, 1);
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(FileCrypto.class.getName()).log(Level.SEVERE, null, ex);
+            METRICS.add(MetricsRegistry.COUNTER_FILES_FAILED, 1);
+            outFile.delete();
+            throw new RuntimeException("Unable to crypt file " + inputFileString, ex);
+        }
+    }
+    
+    /**
+     * Encrypt the input file into a stream (eg: an upload), nothing is staged
+     * on disk
+     * 
+     * @param out - the destination stream, left open
+     */
+    public void encryptTo(OutputStream out){
+        try(FileChannel in = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)){
+            ChunkedAesWrapper wrapper = createEncryptor();
+            new ChunkedStreamCrypto(wrapper, pool).encrypt(in, Channels.newChannel(out));
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(FileCrypto.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to encrypt file " + inputFileString, ex);
+        }
+    }
+    
+    /**
+     * Create the wrapper of an encryption, keyed by the session key, a pooled
+     * key or a key of its own
+     * 
+     * @return the initialized wrapper
+     */
+    private ChunkedAesWrapper createEncryptor(){
+        ChunkedAesWrapper wrapper = new ChunkedAesWrapper(curve);
+        wrapper.setCompression(isCompress);
+        if(sessionKey != null){
+            wrapper.setSessionKey(sessionKey);
+        }else if(keyPool != null){
+            SessionKey dataKey = keyPool.take(curve);
+            wrapper.setDataKey(dataKey);
+            dataKey.destroy();
+        }
+        
+        return wrapper;
+    }
+    
+    /**
+     * Decrypt a chunked container stream (eg: a download) into a file
+     * 
+     * The stream is read in order while the chunks are decrypted on the pool,
+     * the file is removed if the data is invalid
+     * 
+     * @param in - the container stream
+     * @param outFile - the destination, created or overwritten
+     */
+    public static void decryptToFile(InputStream in, File outFile){
+        try(FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)){
+            new ChunkedStreamCrypto(new ChunkedAesWrapper(new EllipticCurveWrapper())).decrypt(Channels.newChannel(in), out);
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(FileCrypto.class.getName()).log(Level.SEVERE, null, ex);
+            outFile.delete();
+            throw new RuntimeException("Unable to decrypt into " + outFile, ex);
+        }
+    }
+    
+    /**
+     * Encrypt a stream (eg: stdin) into a chunked container stream
+     * 
+     * The header goes out first and memory use is bounded by the chunk window,
+     * so the input length does not matter
+     * 
+     * @param in - the plain stream
+     * @param out - the destination stream, flushed on return
+     * @param isCompress - true >> compress with LZ4 before encryption
+     */
+    public static void encryptStream(InputStream in, OutputStream out, boolean isCompress){
+        try{
+            ChunkedAesWrapper wrapper = new ChunkedAesWrapper(new EllipticCurveWrapper());
+            wrapper.setCompression(isCompress);
+            new ChunkedStreamCrypto(wrapper).encrypt(Channels.newChannel(in), Channels.newChannel(out));
+            out.flush();
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(FileCrypto.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to encrypt stream", ex);
+        }
+    }
+    
+    /**
+     * Decrypt a stream (eg: stdin), the container type is picked from the
+     * version byte
+     * 
+     * Chunks are written as soon as they are authenticated, a failure after
+     * the first chunk leaves a partial output behind
+     * 
+     * @param in - the container stream
+     * @param out - the destination stream, flushed on return
+     */
+    public static void decryptStream(InputStream in, OutputStream out){
+        try{
+            PushbackInputStream source = new PushbackInputStream(in, 1);
+            int version = source.read();
+            if(version == -1){
+                throw new IOException("Empty input stream");
+            }
+            source.unread(version);
+            
+            if((byte) version == ConstantExchange.CHUNKED_VERSION){
+                new ChunkedStreamCrypto(new ChunkedAesWrapper(new EllipticCurveWrapper())).decrypt(Channels.newChannel(source), Channels.newChannel(out));
+            }else{
+                cryptChannel(new AesWrapper(new EllipticCurveWrapper(), false), Channels.newChannel(source), Channels.newChannel(out), false);
+            }
+            out.flush();
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(FileCrypto.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to decrypt stream", ex);
+        }
+    }
+    
+    /**
+     * Decrypt a byte range of the encrypted input file
+     * 
+     * Only the chunks covering the range are read, see ChunkedStreamCrypto
+     * 
+     * @param offset - the first plain byte to decrypt
+     * @param length - the number of plain bytes
+     * @param out - the destination stream, flushed on return
+     */
+    public void decryptRange(long offset, long length, OutputStream out){
+        try(FileChannel in = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)){
+            if(readVersion(in) != ConstantExchange.CHUNKED_VERSION){
+                throw new IOException("Range decryption needs the chunked container format");
+            }
+            new ChunkedStreamCrypto(new ChunkedAesWrapper(curve), pool).decryptRange(in, Channels.newChannel(out), offset, length);
+            out.flush();
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(FileCrypto.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Unable to decrypt range of " + inputFileString, ex);
+        }
+    }
+    
+    /**
+     * Peek the container version byte without moving the position
+     * 
+     * @param in - the container file
+     * @return the version or -1 for empty files
+     * @throws IOException 
+     */
+    protected int readVersion(FileChannel in) throws IOException {
+        ByteBuffer versionBuffer = ByteBuffer.allocate(1);
         
-        FileAccessUtil.writeToDisk(outFileName, data);
+        return in.read(versionBuffer, in.position()) == 1 ? versionBuffer.get(0) : -1;
+    }
+    
+    /**
+     * Decrypt a file, the container type is picked from the version byte
+     * 
+     * @param in - the source file, positioned at the start
+     * @param out - the destination channel
+     * @throws IOException 
+     */
+    protected void decryptChannel(FileChannel in, WritableByteChannel out) throws IOException {
+        if(readVersion(in) == ConstantExchange.CHUNKED_VERSION){
+            ChunkedAesWrapper wrapper = new ChunkedAesWrapper(curve);
+            wrapper.setKeyCache(keyCache);
+            new ChunkedStreamCrypto(wrapper, pool).decrypt(in, out);
+        }else{
+            cryptChannel(new AesWrapper(curve, false), in, out, false);
+        }
+    }
+    
+    /**
+     * Stream the data through the cipher in pooled direct buffers, header first
+     * on encrypt
+     * 
+     * @param aesWrapper - the wrapper initialized for the direction
+     * @param in - the source channel
+     * @param out - the destination channel
+     * @param isEncrypt - true >> encryption
+     * @throws IOException 
+     */
+    protected static void cryptChannel(AesWrapper aesWrapper, ReadableByteChannel in, WritableByteChannel out, boolean isEncrypt) throws IOException {
+        if(isEncrypt){
+            aesWrapper.writeHeader(Channels.newOutputStream(out));
+        }else{
+            aesWrapper.readHeader(Channels.newInputStream(in));
+        }
+        
+        ByteBufferPool bufferPool = ByteBufferPool.forCapacity(BUFFER_SIZE + 2 * CIPHER_BLOCK_SIZE);
+        ByteBuffer buffer = bufferPool.acquire();
+        ByteBuffer outBuffer = bufferPool.acquire();
+        try{
+            buffer.limit(BUFFER_SIZE);
+            while(readBuffer(in, buffer) != -1){
+                buffer.flip();
+                outBuffer.clear();
+                aesWrapper.update(buffer, outBuffer);
+                outBuffer.flip();
+                writeBuffer(out, outBuffer);
+                buffer.clear().limit(BUFFER_SIZE);
+            }
+
+            buffer.flip();
+            outBuffer.clear();
+            if(aesWrapper.doFinal(buffer, outBuffer) < 0){
+                throw new IOException("Invalid final block, the data is corrupted or the key does not match");
+            }
+            outBuffer.flip();
+            writeBuffer(out, outBuffer);
+        }finally{
+            bufferPool.release(buffer);
+            bufferPool.release(outBuffer);
+        }
+    }
+    
+    /**
+     * Read once from the channel, timed as the read stage
+     * 
+     * @param in - the source channel
+     * @param buffer - the buffer to read into
+     * @return the bytes read, -1 at the end of the stream
+     * @throws IOException 
+     */
+    private static int readBuffer(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        long startNanos = METRICS.startTimer();
+        int read = in.read(buffer);
+        METRICS.stopTimer(MetricsRegistry.STAGE_READ, startNanos);
+        METRICS.add(MetricsRegistry.COUNTER_BYTES_READ, Math.max(read, 0));
+        
+        return read;
+    }
+    
+    /**
+     * Write the whole buffer to the channel, timed as the write stage
+     * 
+     * @param out - the destination channel
+     * @param buffer - the bytes between position and limit
+     * @throws IOException 
+     */
+    private static void writeBuffer(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        long startNanos = METRICS.startTimer();
+        METRICS.add(MetricsRegistry.COUNTER_BYTES_WRITTEN, buffer.remaining());
+        FileAccessUtil.writeFully(out, buffer);
+        METRICS.stopTimer(MetricsRegistry.STAGE_WRITE, startNanos);
     }
     
 }
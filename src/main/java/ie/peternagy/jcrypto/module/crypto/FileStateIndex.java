@@ -0,0 +1,274 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description FileStateIndex - Persistent size/mtime/inode/hash index of
+ * the files already encrypted under a directory
+ * @package ie.peternagy.jcrypto.module.crypto
+ */
+package ie.peternagy.jcrypto.module.crypto;
+
+import ie.peternagy.jcrypto.util.CryptoSignatureUtil;
+import ie.peternagy.jcrypto.util.FileAccessUtil;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * One index file per directory root is kept in the application folder
+ * (index/[sha256 of the root path].idx), keyed by the path relative to the
+ * root. A file whose size, mtime and inode match its entry is unchanged
+ * without reading it; when only the stat changed the plaintext hash decides.
+ *
+ * Entries of files not seen during a run are dropped on save, the file is
+ * replaced atomically so an interrupted run keeps the previous index.
+ *
+ * index file: magic, version, entry count, then per entry path (utf),
+ * size, mtime (ns), inode, hash length, plaintext hash (sha256)
+ */
+public class FileStateIndex {
+
+    public static final String INDEX_FOLDER_NAME = "index";
+    public static final String INDEX_EXTENSION = ".idx";
+    private static final int MAGIC = 0x4A434653;
+    private static final byte VERSION = 1;
+    private static final Pattern INODE_PATTERN = Pattern.compile("ino=(\\d+)");
+    private final File indexFile;
+    private final Map<String, FileState> previous = new ConcurrentHashMap<>();
+    private final Map<String, FileState> current = new ConcurrentHashMap<>();
+
+    /**
+     * Open the index of a file, it is empty if the file does not exist or is
+     * unreadable
+     *
+     * @param indexFile - the index file
+     */
+    public FileStateIndex(File indexFile) {
+        this.indexFile = indexFile;
+        load();
+    }
+
+    /**
+     * Open the index of a directory root in the application folder
+     *
+     * @param rootPath - the directory root
+     * @return the index
+     */
+    public static FileStateIndex forDirectory(Path rootPath) {
+        File indexFolder = new File(FileAccessUtil.getUserHome(true), INDEX_FOLDER_NAME);
+        indexFolder.mkdirs();
+        String rootName = rootPath.toAbsolutePath().normalize().toString();
+
+        return new FileStateIndex(new File(indexFolder, Hex.encodeHexString(CryptoSignatureUtil.calculateSHA256(rootName.getBytes())) + INDEX_EXTENSION));
+    }
+
+    /**
+     * Check the stat of a file matches its entry of the previous run
+     *
+     * @param path - the path relative to the root
+     * @param state - the current stat, the hash is not needed
+     * @return true if the file is unchanged
+     */
+    public boolean isUnchanged(String path, FileState state) {
+        FileState entry = previous.get(path);
+
+        return entry != null && entry.isSameStat(state);
+    }
+
+    /**
+     * Get the entry of the previous run
+     *
+     * @param path - the path relative to the root
+     * @return the entry or null
+     */
+    public FileState getPrevious(String path) {
+        return previous.get(path);
+    }
+
+    /**
+     * Carry the previous entry of an unchanged file over to this run
+     *
+     * @param path - the path relative to the root
+     */
+    public void keep(String path) {
+        FileState entry = previous.get(path);
+        if (entry != null) {
+            current.put(path, entry);
+        }
+    }
+
+    /**
+     * Record the state of a processed file
+     *
+     * @param path - the path relative to the root
+     * @param state - the stat and plaintext hash
+     */
+    public void update(String path, FileState state) {
+        current.put(path, state);
+    }
+
+    /**
+     * Get the number of entries recorded in this run
+     *
+     * @return the entry count
+     */
+    public int size() {
+        return current.size();
+    }
+
+    /**
+     * Write the entries of this run, replacing the previous index
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(current.size());
+            for (Map.Entry<String, FileState> entry : current.entrySet()) {
+                FileState state = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(state.size);
+                out.writeLong(state.modifiedNanos);
+                out.writeLong(state.inode);
+                out.writeByte(state.plainHash.length);
+                out.write(state.plainHash);
+            }
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the previous run, a damaged index is ignored (full run)
+     */
+    private void load() {
+        if (!indexFile.isFile()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Invalid index header");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modifiedNanos = in.readLong();
+                long inode = in.readLong();
+                byte[] plainHash = new byte[in.readUnsignedByte()];
+                in.readFully(plainHash);
+                previous.put(path, new FileState(size, modifiedNanos, inode, plainHash));
+            }
+        } catch (EOFException ex) {
+            Logger.getLogger(FileStateIndex.class.getName()).log(Level.WARNING, "Truncated index " + indexFile, ex);
+            previous.clear();
+        } catch (IOException ex) {
+            Logger.getLogger(FileStateIndex.class.getName()).log(Level.WARNING, "Unreadable index " + indexFile, ex);
+            previous.clear();
+        }
+    }
+
+    /**
+     * Immutable stat and plaintext hash of a file
+     */
+    public static class FileState {
+
+        private static final byte[] NO_HASH = new byte[0];
+        private final long size;
+        private final long modifiedNanos;
+        private final long inode;
+        private final byte[] plainHash;
+
+        public FileState(long size, long modifiedNanos, long inode, byte[] plainHash) {
+            this.size = size;
+            this.modifiedNanos = modifiedNanos;
+            this.inode = inode;
+            this.plainHash = plainHash == null ? NO_HASH : plainHash;
+        }
+
+        /**
+         * Create a state from the attributes of the directory walk
+         *
+         * @param attrs - the file attributes
+         * @return the state without hash
+         */
+        public static FileState fromAttributes(BasicFileAttributes attrs) {
+            return new FileState(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), getInode(attrs.fileKey()), null);
+        }
+
+        /**
+         * Copy the stat with a plaintext hash
+         *
+         * @param plainHash - the sha256 of the file
+         * @return the new state
+         */
+        public FileState withHash(byte[] plainHash) {
+            return new FileState(size, modifiedNanos, inode, plainHash);
+        }
+
+        public boolean isSameStat(FileState state) {
+            return size == state.size && modifiedNanos == state.modifiedNanos && inode == state.inode;
+        }
+
+        public boolean isSameHash(byte[] hash) {
+            return plainHash.length > 0 && Arrays.equals(plainHash, hash);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Get the inode from the file key (unix: "(dev=..,ino=..)")
+         *
+         * @param fileKey - the key of the attributes, can be null
+         * @return the inode, the key hash if there is no inode or 0
+         */
+        private static long getInode(Object fileKey) {
+            if (fileKey == null) {
+                return 0;
+            }
+            Matcher matcher = INODE_PATTERN.matcher(fileKey.toString());
+
+            return matcher.find() ? Long.parseLong(matcher.group(1)) : fileKey.hashCode();
+        }
+    }
+}
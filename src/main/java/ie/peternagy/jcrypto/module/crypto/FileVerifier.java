@@ -0,0 +1,303 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description FileVerifier - Read-only integrity audit of encrypted files,
+ * the plaintext is discarded
+ * @package ie.peternagy.jcrypto.module.crypto
+ */
+package ie.peternagy.jcrypto.module.crypto;
+
+import ie.peternagy.jcrypto.algo.AesWrapper;
+import ie.peternagy.jcrypto.algo.ChunkedAesWrapper;
+import ie.peternagy.jcrypto.algo.ChunkIndex;
+import ie.peternagy.jcrypto.algo.EllipticCurveWrapper;
+import ie.peternagy.jcrypto.algo.SessionKeyCache;
+import ie.peternagy.jcrypto.util.ConstantExchange;
+import ie.peternagy.jcrypto.util.MetricsRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Every file is read once: the header checks the version, the key id and the
+ * checksum of the wrapped key (the key is unwrapped), then the frames are
+ * authenticated on the pool and the plaintext is dropped. Nothing is written.
+ *
+ * At most ioDepth files are open at a time, each with its own window of
+ * frames in flight, so memory use and read queue depth do not grow with the
+ * number of files. The checksum check of checksummed containers
+ * authenticates the Merkle root of the trailer and compares the frames to
+ * their CRC32C and leaf hashes instead of decrypting them (see
+ * ChunkVerifier).
+ */
+public class FileVerifier {
+
+    public static final int DEFAULT_IO_DEPTH = 4;
+    private final ForkJoinPool pool;
+    private final Semaphore ioSlots;
+    private final int ioDepth;
+    private final EllipticCurveWrapper curve = new EllipticCurveWrapper();
+    private final SessionKeyCache keyCache = new SessionKeyCache();
+    private final LongAdder filesVerified = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+    private boolean isCorruptionOnly;
+    private long elapsedMillis;
+
+    public FileVerifier() {
+        this(ForkJoinPool.commonPool(), DEFAULT_IO_DEPTH);
+    }
+
+    /**
+     * Create a verifier
+     *
+     * @param pool - the pool the files and their frames are checked on
+     * @param ioDepth - the maximum number of files read at a time
+     */
+    public FileVerifier(ForkJoinPool pool, int ioDepth) {
+        if (ioDepth < 1) {
+            throw new IllegalArgumentException("Invalid I/O depth " + ioDepth);
+        }
+        this.pool = pool;
+        this.ioDepth = ioDepth;
+        this.ioSlots = new Semaphore(ioDepth);
+    }
+
+    /**
+     * Check the frame checksums of checksummed containers instead of
+     * decrypting them, containers without checksums are still decrypted. The
+     * leaf hashes are checked against the authenticated root, so tampered
+     * frames fail too
+     *
+     * @param isCorruptionOnly - true >> checksums only
+     */
+    public void setCorruptionOnly(boolean isCorruptionOnly) {
+        this.isCorruptionOnly = isCorruptionOnly;
+    }
+
+    /**
+     * Verify the files, directories are walked for encrypted files
+     *
+     * @param paths - the files and directories to verify
+     * @return true if every file is intact
+     */
+    public boolean verify(List<Path> paths) {
+        long startTime = System.currentTimeMillis();
+        try {
+            for (Path path : paths) {
+                if (Files.isDirectory(path)) {
+                    walkDirectory(path);
+                } else {
+                    submitFile(path);
+                }
+            }
+            //all slots free again once the last file is done
+            ioSlots.acquireUninterruptibly(ioDepth);
+            ioSlots.release(ioDepth);
+        } finally {
+            keyCache.clear();
+            elapsedMillis = System.currentTimeMillis() - startTime;
+        }
+
+        return filesFailed.sum() == 0;
+    }
+
+    /**
+     * Verify one file on the calling thread
+     *
+     * @param file - the encrypted file
+     * @throws IOException if the file is unreadable, corrupted or tampered, or
+     * the key does not match
+     */
+    public void verifyFile(Path file) throws IOException {
+        DiscardChannel out = new DiscardChannel();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer version = ByteBuffer.allocate(1);
+            if (in.read(version, 0) != 1) {
+                throw new IOException("Empty container");
+            }
+
+            if (version.get(0) == ConstantExchange.CHUNKED_VERSION) {
+                ChunkedAesWrapper wrapper = new ChunkedAesWrapper(curve);
+                wrapper.setKeyCache(keyCache);
+                if (isCorruptionOnly && verifyChecksums(wrapper, in)) {
+                    bytesRead.add(in.size());
+                    return;
+                }
+                in.position(0);
+                new ChunkedStreamCrypto(wrapper, pool).decrypt(in, out);
+            } else {
+                FileCrypto.cryptChannel(new AesWrapper(curve, false), in, out, false);
+            }
+            bytesRead.add(in.size());
+        } catch (RuntimeException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Print the files/sec and MB/sec of the last run and the failed files
+     */
+    public void printReport() {
+        double seconds = Math.max(elapsedMillis, 1) / 1000.0;
+        for (String failure : failures) {
+            System.out.println("FAILED " + failure);
+        }
+        System.out.printf("\nFiles: %d intact, %d failed in %.2fs\nThroughput: %.1f files/s, %.2f MB/s\n",
+                filesVerified.sum(), filesFailed.sum(), seconds,
+                (filesVerified.sum() + filesFailed.sum()) / seconds, bytesRead.sum() / (1024.0 * 1024.0) / seconds);
+    }
+
+    public long getFilesVerified() {
+        return filesVerified.sum();
+    }
+
+    public long getFilesFailed() {
+        return filesFailed.sum();
+    }
+
+    /**
+     * Get the failed files of the last run
+     *
+     * @return the file paths with the reason
+     */
+    public Queue<String> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Check the header, the root tag and the frame checksums of a chunked
+     * container
+     *
+     * @param wrapper - the wrapper to read the header with
+     * @param in - the container, positioned at the start
+     * @return true if checked, false if the container has no checksums
+     * @throws IOException if a frame does not match its checksums
+     */
+    private boolean verifyChecksums(ChunkedAesWrapper wrapper, FileChannel in) throws IOException {
+        wrapper.readHeader(Channels.newInputStream(in));
+        if (!wrapper.isChecksummed()) {
+            return false;
+        }
+        ChunkIndex chunkIndex = ChunkIndex.read(in);
+        wrapper.checkIndex(chunkIndex);
+        long badChunk = new ChunkVerifier(pool, true).verify(in, chunkIndex);
+        if (badChunk >= 0) {
+            throw new IOException("Chunk " + badChunk + " does not match its checksum, the data is corrupted");
+        }
+
+        return true;
+    }
+
+    /**
+     * Queue every encrypted file of a directory tree
+     *
+     * @param dirPath - the directory
+     */
+    private void walkDirectory(Path dirPath) {
+        try {
+            Files.walkFileTree(dirPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && ConstantExchange.ENCRYPTED_EXTENSION.equals(FilenameUtils.getExtension(file.toString()))) {
+                        submitFile(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    recordFailure(file, ex);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            recordFailure(dirPath, ex);
+        }
+    }
+
+    /**
+     * Verify a file on the pool once an I/O slot is free
+     *
+     * @param file - the encrypted file
+     */
+    private void submitFile(Path file) {
+        ioSlots.acquireUninterruptibly();
+        pool.execute(() -> {
+            try {
+                verifyFile(file);
+                filesVerified.increment();
+                MetricsRegistry.getInstance().add(MetricsRegistry.COUNTER_FILES, 1);
+            } catch (IOException ex) {
+                recordFailure(file, ex);
+            } finally {
+                ioSlots.release();
+            }
+        });
+    }
+
+    private void recordFailure(Path file, Exception ex) {
+        Logger.getLogger(FileVerifier.class.getName()).log(Level.WARNING, "Verification failed for " + file, ex);
+        failures.add(file + ": " + (ex.getMessage() != null ? ex.getMessage() : ex.toString()));
+        filesFailed.increment();
+        MetricsRegistry.getInstance().add(MetricsRegistry.COUNTER_FILES_FAILED, 1);
+    }
+
+    /**
+     * Channel dropping the plaintext
+     */
+    private static class DiscardChannel implements WritableByteChannel {
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description CryptoDaemon - Resident crypto worker serving jobs on a
+ * loopback port
+ * @package ie.peternagy.jcrypto.module.daemon
+ */
+package ie.peternagy.jcrypto.module.daemon;
+
+import ie.peternagy.jcrypto.algo.ChunkedAesWrapper;
+import ie.peternagy.jcrypto.algo.DataKeyPool;
+import ie.peternagy.jcrypto.algo.EllipticCurveKeyRing;
+import ie.peternagy.jcrypto.algo.EllipticCurveWrapper;
+import ie.peternagy.jcrypto.module.crypto.FileCrypto;
+import ie.peternagy.jcrypto.module.storage.S3Wrapper;
+import ie.peternagy.jcrypto.util.ConstantExchange;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import ie.peternagy.jcrypto.util.FileAccessUtil;
+import ie.peternagy.jcrypto.util.LatencyHistogram;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Keeps the keys, the shared curve and the JIT warm between jobs, so a job
+ * costs a socket round trip instead of a JVM start.
+ *
+ * The protocol is one command per line (UTF-8), usable from DaemonClient or
+ * any line based tool (nc, bash /dev/tcp):
+ *
+ * AUTH [token] - first line, the token is read from the token file
+ * ENCRYPT [path] - encrypt the file to [path].enc
+ * DECRYPT [path.enc] - decrypt the file next to itself
+ * UPLOAD [path] - encrypt the file into the storage provider
+ * STATS - latency percentiles (us) per command and the data key pool
+ * PING, QUIT, SHUTDOWN
+ *
+ * Every command is answered with "OK [micros]" or "ERR [message]", STATS
+ * sends its lines first. Only the loopback interface is bound and the token
+ * file is readable by its owner only. A line longer than MAX_LINE_LENGTH
+ * bytes closes the connection.
+ */
+public class CryptoDaemon {
+
+    public static final int DEFAULT_PORT = 47113;
+    public static final String TOKEN_FILE_NAME = "daemon.token";
+    public static final String RESPONSE_OK = "OK";
+    public static final String RESPONSE_ERROR = "ERR";
+    public static final int MAX_LINE_LENGTH = 8 * 1024;
+    private static final int TOKEN_LENGTH = 32;
+    private static final int WARMUP_ROUNDS = 100;
+    private static final int WARMUP_SIZE = 16 * 1024;
+    private static final int IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    private final int port;
+    private final File tokenFile;
+    private final ExecutorService workers;
+    private final ForkJoinPool cryptoPool;
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentSkipListMap<>();
+    private volatile ServerSocket serverSocket;
+    private final DataKeyPool keyPool;
+    private EllipticCurveWrapper curve;
+    private S3Wrapper s3Wrapper;
+    private byte[] token;
+
+    public CryptoDaemon(int port) {
+        this(port, DataKeyPool.DEFAULT_DEPTH);
+    }
+
+    public CryptoDaemon(int port, int keyPoolDepth) {
+        this(port, Runtime.getRuntime().availableProcessors() * 2, new File(FileAccessUtil.getUserHome(true), TOKEN_FILE_NAME), keyPoolDepth);
+    }
+
+    public CryptoDaemon(int port, int maxClients, File tokenFile) {
+        this(port, maxClients, tokenFile, DataKeyPool.DEFAULT_DEPTH);
+    }
+
+    /**
+     * Create a daemon
+     *
+     * @param port - the loopback port, 0 picks a free one
+     * @param maxClients - the connections served at the same time, further
+     * clients wait
+     * @param tokenFile - the file the client token is written to
+     * @param keyPoolDepth - the data keys wrapped ahead of the ENCRYPT and
+     * UPLOAD jobs
+     */
+    public CryptoDaemon(int port, int maxClients, File tokenFile, int keyPoolDepth) {
+        this.port = port;
+        this.tokenFile = tokenFile;
+        this.workers = Executors.newFixedThreadPool(maxClients);
+        this.cryptoPool = ForkJoinPool.commonPool();
+        this.keyPool = new DataKeyPool(keyPoolDepth);
+    }
+
+    /**
+     * Set the storage provider of the UPLOAD jobs
+     *
+     * @param s3Wrapper - the bucket to upload to or null to refuse uploads
+     */
+    public void setS3Wrapper(S3Wrapper s3Wrapper) {
+        this.s3Wrapper = s3Wrapper;
+    }
+
+    /**
+     * Load the keys, warm up the cipher code and bind the port
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        if (EllipticCurveKeyRing.getInstance().getDefaultKey() == null) {
+            throw new IOException("No EC key available, generate the keys first");
+        }
+        curve = new EllipticCurveWrapper();
+        warmUp();
+        keyPool.start();
+        token = Hex.encodeHexString(CryptoSecurityUtil.getSecureBytes(TOKEN_LENGTH)).getBytes(StandardCharsets.US_ASCII);
+        writeTokenFile();
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Accept clients until stopped, blocks the calling thread
+     */
+    public void serve() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                workers.execute(() -> handleClient(socket));
+            } catch (SocketException ex) {
+                if (!serverSocket.isClosed()) {
+                    Logger.getLogger(CryptoDaemon.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(CryptoDaemon.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting clients and drop the token
+     */
+    public void stop() {
+        tokenFile.delete();
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CryptoDaemon.class.getName()).log(Level.WARNING, null, ex);
+        }
+        workers.shutdown();
+        keyPool.shutdown();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public File getTokenFile() {
+        return tokenFile;
+    }
+
+    /**
+     * Get the latencies of a command
+     *
+     * @param command - the command name
+     * @return the histogram (us) or null if the command never ran
+     */
+    public LatencyHistogram getLatency(String command) {
+        return latencies.get(command);
+    }
+
+    public DataKeyPool getKeyPool() {
+        return keyPool;
+    }
+
+    /**
+     * Serve the commands of one client until it quits or goes idle
+     *
+     * @param socket - the client connection
+     */
+    private void handleClient(Socket socket) {
+        try (Socket client = socket;
+                InputStream in = new BufferedInputStream(client.getInputStream());
+                Writer out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8))) {
+            client.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            client.setTcpNoDelay(true);
+            if (!isAuthorized(readLine(in))) {
+                reply(out, RESPONSE_ERROR + " Invalid token");
+                return;
+            }
+            reply(out, RESPONSE_OK);
+
+            String line;
+            while ((line = readLine(in)) != null) {
+                if (!execute(line.trim(), out)) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(CryptoDaemon.class.getName()).log(Level.FINE, "Client disconnected", ex);
+        }
+    }
+
+    /**
+     * Read a line of at most MAX_LINE_LENGTH bytes, the line end (LF or CRLF)
+     * is dropped
+     *
+     * @param in - the client stream
+     * @return the line or null at the end of the stream
+     * @throws IOException if the line is too long
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int next;
+        while ((next = in.read()) != '\n') {
+            if (next < 0) {
+                return line.size() == 0 ? null : new String(line.toByteArray(), StandardCharsets.UTF_8);
+            } else if (line.size() == MAX_LINE_LENGTH) {
+                throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+            }
+            line.write(next);
+        }
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * Run one command and answer it
+     *
+     * @param line - the command line
+     * @param out - the client writer
+     * @return false if the connection should be closed
+     * @throws IOException
+     */
+    private boolean execute(String line, Writer out) throws IOException {
+        int split = line.indexOf(' ');
+        String command = (split < 0 ? line : line.substring(0, split)).toUpperCase();
+        String argument = split < 0 ? "" : line.substring(split + 1).trim();
+        long startTime = System.nanoTime();
+
+        try {
+            switch (command) {
+                case "PING":
+                    break;
+                case "ENCRYPT":
+                    cryptFile(argument, true);
+                    break;
+                case "DECRYPT":
+                    cryptFile(argument, false);
+                    break;
+                case "UPLOAD":
+                    uploadFile(argument);
+                    break;
+                case "STATS":
+                    writeStats(out);
+                    break;
+                case "QUIT":
+                    reply(out, RESPONSE_OK);
+                    return false;
+                case "SHUTDOWN":
+                    reply(out, RESPONSE_OK);
+                    stop();
+                    return false;
+                default:
+                    reply(out, RESPONSE_ERROR + " Unknown command " + command);
+                    return true;
+            }
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(CryptoDaemon.class.getName()).log(Level.SEVERE, "Job failed: " + line, ex);
+            reply(out, RESPONSE_ERROR + " " + String.valueOf(ex.getMessage()).replace('\n', ' '));
+            return true;
+        }
+
+        long elapsedMicros = (System.nanoTime() - startTime) / 1000;
+        latencies.computeIfAbsent(command, key -> new LatencyHistogram()).record(elapsedMicros);
+        reply(out, RESPONSE_OK + " " + elapsedMicros);
+
+        return true;
+    }
+
+    /**
+     * Crypt a file on the current worker
+     *
+     * @param path - the absolute file path
+     * @param isEncrypt - the expected direction
+     * @throws IOException if the file does not fit the direction
+     */
+    private void cryptFile(String path, boolean isEncrypt) throws IOException {
+        File file = checkFile(path);
+        boolean isEncrypted = ConstantExchange.ENCRYPTED_EXTENSION.equals(FilenameUtils.getExtension(path));
+        if (isEncrypt == isEncrypted) {
+            throw new IOException((isEncrypt ? "Already encrypted " : "Not an encrypted file ") + path);
+        }
+
+        FileCrypto fileCrypto = new FileCrypto(file.getPath(), curve, cryptoPool);
+        fileCrypto.setDataKeyPool(keyPool);
+        fileCrypto.cryptFile();
+    }
+
+    /**
+     * Encrypt a file into the storage provider
+     *
+     * @param path - the absolute file path
+     * @throws IOException
+     */
+    private void uploadFile(String path) throws IOException {
+        if (s3Wrapper == null) {
+            throw new IOException("No storage provider configured");
+        }
+        File file = checkFile(path);
+
+        FileCrypto fileCrypto = new FileCrypto(file.getPath(), curve, cryptoPool);
+        fileCrypto.setDataKeyPool(keyPool);
+        s3Wrapper.upload(file.getName() + "." + ConstantExchange.ENCRYPTED_EXTENSION, fileCrypto::encryptTo);
+    }
+
+    private File checkFile(String path) throws IOException {
+        File file = new File(path);
+        if (!file.isAbsolute() || !file.isFile()) {
+            throw new IOException("Not an absolute path to a file: " + path);
+        }
+
+        return file;
+    }
+
+    /**
+     * Send one line per command: count, mean and percentiles in us, then the
+     * data key pool
+     *
+     * @param out - the client writer
+     * @throws IOException
+     */
+    private void writeStats(Writer out) throws IOException {
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            out.write(String.format("%s count=%d mean=%.0f p50=%d p90=%d p99=%d p999=%d max=%d\n", entry.getKey().toLowerCase(),
+                    histogram.getCount(), histogram.getMean(), histogram.getPercentile(50), histogram.getPercentile(90),
+                    histogram.getPercentile(99), histogram.getPercentile(99.9), histogram.getMax()));
+        }
+        out.write(String.format("keypool depth=%d ready=%d hits=%d misses=%d hitrate=%.2f\n", keyPool.getDepth(),
+                keyPool.getReady(), keyPool.getHits(), keyPool.getMisses(), keyPool.getHitRate()));
+    }
+
+    /**
+     * Check the first line of a client in constant time
+     *
+     * @param line - the AUTH line
+     * @return true if the token matches
+     */
+    private boolean isAuthorized(String line) {
+        if (line == null || !line.startsWith("AUTH ")) {
+            return false;
+        }
+
+        return MessageDigest.isEqual(token, line.substring(5).trim().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void reply(Writer out, String line) throws IOException {
+        out.write(line);
+        out.write('\n');
+        out.flush();
+    }
+
+    /**
+     * Write the token, the file is created readable by the owner only where
+     * the file system supports it, so the token is never exposed
+     *
+     * @throws IOException
+     */
+    private void writeTokenFile() throws IOException {
+        Path path = tokenFile.toPath();
+        Files.deleteIfExists(path);
+        if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Logger.getLogger(CryptoDaemon.class.getName()).log(Level.WARNING, "Unable to restrict " + tokenFile);
+            Files.createFile(path);
+        }
+        Files.write(path, token);
+    }
+
+    /**
+     * Run the chunked cipher both ways, so the first jobs hit compiled code
+     */
+    private void warmUp() {
+        byte[] data = CryptoSecurityUtil.getSecureBytes(WARMUP_SIZE);
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            ChunkedAesWrapper encryptor = new ChunkedAesWrapper(curve);
+            encryptor.initCipher(true);
+            byte[] encrypted = encryptor.doFinalWithHeader(data);
+            ChunkedAesWrapper decryptor = new ChunkedAesWrapper(curve);
+            decryptor.initCipher(false);
+            if (!Arrays.equals(data, decryptor.doFinalWithHeader(encrypted))) {
+                throw new IllegalStateException("Warm up round trip failed");
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description DaemonClient - Thin client of the CryptoDaemon line protocol
+ * @package ie.peternagy.jcrypto.module.daemon
+ */
+package ie.peternagy.jcrypto.module.daemon;
+
+import ie.peternagy.jcrypto.util.FileAccessUtil;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DaemonClient implements Closeable {
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final Writer out;
+
+    public DaemonClient(int port) throws IOException {
+        this(port, new File(FileAccessUtil.getUserHome(true), CryptoDaemon.TOKEN_FILE_NAME));
+    }
+
+    /**
+     * Connect and authenticate to a daemon on the loopback interface
+     *
+     * @param port - the daemon port
+     * @param tokenFile - the token file written by the daemon
+     * @throws IOException if the daemon is not running or refuses the token
+     */
+    public DaemonClient(int port, File tokenFile) throws IOException {
+        if (!tokenFile.isFile()) {
+            throw new IOException("No daemon token at " + tokenFile + ", start the daemon first");
+        }
+        String token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII).trim();
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+        List<String> response = send("AUTH " + token);
+        if (!isSuccess(response)) {
+            close();
+            throw new IOException("Daemon refused the connection: " + response.get(response.size() - 1));
+        }
+    }
+
+    /**
+     * Send a command and wait for its answer
+     *
+     * @param command - the command line, see CryptoDaemon
+     * @return the response lines, the last one starts with OK or ERR
+     * @throws IOException
+     */
+    public final List<String> send(String command) throws IOException {
+        out.write(command);
+        out.write('\n');
+        out.flush();
+
+        List<String> response = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            response.add(line);
+            if (line.startsWith(CryptoDaemon.RESPONSE_OK) || line.startsWith(CryptoDaemon.RESPONSE_ERROR)) {
+                return response;
+            }
+        }
+
+        throw new EOFException("Daemon closed the connection");
+    }
+
+    /**
+     * Check the last line of a response
+     *
+     * @param response - the lines returned by send
+     * @return true if the command succeeded
+     */
+    public static boolean isSuccess(List<String> response) {
+        return !response.isEmpty() && response.get(response.size() - 1).startsWith(CryptoDaemon.RESPONSE_OK);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
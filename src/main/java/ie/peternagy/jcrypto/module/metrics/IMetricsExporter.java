@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description IMetricsExporter - Metrics export format interface
+ * @package ie.peternagy.jcrypto.module.metrics
+ */
+package ie.peternagy.jcrypto.module.metrics;
+
+import ie.peternagy.jcrypto.util.MetricsRegistry;
+import java.io.IOException;
+import java.io.Writer;
+
+public interface IMetricsExporter {
+
+    public void export(MetricsRegistry registry, Writer out) throws IOException;
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description JsonExporter - JSON export of the stage timers and counters
+ * @package ie.peternagy.jcrypto.module.metrics
+ */
+package ie.peternagy.jcrypto.module.metrics;
+
+import ie.peternagy.jcrypto.util.LatencyHistogram;
+import ie.peternagy.jcrypto.util.MetricsRegistry;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Layout: {"timestamp": epoch ms, "stages": {name: {"count", "sum_ns",
+ * "mean_ns", "p50_ns", "p90_ns", "p99_ns", "max_ns"}}, "counters": {name:
+ * value}}, the names are the constants of MetricsRegistry so nothing needs
+ * escaping
+ */
+public class JsonExporter implements IMetricsExporter {
+
+    @Override
+    public void export(MetricsRegistry registry, Writer out) throws IOException {
+        out.write("{\n  \"timestamp\": " + System.currentTimeMillis() + ",\n  \"stages\": {");
+        Iterator<Map.Entry<String, LatencyHistogram>> timers = registry.getTimers().entrySet().iterator();
+        while (timers.hasNext()) {
+            Map.Entry<String, LatencyHistogram> entry = timers.next();
+            LatencyHistogram histogram = entry.getValue();
+            out.write(String.format(Locale.ROOT,
+                    "\n    \"%s\": {\"count\": %d, \"sum_ns\": %d, \"mean_ns\": %.1f, \"p50_ns\": %d, \"p90_ns\": %d, \"p99_ns\": %d, \"max_ns\": %d}%s",
+                    entry.getKey(), histogram.getCount(), histogram.getSum(), histogram.getMean(), histogram.getPercentile(50),
+                    histogram.getPercentile(90), histogram.getPercentile(99), histogram.getMax(), timers.hasNext() ? "," : "\n  "));
+        }
+        out.write("},\n  \"counters\": {");
+        Iterator<Map.Entry<String, LongAdder>> counters = registry.getCounters().entrySet().iterator();
+        while (counters.hasNext()) {
+            Map.Entry<String, LongAdder> entry = counters.next();
+            out.write("\n    \"" + entry.getKey() + "\": " + entry.getValue().sum() + (counters.hasNext() ? "," : "\n  "));
+        }
+        out.write("}\n}\n");
+    }
+}
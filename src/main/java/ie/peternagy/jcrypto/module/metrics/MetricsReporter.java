@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description MetricsReporter - Writes the metrics to a file at exit or on an
+ * interval
+ * @package ie.peternagy.jcrypto.module.metrics
+ */
+package ie.peternagy.jcrypto.module.metrics;
+
+import ie.peternagy.jcrypto.util.MetricsRegistry;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * The file is replaced atomically, so a collector never reads a partial
+ * export. The last export runs on stop() or, if the process is killed, from
+ * a shutdown hook.
+ */
+public class MetricsReporter {
+
+    private final MetricsRegistry registry;
+    private final IMetricsExporter exporter;
+    private final File outFile;
+    private final Thread shutdownHook = new Thread(this::export, "jcrypto-metrics-exit");
+    private ScheduledExecutorService scheduler;
+
+    public MetricsReporter(File outFile) {
+        this(MetricsRegistry.getInstance(), createExporter(outFile), outFile);
+    }
+
+    public MetricsReporter(MetricsRegistry registry, IMetricsExporter exporter, File outFile) {
+        this.registry = registry;
+        this.exporter = exporter;
+        this.outFile = outFile;
+    }
+
+    /**
+     * Pick the format from the file extension
+     *
+     * @param outFile - the export file
+     * @return JSON for .json files, Prometheus text otherwise
+     */
+    public static IMetricsExporter createExporter(File outFile) {
+        return "json".equalsIgnoreCase(FilenameUtils.getExtension(outFile.getName())) ? new JsonExporter() : new PrometheusExporter();
+    }
+
+    /**
+     * Enable the registry and start exporting
+     *
+     * @param intervalSeconds - the export interval, 0 >> at exit only
+     */
+    public synchronized void start(long intervalSeconds) {
+        registry.setEnabled(true);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        if (intervalSeconds > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "jcrypto-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(this::export, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stop the interval export and write the final values
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ex) {
+            //already shutting down, the hook writes the export
+            return;
+        }
+        export();
+    }
+
+    /**
+     * Write the current values, a failure is logged and the next export
+     * tries again
+     */
+    public synchronized void export() {
+        File tempFile = new File(outFile.getAbsolutePath() + ".tmp");
+        try {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8)) {
+                exporter.export(registry, out);
+            }
+            Files.move(tempFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            Logger.getLogger(MetricsReporter.class.getName()).log(Level.WARNING, "Unable to write the metrics to " + outFile, ex);
+        }
+    }
+}
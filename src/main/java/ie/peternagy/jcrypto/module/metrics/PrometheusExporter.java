@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description PrometheusExporter - Prometheus text format export, eg: for the
+ * node_exporter textfile collector
+ * @package ie.peternagy.jcrypto.module.metrics
+ */
+package ie.peternagy.jcrypto.module.metrics;
+
+import ie.peternagy.jcrypto.util.LatencyHistogram;
+import ie.peternagy.jcrypto.util.MetricsRegistry;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The stage timers are written as one summary in seconds with a stage label,
+ * the counters as jcrypto_[name]_total
+ */
+public class PrometheusExporter implements IMetricsExporter {
+
+    private static final String PREFIX = "jcrypto_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    @Override
+    public void export(MetricsRegistry registry, Writer out) throws IOException {
+        Map<String, LatencyHistogram> timers = registry.getTimers();
+        if (!timers.isEmpty()) {
+            String name = PREFIX + "stage_seconds";
+            out.write("# HELP " + name + " Time spent per processing stage\n");
+            out.write("# TYPE " + name + " summary\n");
+            for (Map.Entry<String, LatencyHistogram> entry : timers.entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                for (double quantile : QUANTILES) {
+                    writeSample(out, name, "stage=\"" + entry.getKey() + "\",quantile=\"" + quantile + "\"",
+                            toSeconds(histogram.getPercentile(quantile * 100)));
+                }
+                writeSample(out, name + "_sum", "stage=\"" + entry.getKey() + "\"", toSeconds(histogram.getSum()));
+                out.write(name + "_count{stage=\"" + entry.getKey() + "\"} " + histogram.getCount() + "\n");
+            }
+
+            out.write("# HELP " + name + "_max Longest single call per processing stage\n");
+            out.write("# TYPE " + name + "_max gauge\n");
+            for (Map.Entry<String, LatencyHistogram> entry : timers.entrySet()) {
+                writeSample(out, name + "_max", "stage=\"" + entry.getKey() + "\"", toSeconds(entry.getValue().getMax()));
+            }
+        }
+
+        for (Map.Entry<String, LongAdder> entry : registry.getCounters().entrySet()) {
+            String name = PREFIX + entry.getKey() + "_total";
+            out.write("# TYPE " + name + " counter\n");
+            out.write(name + " " + entry.getValue().sum() + "\n");
+        }
+    }
+
+    private void writeSample(Writer out, String name, String labels, double value) throws IOException {
+        out.write(String.format(Locale.ROOT, "%s{%s} %.9f\n", name, labels, value));
+    }
+
+    private double toSeconds(long nanos) {
+        return nanos / NANOS_PER_SECOND;
+    }
+}
@@ -0,0 +1,519 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description DedupBackup - Chunk level deduplicated backups to S3
+ * @package ie.peternagy.jcrypto.module.storage
+ */
+package ie.peternagy.jcrypto.module.storage;
+
+import ie.peternagy.jcrypto.algo.ChunkedAesWrapper;
+import ie.peternagy.jcrypto.algo.EllipticCurveKeyRing;
+import ie.peternagy.jcrypto.algo.EllipticCurveWrapper;
+import ie.peternagy.jcrypto.util.CipherPool;
+import ie.peternagy.jcrypto.util.CompressionUtil;
+import ie.peternagy.jcrypto.util.ContentDefinedChunker;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import ie.peternagy.jcrypto.util.KeyDerivationUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Files are split with a content defined chunker and every chunk is stored
+ * once as chunks/[id], the id being the HMAC-SHA256 of the plain chunk. A
+ * backup only hashes the chunks the bucket already holds, new chunks are
+ * encrypted (AES-GCM) and uploaded. The chunk list of a file is written last
+ * as manifests/[name].manifest inside the authenticated ChunkedAesWrapper
+ * envelope, so an interrupted backup leaves no half manifest and a tampered
+ * manifest fails the restore.
+ *
+ * The id, encryption and chunker keys are derived (HKDF, one label each)
+ * from the EC private key, the manifest records which key.
+ *
+ * chunk object: version, flags, nonce, ciphertext + tag (aad: id, version,
+ * flags)
+ *
+ * manifest: version, key id length, key id, file length, chunk count, then
+ * id + plain length per chunk
+ */
+public class DedupBackup {
+
+    public static final String CHUNK_PREFIX = "chunks/";
+    public static final String MANIFEST_PREFIX = "manifests/";
+    public static final String MANIFEST_EXTENSION = ".manifest";
+    private static final byte CHUNK_VERSION = 1;
+    private static final byte CHUNK_FLAG_LZ4 = 1;
+    private static final byte MANIFEST_VERSION = 1;
+    private static final int CHUNK_ID_LENGTH = 32;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final String ID_ALGORITHM = "HmacSHA256";
+    private static final String CHUNK_CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+    private static final byte[] ID_KEY_INFO = "jcrypto-chunk-id".getBytes();
+    private static final byte[] CHUNK_KEY_INFO = "jcrypto-chunk-aes".getBytes();
+    private static final byte[] CHUNKER_KEY_INFO = "jcrypto-chunker".getBytes();
+    private final S3Wrapper s3Wrapper;
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final int concurrency;
+    private final LongAdder chunksTotal = new LongAdder();
+    private final LongAdder chunksUploaded = new LongAdder();
+    private final LongAdder bytesTotal = new LongAdder();
+    private final LongAdder bytesUploaded = new LongAdder();
+    private Set<String> knownChunks;
+    private boolean isCompress;
+
+    public DedupBackup(S3Wrapper s3Wrapper) {
+        this(s3Wrapper, ContentDefinedChunker.DEFAULT_MIN_SIZE, ContentDefinedChunker.DEFAULT_AVG_SIZE,
+                ContentDefinedChunker.DEFAULT_MAX_SIZE, S3Wrapper.DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Create a backup with custom chunk sizes
+     *
+     * @param s3Wrapper - the bucket to work with
+     * @param minSize - the smallest chunk
+     * @param avgSize - the expected chunk size, a power of 2
+     * @param maxSize - the largest chunk
+     * @param concurrency - the chunks hashed, encrypted and transferred at the
+     * same time
+     */
+    public DedupBackup(S3Wrapper s3Wrapper, int minSize, int avgSize, int maxSize, int concurrency) {
+        this.s3Wrapper = s3Wrapper;
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Compress new chunks with LZ4 before encryption
+     *
+     * @param isCompress - true >> compress
+     */
+    public void setCompression(boolean isCompress) {
+        this.isCompress = isCompress;
+    }
+
+    /**
+     * Back up a file, uploading only the chunks the bucket does not hold
+     *
+     * @param file - the file to back up
+     * @param name - the backup name, the manifest key is derived from it
+     * @throws IOException
+     */
+    public void backupFile(File file, String name) throws IOException {
+        EllipticCurveKeyRing.KeyEntry keyEntry = EllipticCurveKeyRing.getInstance().getDefaultKey();
+        if (keyEntry == null) {
+            throw new IOException("No EC key available, generate the keys first");
+        }
+        ChunkKeys keys = new ChunkKeys(keyEntry);
+        ContentDefinedChunker chunker = new ContentDefinedChunker(keys.chunkerKey, minSize, avgSize, maxSize);
+        loadKnownChunks();
+
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream entriesOut = new DataOutputStream(entries);
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        ExecutorService workers = createWorkers("dedup-backup");
+        long fileLength = 0;
+        int chunkCount = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[maxSize];
+            int filled = 0;
+            boolean isEof = false;
+            while (true) {
+                if (!isEof) {
+                    int read = IOUtils.read(in, buffer, filled, buffer.length - filled);
+                    filled += read;
+                    isEof = filled < buffer.length;
+                }
+                if (filled == 0) {
+                    break;
+                }
+                int length = chunker.nextBoundary(buffer, 0, filled);
+                final byte[] chunk = Arrays.copyOf(buffer, length);
+                System.arraycopy(buffer, length, buffer, 0, filled - length);
+                filled -= length;
+                fileLength += length;
+                chunkCount++;
+                inFlight.add(workers.submit(() -> storeChunk(keys, chunk)));
+
+                if (inFlight.size() >= concurrency * 2) {
+                    writeEntry(entriesOut, inFlight.poll());
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                writeEntry(entriesOut, inFlight.poll());
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream(entries.size() + 64);
+        DataOutputStream manifestOut = new DataOutputStream(manifest);
+        byte[] keyId = keyEntry.getKeyId();
+        manifestOut.writeByte(MANIFEST_VERSION);
+        manifestOut.writeInt(keyId.length);
+        manifestOut.write(keyId);
+        manifestOut.writeLong(fileLength);
+        manifestOut.writeInt(chunkCount);
+        entries.writeTo(manifestOut);
+        ChunkedAesWrapper manifestWrapper = new ChunkedAesWrapper(new EllipticCurveWrapper());
+        manifestWrapper.initCipher(true);
+        s3Wrapper.putObject(getManifestKey(name), manifestWrapper.doFinalWithHeader(manifest.toByteArray()));
+    }
+
+    /**
+     * Restore a backup into a file, the file is removed if the data is invalid
+     *
+     * @param name - the backup name
+     * @param outFile - the destination, created or overwritten
+     * @throws IOException
+     */
+    public void restoreFile(String name, File outFile) throws IOException {
+        byte[] manifest = decryptManifest(name);
+        ByteBuffer manifestIn = ByteBuffer.wrap(manifest);
+        if (manifestIn.get() != MANIFEST_VERSION) {
+            throw new IOException("Invalid manifest version");
+        }
+        byte[] keyId = new byte[manifestIn.getInt()];
+        manifestIn.get(keyId);
+        long fileLength = manifestIn.getLong();
+        int chunkCount = manifestIn.getInt();
+        EllipticCurveKeyRing.KeyEntry keyEntry = EllipticCurveKeyRing.getInstance().getKey(keyId);
+        if (keyEntry == null) {
+            throw new IOException("The backup was made with an unknown key");
+        }
+        ChunkKeys keys = new ChunkKeys(keyEntry);
+
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        ExecutorService workers = createWorkers("dedup-restore");
+        long written = 0;
+        try (OutputStream out = new FileOutputStream(outFile)) {
+            for (int i = 0; i < chunkCount; i++) {
+                final byte[] id = new byte[CHUNK_ID_LENGTH];
+                manifestIn.get(id);
+                final int length = manifestIn.getInt();
+                inFlight.add(workers.submit(() -> fetchChunk(keys, id, length)));
+
+                if (inFlight.size() >= concurrency * 2) {
+                    written += writeChunk(out, inFlight.poll());
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                written += writeChunk(out, inFlight.poll());
+            }
+            if (written != fileLength) {
+                throw new IOException("Invalid manifest, expected " + fileLength + " bytes got " + written);
+            }
+        } catch (IOException | RuntimeException ex) {
+            outFile.delete();
+            throw ex;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Download and decrypt a manifest, only the authenticated chunked
+     * container is accepted
+     *
+     * @param name - the backup name
+     * @return the plain manifest
+     * @throws IOException if the manifest is malformed or fails authentication
+     */
+    private byte[] decryptManifest(String name) throws IOException {
+        ChunkedAesWrapper manifestWrapper = new ChunkedAesWrapper(new EllipticCurveWrapper());
+        manifestWrapper.initCipher(false);
+        byte[] manifest;
+        try {
+            manifest = manifestWrapper.doFinalWithHeader(s3Wrapper.getObject(getManifestKey(name)));
+        } catch (RuntimeException ex) {
+            throw new IOException("The manifest of " + name + " failed authentication", ex);
+        }
+        if (manifest == null) {
+            throw new IOException("Unable to decrypt the manifest of " + name);
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Print the deduplication metrics so far
+     */
+    public void printReport() {
+        System.out.printf("\nChunks: %d total, %d uploaded\nData: %.2f MB read, %.2f MB new (%.1f%%)\n",
+                chunksTotal.sum(), chunksUploaded.sum(), bytesTotal.sum() / (1024.0 * 1024.0),
+                bytesUploaded.sum() / (1024.0 * 1024.0), bytesUploaded.sum() * 100.0 / Math.max(bytesTotal.sum(), 1));
+    }
+
+    public long getChunksTotal() {
+        return chunksTotal.sum();
+    }
+
+    public long getChunksUploaded() {
+        return chunksUploaded.sum();
+    }
+
+    public long getBytesUploaded() {
+        return bytesUploaded.sum();
+    }
+
+    /**
+     * Get the manifest key of a backup
+     *
+     * @param name - the backup name
+     * @return the object key
+     */
+    public static String getManifestKey(String name) {
+        return MANIFEST_PREFIX + name + MANIFEST_EXTENSION;
+    }
+
+    /**
+     * Hash a chunk and upload it unless the bucket holds it
+     *
+     * @param keys - the chunk keys
+     * @param chunk - the plain chunk
+     * @return the manifest entry, chunk id and plain length
+     * @throws IOException
+     */
+    private byte[] storeChunk(ChunkKeys keys, byte[] chunk) throws IOException {
+        byte[] id = keys.calculateId(chunk);
+        String chunkKey = CHUNK_PREFIX + Hex.encodeHexString(id);
+        chunksTotal.increment();
+        bytesTotal.add(chunk.length);
+        if (knownChunks.add(chunkKey)) {
+            try {
+                s3Wrapper.putObject(chunkKey, keys.encrypt(id, chunk, isCompress));
+            } catch (IOException | RuntimeException ex) {
+                knownChunks.remove(chunkKey);
+                throw ex;
+            }
+            chunksUploaded.increment();
+            bytesUploaded.add(chunk.length);
+        }
+
+        return ByteBuffer.allocate(CHUNK_ID_LENGTH + Integer.BYTES).put(id).putInt(chunk.length).array();
+    }
+
+    /**
+     * Download, decrypt and verify a chunk
+     *
+     * @param keys - the chunk keys
+     * @param id - the chunk id
+     * @param length - the expected plain length
+     * @return the plain chunk
+     * @throws IOException
+     */
+    private byte[] fetchChunk(ChunkKeys keys, byte[] id, int length) throws IOException {
+        byte[] chunk = keys.decrypt(id, s3Wrapper.getObject(CHUNK_PREFIX + Hex.encodeHexString(id)), length);
+        if (chunk.length != length || !MessageDigest.isEqual(keys.calculateId(chunk), id)) {
+            throw new IOException("Chunk " + Hex.encodeHexString(id) + " does not match its id");
+        }
+
+        return chunk;
+    }
+
+    /**
+     * List the chunks of the bucket once per instance
+     *
+     * @throws IOException
+     */
+    private synchronized void loadKnownChunks() throws IOException {
+        if (knownChunks == null) {
+            Set<String> chunks = ConcurrentHashMap.newKeySet();
+            chunks.addAll(s3Wrapper.listKeys(CHUNK_PREFIX));
+            knownChunks = chunks;
+        }
+    }
+
+    private void writeEntry(DataOutputStream entriesOut, Future<byte[]> pending) throws IOException {
+        entriesOut.write(await(pending));
+    }
+
+    private long writeChunk(OutputStream out, Future<byte[]> pending) throws IOException {
+        byte[] chunk = await(pending);
+        out.write(chunk);
+
+        return chunk.length;
+    }
+
+    /**
+     * Wait for a chunk task
+     *
+     * @param pending - the task
+     * @return the task result
+     * @throws IOException if the task failed
+     */
+    private byte[] await(Future<byte[]> pending) throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a chunk");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Chunk task failed", ex.getCause());
+        }
+    }
+
+    /**
+     * Create the daemon threads of one backup or restore
+     *
+     * @param name - the thread name
+     * @return the pool
+     */
+    private ExecutorService createWorkers(String name) {
+        return Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The keys derived from one EC key pair
+     */
+    private static class ChunkKeys {
+
+        private final SecretKeySpec idKey;
+        private final SecretKeySpec encryptionKey;
+        private final byte[] chunkerKey;
+
+        private ChunkKeys(EllipticCurveKeyRing.KeyEntry keyEntry) {
+            byte[] inputKey = keyEntry.getPrivateKey().getEncoded();
+            idKey = new SecretKeySpec(KeyDerivationUtil.hkdfSha512(inputKey, null, ID_KEY_INFO, 32), ID_ALGORITHM);
+            encryptionKey = new SecretKeySpec(KeyDerivationUtil.hkdfSha512(inputKey, null, CHUNK_KEY_INFO, 32), "AES");
+            chunkerKey = KeyDerivationUtil.hkdfSha512(inputKey, null, CHUNKER_KEY_INFO, 32);
+        }
+
+        /**
+         * Calculate the keyed chunk id
+         *
+         * @param chunk - the plain chunk
+         * @return the HMAC-SHA256 of the chunk
+         */
+        private byte[] calculateId(byte[] chunk) {
+            try {
+                Mac mac = Mac.getInstance(ID_ALGORITHM);
+                mac.init(idKey);
+                return mac.doFinal(chunk);
+            } catch (GeneralSecurityException ex) {
+                throw new RuntimeException("Invalid environment, " + ID_ALGORITHM + " is not available", ex);
+            }
+        }
+
+        /**
+         * Encrypt a chunk into its object format
+         *
+         * @param id - the chunk id
+         * @param chunk - the plain chunk
+         * @param isCompress - true >> try LZ4 first
+         * @return the chunk object
+         */
+        private byte[] encrypt(byte[] id, byte[] chunk, boolean isCompress) {
+            byte flags = 0;
+            byte[] content = chunk;
+            byte[] compressed = isCompress ? CompressionUtil.compressBlock(chunk, 0, chunk.length) : null;
+            if (compressed != null) {
+                flags |= CHUNK_FLAG_LZ4;
+                content = compressed;
+            }
+            byte[] nonce = CryptoSecurityUtil.getSecureBytes(NONCE_LENGTH);
+
+            try {
+                Cipher cipher = CipherPool.get(CHUNK_CIPHER_ALGORITHM);
+                cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, nonce));
+                cipher.updateAAD(createAad(id, flags));
+                byte[] object = new byte[2 + NONCE_LENGTH + cipher.getOutputSize(content.length)];
+                object[0] = CHUNK_VERSION;
+                object[1] = flags;
+                System.arraycopy(nonce, 0, object, 2, NONCE_LENGTH);
+                cipher.doFinal(content, 0, content.length, object, 2 + NONCE_LENGTH);
+
+                return object;
+            } catch (GeneralSecurityException ex) {
+                Logger.getLogger(DedupBackup.class.getName()).log(Level.SEVERE, null, ex);
+                throw new RuntimeException("Unable to encrypt chunk", ex);
+            }
+        }
+
+        /**
+         * Decrypt a chunk object
+         *
+         * @param id - the chunk id
+         * @param object - the chunk object
+         * @param maxLength - the largest accepted plain length
+         * @return the plain chunk
+         * @throws IOException if the object is malformed or fails authentication
+         */
+        private byte[] decrypt(byte[] id, byte[] object, int maxLength) throws IOException {
+            if (object.length < 2 + NONCE_LENGTH + TAG_LENGTH || object[0] != CHUNK_VERSION) {
+                throw new IOException("Invalid chunk object " + Hex.encodeHexString(id));
+            }
+            byte flags = object[1];
+
+            try {
+                Cipher cipher = CipherPool.get(CHUNK_CIPHER_ALGORITHM);
+                cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, object, 2, NONCE_LENGTH));
+                cipher.updateAAD(createAad(id, flags));
+                byte[] content = cipher.doFinal(object, 2 + NONCE_LENGTH, object.length - 2 - NONCE_LENGTH);
+
+                return (flags & CHUNK_FLAG_LZ4) != 0 ? CompressionUtil.decompressBlock(content, maxLength) : content;
+            } catch (GeneralSecurityException ex) {
+                throw new IOException("Chunk " + Hex.encodeHexString(id) + " failed authentication", ex);
+            }
+        }
+
+        private byte[] createAad(byte[] id, byte flags) {
+            return ByteBuffer.allocate(id.length + 2).put(id).put(CHUNK_VERSION).put(flags).array();
+        }
+    }
+}
@@ -18,11 +18,694 @@
  * @author Peter Nagy - peternagy.ie
  * @since August 2016
  * @version 0.1
- * @description S3Wrapper - Wrapper class for S3 storage
+ * @description S3Wrapper - Streaming multipart uploads to S3 storage
  * @package ie.peternagy.jcrypto.module.storage
  */
 package ie.peternagy.jcrypto.module.storage;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Uploads are streamed: the data is cut into parts while it is written and
+ * every full part is sent as a multipart upload part from a bounded pool,
+ * so producing the data (eg: encryption) and the transfer overlap. At most
+ * concurrency + 1 parts are held in memory, nothing is staged on disk.
+ * S3 takes at most 10000 parts, so the part size doubles every 1000 parts
+ * and a stream of unknown length (eg: stdin) still fits, 8MB parts reach
+ * about 2TB before the last part.
+ *
+ * Downloads are the reverse: part size ranges are fetched with parallel
+ * ranged GETs and handed to the reader in order through a bounded window of
+ * 2 * concurrency ranges.
+ */
 public class S3Wrapper {
-    
+
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final int MAX_PART_COUNT = 10000;
+    public static final int PARTS_PER_SIZE_STEP = 1000;
+    public static final int MAX_PART_SIZE = 512 * 1024 * 1024;
+    private static final int MAX_PART_RETRIES = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 200;
+    private final AmazonS3 s3Client;
+    private final String bucketName;
+    private final int partSize;
+    private final int concurrency;
+    private final LongAdder bytesUploaded = new LongAdder();
+    private final LongAdder partsUploaded = new LongAdder();
+    private final LongAdder bytesDownloaded = new LongAdder();
+    private final LongAdder rangesDownloaded = new LongAdder();
+    private final LongAdder partRetries = new LongAdder();
+    private final LongAdder transferNanos = new LongAdder();
+
+    public S3Wrapper(AmazonS3 s3Client, String bucketName) {
+        this(s3Client, bucketName, DEFAULT_PART_SIZE, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Create a wrapper with custom part size
+     *
+     * @param s3Client - the initialized client
+     * @param bucketName - the target bucket
+     * @param partSize - the size of the first parts and the download ranges
+     * in bytes, S3 accepts 5MB or more
+     * @param concurrency - the maximum parts or ranges transferred at the
+     * same time
+     */
+    public S3Wrapper(AmazonS3 s3Client, String bucketName, int partSize, int concurrency) {
+        if (partSize <= 0 || concurrency <= 0) {
+            throw new IllegalArgumentException("Invalid part size or upload concurrency");
+        }
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Open a stream uploading everything written to it as object key
+     *
+     * The object is complete once the stream is closed, a failed upload is
+     * aborted and reported by write or close. A writer that fails has to call
+     * abort() before close, so a truncated object never replaces the stored
+     * one (see upload)
+     *
+     * @param key - the object key
+     * @return the upload stream
+     */
+    public MultipartUploadStream openUploadStream(String key) {
+        return new MultipartUploadStream(key);
+    }
+
+    /**
+     * Upload the output of a writer as object key, a writer that fails
+     * aborts the upload so no truncated object is stored
+     *
+     * @param key - the object key
+     * @param writer - writes the object into the stream (eg: an encryption)
+     * @throws IOException if the writer or the upload fails
+     */
+    public void upload(String key, StreamWriter writer) throws IOException {
+        try (MultipartUploadStream out = openUploadStream(key)) {
+            try {
+                writer.writeTo(out);
+            } catch (IOException | RuntimeException ex) {
+                out.abort();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Open a stream reading the object key with parallel ranged GETs
+     *
+     * @param key - the object key
+     * @return the download stream, has to be closed
+     */
+    public InputStream openDownloadStream(String key) {
+        long objectLength = s3Client.getObjectMetadata(bucketName, key).getContentLength();
+
+        return new RangedDownloadStream(key, objectLength);
+    }
+
+    /**
+     * Upload a small object in a single request
+     *
+     * @param key - the object key
+     * @param data - the object content
+     * @throws IOException if the upload failed after the retries
+     */
+    public void putObject(String key, byte[] data) throws IOException {
+        long startTime = System.nanoTime();
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(data.length);
+        callWithRetries("upload of " + key, () -> s3Client.putObject(bucketName, key, new ByteArrayInputStream(data), metadata));
+        bytesUploaded.add(data.length);
+        partsUploaded.increment();
+        transferNanos.add(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Download a small object in a single request
+     *
+     * @param key - the object key
+     * @return the object content
+     * @throws IOException if the download failed after the retries
+     */
+    public byte[] getObject(String key) throws IOException {
+        long startTime = System.nanoTime();
+        byte[] data = callWithRetries("download of " + key, () -> {
+            try (S3Object object = s3Client.getObject(bucketName, key)) {
+                return IOUtils.toByteArray(object.getObjectContent());
+            }
+        });
+        bytesDownloaded.add(data.length);
+        rangesDownloaded.increment();
+        transferNanos.add(System.nanoTime() - startTime);
+
+        return data;
+    }
+
+    /**
+     * List the keys under a prefix, following the listing pages
+     *
+     * @param prefix - the key prefix
+     * @return the keys
+     * @throws IOException if the listing failed after the retries
+     */
+    public Set<String> listKeys(String prefix) throws IOException {
+        Set<String> keys = new HashSet<>();
+        ObjectListing listing = callWithRetries("listing of " + prefix,
+                () -> s3Client.listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix)));
+        while (true) {
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                keys.add(summary.getKey());
+            }
+            if (!listing.isTruncated()) {
+                return keys;
+            }
+            final ObjectListing previous = listing;
+            listing = callWithRetries("listing of " + prefix, () -> s3Client.listNextBatchOfObjects(previous));
+        }
+    }
+
+    /**
+     * Print the transfer metrics so far
+     */
+    public void printReport() {
+        double seconds = Math.max(transferNanos.sum(), 1) / 1e9;
+        long bytesTransferred = bytesUploaded.sum() + bytesDownloaded.sum();
+        System.out.printf("\nUploaded: %d parts, %.2f MB\nDownloaded: %d ranges, %.2f MB\nRetries: %d\nThroughput: %.2f MB/s\n",
+                partsUploaded.sum(), bytesUploaded.sum() / (1024.0 * 1024.0),
+                rangesDownloaded.sum(), bytesDownloaded.sum() / (1024.0 * 1024.0), partRetries.sum(),
+                bytesTransferred / (1024.0 * 1024.0) / seconds);
+    }
+
+    public long getBytesUploaded() {
+        return bytesUploaded.sum();
+    }
+
+    public long getPartsUploaded() {
+        return partsUploaded.sum();
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    public long getRangesDownloaded() {
+        return rangesDownloaded.sum();
+    }
+
+    public long getPartRetries() {
+        return partRetries.sum();
+    }
+
+    public String getBucketName() {
+        return bucketName;
+    }
+
+    /**
+     * Run a request, retrying transient client errors with backoff
+     *
+     * @param description - the request in error messages
+     * @param request - the request to run
+     * @return the request result
+     * @throws IOException if the request failed after the retries
+     */
+    private <T> T callWithRetries(String description, Callable<T> request) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            try {
+                return request.call();
+            } catch (AmazonClientException | IOException ex) {
+                if (attempt >= MAX_PART_RETRIES) {
+                    throw new IOException("The " + description + " failed", ex);
+                }
+                partRetries.increment();
+                try {
+                    Thread.sleep(RETRY_BACKOFF_MILLIS << attempt);
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted during the " + description);
+                }
+            } catch (Exception ex) {
+                throw new IOException("The " + description + " failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Create the daemon threads of one transfer
+     *
+     * @param name - the thread name
+     * @return the pool
+     */
+    private ExecutorService createTransferPool(String name) {
+        return Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Writes the content of an upload
+     */
+    public interface StreamWriter {
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Output stream cutting the data into multipart upload parts
+     */
+    public class MultipartUploadStream extends OutputStream {
+
+        private final String key;
+        private final ExecutorService uploaders;
+        private final BlockingQueue<byte[]> freeBuffers;
+        private final List<PartETag> partETags = new ArrayList<>();
+        private final AtomicReference<Exception> failure = new AtomicReference<>();
+        private final long startTime = System.nanoTime();
+        private int buffersCreated;
+        private byte[] buffer;
+        private int bufferLength;
+        private int partNumber;
+        private String uploadId;
+        private boolean isClosed;
+        private boolean isAborted;
+
+        private MultipartUploadStream(String key) {
+            this.key = key;
+            this.freeBuffers = new ArrayBlockingQueue<>(concurrency + 1);
+            this.uploaders = createTransferPool("s3-upload-" + key);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            checkState();
+            while (length > 0) {
+                if (buffer == null) {
+                    buffer = takeBuffer();
+                    bufferLength = 0;
+                }
+                int copyLength = Math.min(length, buffer.length - bufferLength);
+                System.arraycopy(data, offset, buffer, bufferLength, copyLength);
+                bufferLength += copyLength;
+                offset += copyLength;
+                length -= copyLength;
+                if (bufferLength == buffer.length) {
+                    submitPart();
+                }
+            }
+        }
+
+        /**
+         * Drop the upload, close then stores nothing and aborts the parts
+         * already sent
+         */
+        public void abort() {
+            isAborted = true;
+            failure.compareAndSet(null, new IOException("Upload of " + key + " aborted by the writer"));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            try {
+                if (uploadId == null && failure.get() == null) {
+                    //a single part object does not need the multipart overhead
+                    putObject();
+                } else {
+                    if (bufferLength > 0 && failure.get() == null) {
+                        try {
+                            submitPart();
+                        } catch (IOException ex) {
+                            //recorded as the failure, the upload is aborted below
+                        }
+                    }
+                    uploaders.shutdown();
+                    uploaders.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                    completeUpload();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, ex);
+            } finally {
+                uploaders.shutdownNow();
+                transferNanos.add(System.nanoTime() - startTime);
+            }
+            if (!isAborted) {
+                checkFailure();
+            }
+        }
+
+        /**
+         * Hand the current buffer over to an uploader
+         *
+         * @throws IOException if the multipart upload cannot be started
+         */
+        private void submitPart() throws IOException {
+            if (partNumber >= MAX_PART_COUNT) {
+                IOException ex = new IOException("Upload of " + key + " exceeds the " + MAX_PART_COUNT + " parts of a multipart upload");
+                failure.compareAndSet(null, ex);
+                throw ex;
+            }
+            if (uploadId == null) {
+                try {
+                    uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)).getUploadId();
+                } catch (AmazonClientException ex) {
+                    failure.compareAndSet(null, ex);
+                    throw new IOException("Unable to start the upload of " + key, ex);
+                }
+            }
+            final byte[] partData = buffer;
+            final int partLength = bufferLength;
+            final int currentPart = ++partNumber;
+            buffer = null;
+            bufferLength = 0;
+            uploaders.execute(() -> {
+                try {
+                    PartETag partETag = uploadPart(currentPart, partData, partLength);
+                    synchronized (partETags) {
+                        partETags.add(partETag);
+                    }
+                } catch (RuntimeException | InterruptedException ex) {
+                    Logger.getLogger(S3Wrapper.class.getName()).log(Level.SEVERE, "Unable to upload part " + currentPart + " of " + key, ex);
+                    failure.compareAndSet(null, ex);
+                } finally {
+                    freeBuffers.offer(partData);
+                }
+            });
+        }
+
+        /**
+         * Upload a part, retrying transient client errors with backoff
+         *
+         * @param currentPart - the part number, starting from 1
+         * @param partData - the buffer holding the part
+         * @param partLength - the part length
+         * @return the part tag
+         * @throws InterruptedException
+         */
+        private PartETag uploadPart(int currentPart, byte[] partData, int partLength) throws InterruptedException {
+            for (int attempt = 0;; attempt++) {
+                try {
+                    UploadPartRequest request = new UploadPartRequest()
+                            .withBucketName(bucketName)
+                            .withKey(key)
+                            .withUploadId(uploadId)
+                            .withPartNumber(currentPart)
+                            .withPartSize(partLength)
+                            .withInputStream(new ByteArrayInputStream(partData, 0, partLength));
+                    PartETag partETag = s3Client.uploadPart(request).getPartETag();
+                    bytesUploaded.add(partLength);
+                    partsUploaded.increment();
+
+                    return partETag;
+                } catch (AmazonClientException ex) {
+                    if (attempt >= MAX_PART_RETRIES || failure.get() != null) {
+                        throw ex;
+                    }
+                    partRetries.increment();
+                    Thread.sleep(RETRY_BACKOFF_MILLIS << attempt);
+                }
+            }
+        }
+
+        /**
+         * Upload the buffered data as a plain object
+         */
+        private void putObject() {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(bufferLength);
+            byte[] data = buffer == null ? new byte[0] : buffer;
+            try {
+                s3Client.putObject(bucketName, key, new ByteArrayInputStream(data, 0, bufferLength), metadata);
+                bytesUploaded.add(bufferLength);
+                partsUploaded.increment();
+            } catch (AmazonClientException ex) {
+                failure.compareAndSet(null, ex);
+            }
+        }
+
+        /**
+         * Complete the multipart upload, or abort it after a failure
+         */
+        private void completeUpload() {
+            if (uploadId == null) {
+                return;
+            }
+            try {
+                if (failure.get() == null) {
+                    partETags.sort(Comparator.comparingInt(PartETag::getPartNumber));
+                    s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+                } else {
+                    s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+                }
+            } catch (AmazonClientException ex) {
+                Logger.getLogger(S3Wrapper.class.getName()).log(Level.SEVERE, "Unable to finish upload of " + key, ex);
+                failure.compareAndSet(null, ex);
+            }
+        }
+
+        /**
+         * Get a buffer of the next part size, blocks while all buffers are in
+         * flight. Buffers of a smaller part size are dropped
+         *
+         * @return the buffer
+         * @throws IOException
+         */
+        private byte[] takeBuffer() throws IOException {
+            int size = getNextPartSize();
+            byte[] free = freeBuffers.poll();
+            try {
+                if (free == null && buffersCreated > concurrency) {
+                    free = freeBuffers.take();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an upload slot");
+            }
+            if (free != null && free.length == size) {
+                return free;
+            }
+            if (free != null) {
+                buffersCreated--;
+            }
+            buffersCreated++;
+
+            return new byte[size];
+        }
+
+        /**
+         * Get the size of the next part, doubled every PARTS_PER_SIZE_STEP
+         * parts up to MAX_PART_SIZE
+         *
+         * @return the part size in bytes
+         */
+        private int getNextPartSize() {
+            long size = (long) partSize << Math.min(partNumber / PARTS_PER_SIZE_STEP, 30);
+
+            return (int) Math.min(size, Math.max(partSize, MAX_PART_SIZE));
+        }
+
+        /**
+         * Fail fast once the stream is closed or a part could not be uploaded
+         *
+         * @throws IOException
+         */
+        private void checkState() throws IOException {
+            if (isClosed) {
+                throw new IOException("The upload stream of " + key + " is closed");
+            }
+            checkFailure();
+        }
+
+        private void checkFailure() throws IOException {
+            Exception ex = failure.get();
+            if (ex != null) {
+                throw new IOException("Upload of " + key + " failed: " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * Input stream fetching ranges ahead of the reader
+     */
+    private class RangedDownloadStream extends InputStream {
+
+        private final String key;
+        private final long objectLength;
+        private final ExecutorService downloaders;
+        private final Deque<Future<byte[]>> window = new ArrayDeque<>();
+        private final long startTime = System.nanoTime();
+        private long nextOffset;
+        private byte[] current = new byte[0];
+        private int currentPosition;
+        private boolean isClosed;
+
+        private RangedDownloadStream(String key, long objectLength) {
+            this.key = key;
+            this.objectLength = objectLength;
+            this.downloaders = createTransferPool("s3-download-" + key);
+            fillWindow();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            if (isClosed) {
+                throw new IOException("The download stream of " + key + " is closed");
+            }
+            if (length == 0) {
+                return 0;
+            }
+            if (currentPosition == current.length && !nextRange()) {
+                return -1;
+            }
+            int copyLength = Math.min(length, current.length - currentPosition);
+            System.arraycopy(current, currentPosition, data, offset, copyLength);
+            currentPosition += copyLength;
+
+            return copyLength;
+        }
+
+        @Override
+        public int available() {
+            return current.length - currentPosition;
+        }
+
+        @Override
+        public void close() {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            for (Future<byte[]> pending : window) {
+                pending.cancel(true);
+            }
+            window.clear();
+            downloaders.shutdownNow();
+            transferNanos.add(System.nanoTime() - startTime);
+        }
+
+        /**
+         * Move to the next range in order, waiting for it if needed
+         *
+         * @return false at the end of the object
+         * @throws IOException if the range could not be fetched
+         */
+        private boolean nextRange() throws IOException {
+            Future<byte[]> next = window.poll();
+            if (next == null) {
+                return false;
+            }
+            try {
+                current = next.get();
+                currentPosition = 0;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + key);
+            } catch (ExecutionException ex) {
+                throw new IOException("Download of " + key + " failed", ex.getCause());
+            }
+            fillWindow();
+
+            return true;
+        }
+
+        /**
+         * Keep the window full of pending ranges
+         */
+        private void fillWindow() {
+            while (window.size() < concurrency * 2 && nextOffset < objectLength) {
+                final long start = nextOffset;
+                final long end = Math.min(objectLength, start + partSize);
+                window.add(downloaders.submit(() -> fetchRange(start, end)));
+                nextOffset = end;
+            }
+        }
+
+        /**
+         * Fetch a range, retrying transient client errors with backoff
+         *
+         * @param start - the first byte
+         * @param end - the byte after the last one
+         * @return the range bytes
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        private byte[] fetchRange(long start, long end) throws IOException, InterruptedException {
+            for (int attempt = 0;; attempt++) {
+                GetObjectRequest request = new GetObjectRequest(bucketName, key).withRange(start, end - 1);
+                try (S3Object object = s3Client.getObject(request)) {
+                    byte[] range = IOUtils.toByteArray(object.getObjectContent());
+                    if (range.length != end - start) {
+                        throw new IOException("Short range " + start + "-" + end + " of " + key);
+                    }
+                    bytesDownloaded.add(range.length);
+                    rangesDownloaded.increment();
+
+                    return range;
+                } catch (AmazonClientException | IOException ex) {
+                    if (attempt >= MAX_PART_RETRIES) {
+                        throw ex;
+                    }
+                    partRetries.increment();
+                    Thread.sleep(RETRY_BACKOFF_MILLIS << attempt);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description ByteBufferPool - Pool of direct byte buffers of one capacity
+ * @package ie.peternagy.jcrypto.util
+ */
+package ie.peternagy.jcrypto.util;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ByteBufferPool {
+
+    private static final Map<Integer, ByteBufferPool> POOLS = new ConcurrentHashMap<>();
+    private static final byte[] ZEROS = new byte[8192];
+    private final int capacity;
+    private final BlockingQueue<ByteBuffer> idle;
+
+    public ByteBufferPool(int capacity, int maxIdle) {
+        this.capacity = capacity;
+        this.idle = new ArrayBlockingQueue<>(maxIdle);
+    }
+
+    /**
+     * Get the shared pool for a buffer capacity
+     *
+     * @param capacity - the buffer size in bytes
+     * @return the pool
+     */
+    public static ByteBufferPool forCapacity(int capacity) {
+        return POOLS.computeIfAbsent(capacity, key -> new ByteBufferPool(key, Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    /**
+     * Take a cleared buffer, allocates when the pool is empty
+     *
+     * @return a direct buffer
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        buffer.clear();
+
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back, it is zeroed first so no plaintext stays in the
+     * pool and dropped if the pool is full
+     *
+     * @param buffer - a buffer taken from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == capacity) {
+            wipe(buffer);
+            idle.offer(buffer);
+        }
+    }
+
+    /**
+     * Overwrite the whole buffer with zeros
+     *
+     * @param buffer - the buffer to wipe
+     */
+    protected static void wipe(ByteBuffer buffer) {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.put(ZEROS, 0, Math.min(ZEROS.length, buffer.remaining()));
+        }
+        buffer.clear();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description CipherPool - Per thread cache of provider resolved ciphers
+ * @package ie.peternagy.jcrypto.util
+ */
+package ie.peternagy.jcrypto.util;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+
+/**
+ * Cipher.getInstance walks the provider list on every call, and a Cipher is
+ * not thread safe. Each thread keeps one instance per transformation here,
+ * so the lookup runs once per thread and no lock is taken.
+ *
+ * The instance is shared by all callers on the thread: init it before each
+ * operation and finish the operation before the next get on the same
+ * thread. Multi part operations spanning other cipher work (eg: the CBC
+ * streams of AesWrapper) need an instance of their own.
+ */
+public class CipherPool {
+
+    private static final ThreadLocal<Map<String, Cipher>> CIPHERS = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * Get the cipher of the current thread from the default providers
+     *
+     * @param transformation - eg: AES/GCM/NoPadding
+     * @return the cipher, to be initialized by the caller
+     */
+    public static Cipher get(String transformation) {
+        return get(transformation, null);
+    }
+
+    /**
+     * Get the cipher of the current thread from a provider
+     *
+     * @param transformation - eg: ECIES
+     * @param provider - the provider or null for the default providers
+     * @return the cipher, to be initialized by the caller
+     */
+    public static Cipher get(String transformation, Provider provider) {
+        String cacheKey = provider == null ? transformation : transformation + "@" + provider.getName();
+        Map<String, Cipher> ciphers = CIPHERS.get();
+        Cipher cipher = ciphers.get(cacheKey);
+        if (cipher == null) {
+            try {
+                cipher = provider == null ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider);
+            } catch (GeneralSecurityException ex) {
+                throw new RuntimeException("Invalid environment, " + transformation + " is not available", ex);
+            }
+            ciphers.put(cacheKey, cipher);
+        }
+
+        return cipher;
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description CompressionUtil - LZ4 block compression
+ * @package ie.peternagy.jcrypto.util
+ */
+package ie.peternagy.jcrypto.util;
+
+import java.nio.ByteBuffer;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+public class CompressionUtil {
+
+    private static final int PROBE_SIZE = 8 * 1024;
+    private static final double PROBE_MAX_RATIO = 0.9;
+    private static final LZ4Factory LZ4_FACTORY = LZ4Factory.fastestInstance();
+    private static final LZ4Compressor COMPRESSOR = LZ4_FACTORY.fastCompressor();
+    private static final LZ4SafeDecompressor DECOMPRESSOR = LZ4_FACTORY.safeDecompressor();
+
+    /**
+     * Compress a block with LZ4
+     *
+     * A sample from the start of the block is compressed first, so already
+     * compressed data (media, archives) is rejected at the cost of the probe
+     *
+     * @param data - buffer holding the block
+     * @param offset - the block start in data
+     * @param length - the block length
+     * @return the original length followed by the LZ4 data, or null if the
+     * block does not compress
+     */
+    public static byte[] compressBlock(byte[] data, int offset, int length) {
+        if (length > PROBE_SIZE * 2) {
+            byte[] probe = new byte[COMPRESSOR.maxCompressedLength(PROBE_SIZE)];
+            int probeLength = COMPRESSOR.compress(data, offset, PROBE_SIZE, probe, 0, probe.length);
+            if (probeLength > PROBE_SIZE * PROBE_MAX_RATIO) {
+                return null;
+            }
+        }
+
+        byte[] block = new byte[Integer.BYTES + COMPRESSOR.maxCompressedLength(length)];
+        int compressedLength = COMPRESSOR.compress(data, offset, length, block, Integer.BYTES, block.length - Integer.BYTES);
+        if (Integer.BYTES + compressedLength >= length) {
+            return null;
+        }
+        ByteBuffer.wrap(block).putInt(length);
+
+        byte[] result = new byte[Integer.BYTES + compressedLength];
+        System.arraycopy(block, 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Decompress a block created by compressBlock
+     *
+     * @param block - the original length followed by the LZ4 data
+     * @param maxLength - the largest accepted original length
+     * @return the original data
+     */
+    public static byte[] decompressBlock(byte[] block, int maxLength) {
+        int length = ByteBuffer.wrap(block).getInt();
+        if (length < 0 || length > maxLength) {
+            throw new RuntimeException("Invalid compressed block length " + length);
+        }
+
+        try {
+            byte[] data = new byte[length];
+            int decompressedLength = DECOMPRESSOR.decompress(block, Integer.BYTES, block.length - Integer.BYTES, data, 0, length);
+            if (decompressedLength != length) {
+                throw new RuntimeException("Invalid compressed block, expected " + length + " bytes got " + decompressedLength);
+            }
+            return data;
+        } catch (LZ4Exception ex) {
+            throw new RuntimeException("Invalid compressed block", ex);
+        }
+    }
+
+    /**
+     * Compress a block between direct buffers, see compressBlock(byte[])
+     *
+     * @param src - the block between position and limit, left unchanged
+     * @param dest - receives the original length and the LZ4 data, flipped
+     * for reading on success, content undefined otherwise
+     * @return true if the block was compressed
+     */
+    public static boolean compressBlock(ByteBuffer src, ByteBuffer dest) {
+        int length = src.remaining();
+        if (length > PROBE_SIZE * 2) {
+            int probeLength = COMPRESSOR.compress(src, src.position(), PROBE_SIZE, dest, 0, dest.capacity());
+            if (probeLength > PROBE_SIZE * PROBE_MAX_RATIO) {
+                return false;
+            }
+        }
+
+        int compressedLength = COMPRESSOR.compress(src, src.position(), length, dest, Integer.BYTES, dest.capacity() - Integer.BYTES);
+        if (Integer.BYTES + compressedLength >= length) {
+            return false;
+        }
+        dest.clear();
+        dest.putInt(0, length);
+        dest.limit(Integer.BYTES + compressedLength);
+
+        return true;
+    }
+
+    /**
+     * Decompress a block between direct buffers
+     *
+     * @param block - the original length and the LZ4 data between position
+     * and limit
+     * @param dest - receives the original data, flipped for reading
+     * @param maxLength - the largest accepted original length
+     */
+    public static void decompressBlock(ByteBuffer block, ByteBuffer dest, int maxLength) {
+        int length = block.getInt(block.position());
+        if (length < 0 || length > maxLength || length > dest.capacity()) {
+            throw new RuntimeException("Invalid compressed block length " + length);
+        }
+
+        try {
+            int decompressedLength = DECOMPRESSOR.decompress(block, block.position() + Integer.BYTES, block.remaining() - Integer.BYTES, dest, 0, length);
+            if (decompressedLength != length) {
+                throw new RuntimeException("Invalid compressed block, expected " + length + " bytes got " + decompressedLength);
+            }
+            dest.clear();
+            dest.limit(length);
+        } catch (LZ4Exception ex) {
+            throw new RuntimeException("Invalid compressed block", ex);
+        }
+    }
+}
@@ -26,7 +26,9 @@ package ie.peternagy.jcrypto.util;
 import java.io.File;
 
 public class ConstantExchange {
-    public static final byte CURRENT_VERSION = (byte)100;
+    public static final byte PBKDF2_VERSION = (byte)100;
+    public static final byte CURRENT_VERSION = (byte)102;
+    public static final byte CHUNKED_VERSION = (byte)101;
     public static final String ENCRYPTED_EXTENSION = "enc";
     public static final String STORAGE_CONFIG_FILE_NAME = "storage_conf.enc";
     public static final File STORAGE_CONF_FILE = new File(FileAccessUtil.getUserHome(true) + File.separator + ConstantExchange.STORAGE_CONFIG_FILE_NAME);
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description ContentDefinedChunker - Gear rolling hash chunk boundaries
+ * @package ie.peternagy.jcrypto.util
+ */
+package ie.peternagy.jcrypto.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cut points depend on the content only (FastCDC style normalized chunking),
+ * so an insert or change moves the boundaries around it and the chunks
+ * before and after keep their bytes.
+ *
+ * The gear table is derived from a key, so the chunk sizes do not reveal
+ * known content to someone without the key.
+ */
+public class ContentDefinedChunker {
+
+    public static final int DEFAULT_MIN_SIZE = 256 * 1024;
+    public static final int DEFAULT_AVG_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+    private static final byte[] GEAR_INFO = "jcrypto-cdc-gear".getBytes();
+    private final long[] gear = new long[256];
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long maskSmall;
+    private final long maskLarge;
+
+    public ContentDefinedChunker(byte[] key) {
+        this(key, DEFAULT_MIN_SIZE, DEFAULT_AVG_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Create a chunker with custom sizes
+     *
+     * @param key - the key the gear table is derived from
+     * @param minSize - the smallest chunk, except the last one
+     * @param avgSize - the expected chunk size, a power of 2
+     * @param maxSize - the largest chunk
+     */
+    public ContentDefinedChunker(byte[] key, int minSize, int avgSize, int maxSize) {
+        if (minSize <= 0 || avgSize <= minSize || maxSize <= avgSize || Integer.bitCount(avgSize) != 1) {
+            throw new IllegalArgumentException("Invalid chunk sizes " + minSize + "/" + avgSize + "/" + maxSize);
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        int bits = Integer.numberOfTrailingZeros(avgSize);
+        //stricter mask before the average size, looser after: sizes cluster around avg
+        maskSmall = -1L << (Long.SIZE - bits - 2);
+        maskLarge = -1L << (Long.SIZE - bits + 2);
+
+        ByteBuffer gearBytes = ByteBuffer.wrap(KeyDerivationUtil.hkdfSha512(key, null, GEAR_INFO, gear.length * Long.BYTES));
+        for (int i = 0; i < gear.length; i++) {
+            gear[i] = gearBytes.getLong();
+        }
+    }
+
+    /**
+     * Find the end of the chunk starting at offset
+     *
+     * @param data - the buffer
+     * @param offset - the chunk start
+     * @param length - the bytes available from offset, the chunk is cut at
+     * length if there is no boundary before (end of data)
+     * @return the chunk length
+     */
+    public int nextBoundary(byte[] data, int offset, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int end = Math.min(length, maxSize);
+        int normalEnd = Math.min(end, avgSize);
+        long hash = 0;
+        int i = minSize;
+        for (; i < normalEnd; i++) {
+            hash = (hash << 1) + gear[data[offset + i] & 0xff];
+            if ((hash & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + gear[data[offset + i] & 0xff];
+            if ((hash & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+
+        return end;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description Crc32c - CRC32C (Castagnoli) of byte buffers
+ * @package ie.peternagy.jcrypto.util
+ */
+package ie.peternagy.jcrypto.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * Uses java.util.zip.CRC32C where the JVM has it (9+, compiled to the
+ * crc32 instruction), found at runtime so the build stays on Java 8. Older
+ * JVMs get the same checksum from a table.
+ */
+public class Crc32c {
+
+    private static final MethodHandle JDK_CONSTRUCTOR;
+    private static final MethodHandle JDK_UPDATE;
+    private static final int[] TABLE = createTable();
+    private final Checksum jdkChecksum;
+    private int crc = 0xFFFFFFFF;
+
+    static {
+        MethodHandle constructor = null;
+        MethodHandle update = null;
+        try {
+            Class<?> jdkClass = Class.forName("java.util.zip.CRC32C");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            constructor = lookup.findConstructor(jdkClass, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            update = lookup.findVirtual(jdkClass, "update", MethodType.methodType(void.class, ByteBuffer.class))
+                    .asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException ex) {
+            constructor = null;
+            update = null;
+        }
+        JDK_CONSTRUCTOR = constructor;
+        JDK_UPDATE = update;
+    }
+
+    public Crc32c() {
+        try {
+            jdkChecksum = JDK_CONSTRUCTOR == null ? null : (Checksum) JDK_CONSTRUCTOR.invokeExact();
+        } catch (Throwable ex) {
+            throw new IllegalStateException("Unable to create CRC32C", ex);
+        }
+    }
+
+    /**
+     * Calculate the CRC32C of buffers, the buffers are left unchanged
+     *
+     * @param buffers - the data between position and limit
+     * @return the checksum
+     */
+    public static int calculate(ByteBuffer... buffers) {
+        Crc32c checksum = new Crc32c();
+        for (ByteBuffer buffer : buffers) {
+            checksum.update(buffer.duplicate());
+        }
+
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Check the hardware backed implementation of the JVM is used
+     *
+     * @return false on the table fallback
+     */
+    public static boolean isIntrinsic() {
+        return JDK_CONSTRUCTOR != null;
+    }
+
+    /**
+     * Add the bytes between position and limit, the buffer is consumed
+     *
+     * @param buffer - the data
+     */
+    public void update(ByteBuffer buffer) {
+        if (jdkChecksum != null) {
+            try {
+                JDK_UPDATE.invokeExact(jdkChecksum, buffer);
+            } catch (Throwable ex) {
+                throw new IllegalStateException("Unable to update CRC32C", ex);
+            }
+            return;
+        }
+        int value = crc;
+        while (buffer.hasRemaining()) {
+            value = TABLE[(value ^ buffer.get()) & 0xFF] ^ (value >>> 8);
+        }
+        crc = value;
+    }
+
+    /**
+     * Add a region of an array
+     *
+     * @param data - the buffer holding the bytes
+     * @param offset - the region start
+     * @param length - the region length
+     */
+    public void update(byte[] data, int offset, int length) {
+        update(ByteBuffer.wrap(data, offset, length));
+    }
+
+    public long getValue() {
+        return jdkChecksum != null ? jdkChecksum.getValue() : ~crc & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Build the table of the reflected Castagnoli polynomial
+     *
+     * @return the table
+     */
+    private static int[] createTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < table.length; i++) {
+            int value = i;
+            for (int bit = 0; bit < 8; bit++) {
+                value = (value & 1) != 0 ? (value >>> 1) ^ 0x82F63B78 : value >>> 1;
+            }
+            table[i] = value;
+        }
+
+        return table;
+    }
+}
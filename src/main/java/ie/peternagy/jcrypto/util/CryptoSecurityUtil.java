@@ -26,16 +26,22 @@ package ie.peternagy.jcrypto.util;
 
 import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
 import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 public class CryptoSecurityUtil {
 
-    private static final String RANDOM_SOURCE = "SHA1PRNG";
+    private static final String[] RANDOM_SOURCES = {"DRBG", "SHA1PRNG"};
+    private static final int RANDOM_BUFFER_SIZE = 4096;
+    private static final ThreadLocal<RandomBuffer> THREAD_RANDOM = ThreadLocal.withInitial(() -> new RandomBuffer(createSecureRandom()));
     private static final Map<Integer, Integer> EXCLUSIONS = new HashMap<Integer, Integer>() {
         {
             put(92, 92);//include in settings
@@ -43,29 +49,38 @@ public class CryptoSecurityUtil {
     };
 
     /**
-     * Get an initialized SecureRandom instance
+     * Get the BouncyCastle provider, built and registered once on first use
+     *
+     * Building the provider registers every BC algorithm, so it is kept out
+     * of the wrapper constructors and only paid when the EC code runs
+     *
+     * @return the registered provider
+     */
+    public static Provider getBouncyCastleProvider() {
+        return BouncyCastleHolder.PROVIDER;
+    }
+
+    /**
+     * Get the SecureRandom instance of the current thread
      *
      * @return SecureRandom
      */
     public static SecureRandom getSecureRandom() {
-        try {
-            return SecureRandom.getInstance(RANDOM_SOURCE);
-        } catch (NoSuchAlgorithmException ex) {
-            throw new RuntimeException("Invalid environment", ex);
-        }
+        return THREAD_RANDOM.get().random;
     }
 
     /**
      * Get secure random bytes
      *
+     * Small requests are served from a per-thread buffer, so the IV, salt
+     * and key generation does not hit the generator on every call
+     *
      * @param length - number of bytes to generate
      * @return byte[] with secure bytes
      */
     public static byte[] getSecureBytes(int length) {
-        SecureRandom secRandom = getSecureRandom();
         byte[] bytes = new byte[length];
-        secRandom.setSeed(secRandom.nextLong());
-        secRandom.nextBytes(bytes);
+        THREAD_RANDOM.get().nextBytes(bytes);
 
         return bytes;
     }
@@ -74,13 +89,11 @@ public class CryptoSecurityUtil {
      * Generate a random int in range
      *
      * @param min - the lower bound
-     * @param max - the upper bound
+     * @param max - the upper bound (exclusive)
      * @return the generated random integer
      */
     public static int getRandomIntInRange(int min, int max) {
-        SecureRandom secRandom = getSecureRandom();
-
-        return secRandom.nextInt((max - min) + min);
+        return min + getSecureRandom().nextInt(max - min);
     }
 
     /**
@@ -139,7 +152,6 @@ public class CryptoSecurityUtil {
      * @return random integer
      */
     private static int getAsciiValueWithExclusions(int lowerBound) {
-
         SecureRandom secRandom = getSecureRandom();
         int num;
         do {
@@ -149,4 +161,73 @@ public class CryptoSecurityUtil {
             }
         } while (true);
     }
+
+    /**
+     * Create a seeded generator, DRBG where available (java 9+)
+     *
+     * @return SecureRandom
+     */
+    private static SecureRandom createSecureRandom() {
+        for (String source : RANDOM_SOURCES) {
+            try {
+                SecureRandom secRandom = SecureRandom.getInstance(source);
+                if ("SHA1PRNG".equals(source)) {
+                    secRandom.setSeed(new SecureRandom().generateSeed(32));
+                }
+                return secRandom;
+            } catch (NoSuchAlgorithmException ex) {
+                //try the next source
+            }
+        }
+        throw new RuntimeException("Invalid environment, no secure random source");
+    }
+
+    /**
+     * Per-thread generator with a refill buffer, consumed bytes are wiped
+     */
+    private static class RandomBuffer {
+
+        private final SecureRandom random;
+        private final byte[] buffer = new byte[RANDOM_BUFFER_SIZE];
+        private int position = RANDOM_BUFFER_SIZE;
+
+        RandomBuffer(SecureRandom random) {
+            this.random = random;
+        }
+
+        void nextBytes(byte[] bytes) {
+            if (bytes.length > RANDOM_BUFFER_SIZE / 4) {
+                random.nextBytes(bytes);
+                return;
+            }
+
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (position == RANDOM_BUFFER_SIZE) {
+                    random.nextBytes(buffer);
+                    position = 0;
+                }
+                int length = Math.min(bytes.length - offset, RANDOM_BUFFER_SIZE - position);
+                System.arraycopy(buffer, position, bytes, offset, length);
+                Arrays.fill(buffer, position, position + length, (byte) 0);
+                position += length;
+                offset += length;
+            }
+        }
+    }
+
+    private static class BouncyCastleHolder {
+
+        private static final Provider PROVIDER = register();
+
+        private static Provider register() {
+            Provider provider = Security.getProvider(BouncyCastleProvider.PROVIDER_NAME);
+            if (provider == null) {
+                provider = new BouncyCastleProvider();
+                Security.addProvider(provider);
+            }
+
+            return provider;
+        }
+    }
 }
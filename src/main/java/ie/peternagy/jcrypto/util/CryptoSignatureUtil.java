@@ -39,8 +39,19 @@ public class CryptoSignatureUtil {
      * @return the checksum
      */
     public static long calculateCrc32(final byte[] content) {
+        return calculateCrc32(content, 0, content.length);
+    }
+    
+    /**
+     * Calculate CRC32 of a region
+     * @param content - the buffer holding the data to sign
+     * @param offset - the region start
+     * @param length - the region length
+     * @return the checksum
+     */
+    public static long calculateCrc32(final byte[] content, int offset, int length) {
         Checksum checksum = new CRC32();
-        checksum.update(content, 0, content.length);
+        checksum.update(content, offset, length);
         return checksum.getValue();
     }
     
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description DigestChannel - Readable channel hashing the bytes read
+ * @package ie.peternagy.jcrypto.util
+ */
+package ie.peternagy.jcrypto.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+
+public class DigestChannel implements ReadableByteChannel {
+
+    private final ReadableByteChannel channel;
+    private final MessageDigest digest;
+
+    /**
+     * Wrap a channel, every byte read also updates the digest
+     *
+     * @param channel - the source channel, closed with this channel
+     * @param digest - the digest to update
+     */
+    public DigestChannel(ReadableByteChannel channel, MessageDigest digest) {
+        this.channel = channel;
+        this.digest = digest;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        int read = channel.read(dst);
+        if (read > 0) {
+            ByteBuffer view = dst.duplicate();
+            view.position(start).limit(start + read);
+            digest.update(view);
+        }
+
+        return read;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public MessageDigest getDigest() {
+        return digest;
+    }
+}
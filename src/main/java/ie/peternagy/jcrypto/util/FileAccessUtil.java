@@ -28,8 +28,12 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,7 +50,7 @@ public class FileAccessUtil {
         if(dir.exists() && dir.isDirectory())
             return true;
         else
-            return dir.mkdir();
+            return dir.mkdirs();
     }
     
     /**
@@ -133,4 +137,54 @@ public class FileAccessUtil {
             throw new RuntimeException("Input file is not readable \n" + ex);
         }
     }
+    
+    /**
+     * Read from the channel until the buffer is full or the data ends
+     * 
+     * @param channel - the channel to read from
+     * @param buffer - the buffer to fill up to its limit
+     * @return the bytes read, -1 if the data ended before the first byte
+     * @throws IOException 
+     */
+    public static int readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+        }
+        
+        return total;
+    }
+    
+    /**
+     * Write every remaining byte of the buffers, in order
+     * 
+     * Gathering channels (eg: FileChannel) get the buffers in a single call
+     * 
+     * @param channel - the channel to write to
+     * @param buffers - the buffers to write
+     * @throws IOException 
+     */
+    public static void writeFully(WritableByteChannel channel, ByteBuffer... buffers) throws IOException {
+        if (channel instanceof GatheringByteChannel) {
+            GatheringByteChannel gatheringChannel = (GatheringByteChannel) channel;
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= gatheringChannel.write(buffers);
+            }
+            return;
+        }
+        
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
 }
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description KeyDerivationUtil - Key derivation functions
+ * @package ie.peternagy.jcrypto.util
+ */
+package ie.peternagy.jcrypto.util;
+
+import java.security.GeneralSecurityException;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class KeyDerivationUtil {
+
+    private static final String HKDF_MAC_ALGORITHM = "HmacSHA512";
+    private static final String PBKDF2_ALGORITHM = "PBKDF2WithHmacSHA512";
+    private static final int PBKDF2_ITERATIONS = 4096;
+
+    /**
+     * Derive a key with HKDF-SHA512 (RFC 5869)
+     *
+     * Use for uniformly random input keys, it does not stretch the input
+     *
+     * @param inputKey - the random input key material
+     * @param salt - the salt, can be empty
+     * @param info - the context the key is bound to
+     * @param length - the output length in bytes, max 255 * 64
+     * @return the derived key bytes
+     */
+    public static byte[] hkdfSha512(byte[] inputKey, byte[] salt, byte[] info, int length) {
+        try {
+            Mac mac = Mac.getInstance(HKDF_MAC_ALGORITHM);
+            int hashLength = mac.getMacLength();
+            if (length <= 0 || length > 255 * hashLength) {
+                throw new IllegalArgumentException("Invalid HKDF output length " + length);
+            }
+
+            //extract
+            mac.init(new SecretKeySpec(salt == null || salt.length == 0 ? new byte[hashLength] : salt, HKDF_MAC_ALGORITHM));
+            byte[] pseudoRandomKey = mac.doFinal(inputKey);
+
+            //expand
+            mac.init(new SecretKeySpec(pseudoRandomKey, HKDF_MAC_ALGORITHM));
+            byte[] output = new byte[length];
+            byte[] block = new byte[0];
+            int position = 0;
+            for (int i = 1; position < length; i++) {
+                mac.update(block);
+                mac.update(info);
+                mac.update((byte) i);
+                block = mac.doFinal();
+                int copyLength = Math.min(block.length, length - position);
+                System.arraycopy(block, 0, output, position, copyLength);
+                position += copyLength;
+            }
+            Arrays.fill(pseudoRandomKey, (byte) 0);
+
+            return output;
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException("Invalid environment, " + HKDF_MAC_ALGORITHM + " is not available", ex);
+        }
+    }
+
+    /**
+     * Derive a key with PBKDF2-HMAC-SHA512
+     *
+     * Use for password based keys, the iterations slow down guessing
+     *
+     * @param password - the password
+     * @param salt - the salt
+     * @param keyBits - the output key size in bits
+     * @return the derived key bytes
+     */
+    public static byte[] pbkdf2(char[] password, byte[] salt, int keyBits) {
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(PBKDF2_ALGORITHM);
+            KeySpec keySpec = new PBEKeySpec(password, salt, PBKDF2_ITERATIONS, keyBits);
+
+            return factory.generateSecret(keySpec).getEncoded();
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException("Invalid environment, check max key size", ex);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description MerkleTree - SHA-256 hash tree over chunks
+ * @package ie.peternagy.jcrypto.util
+ */
+package ie.peternagy.jcrypto.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Leaves and inner nodes are hashed with distinct prefixes (as RFC 6962), so
+ * a leaf can not pass for a node. A level with an odd node count moves its
+ * last node up unchanged.
+ */
+public class MerkleTree {
+
+    public static final int HASH_LENGTH = 32;
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException("Invalid environment, SHA-256 is not available", ex);
+        }
+    });
+
+    /**
+     * Hash a chunk into a leaf - safe to call from multiple threads, the
+     * buffers are left unchanged
+     *
+     * @param buffers - the chunk bytes between position and limit
+     * @return the leaf hash
+     */
+    public static byte[] hashLeaf(ByteBuffer... buffers) {
+        MessageDigest digest = DIGESTS.get();
+        digest.update(LEAF_PREFIX);
+        for (ByteBuffer buffer : buffers) {
+            digest.update(buffer.duplicate());
+        }
+
+        return digest.digest();
+    }
+
+    /**
+     * Calculate the root of the leaves
+     *
+     * @param leaves - the leaf hashes in chunk order, at least one
+     * @param count - the number of leaves used
+     * @return the root hash
+     */
+    public static byte[] calculateRoot(byte[][] leaves, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("A Merkle tree needs at least one leaf");
+        }
+        MessageDigest digest = DIGESTS.get();
+        byte[][] level = Arrays.copyOf(leaves, count);
+        while (count > 1) {
+            int parents = 0;
+            for (int i = 0; i < count; i += 2) {
+                if (i + 1 == count) {
+                    level[parents++] = level[i];
+                } else {
+                    digest.update(NODE_PREFIX);
+                    digest.update(level[i]);
+                    digest.update(level[i + 1]);
+                    level[parents++] = digest.digest();
+                }
+            }
+            count = parents;
+        }
+
+        return level[0];
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description MetricsRegistry - Process wide stage timers and counters
+ * @package ie.peternagy.jcrypto.util
+ */
+package ie.peternagy.jcrypto.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Off by default, a disabled registry costs a volatile read per call. When
+ * enabled every stage is timed in nanoseconds into a LatencyHistogram, so
+ * the stages of a run can be compared without a profiler (see
+ * module.metrics for the export).
+ */
+public class MetricsRegistry {
+
+    public static final String STAGE_READ = "read";
+    public static final String STAGE_KEY_DERIVATION = "key_derivation";
+    public static final String STAGE_EC_WRAP = "ec_wrap";
+    public static final String STAGE_EC_UNWRAP = "ec_unwrap";
+    public static final String STAGE_CIPHER = "cipher";
+    public static final String STAGE_CHECKSUM = "checksum";
+    public static final String STAGE_WRITE = "write";
+    public static final String COUNTER_BYTES_READ = "bytes_read";
+    public static final String COUNTER_BYTES_WRITTEN = "bytes_written";
+    public static final String COUNTER_FILES = "files";
+    public static final String COUNTER_FILES_FAILED = "files_failed";
+    private final Map<String, LatencyHistogram> timers = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private volatile boolean isEnabled;
+
+    private MetricsRegistry() {
+    }
+
+    /**
+     * Get the process wide registry
+     *
+     * @return the registry
+     */
+    public static MetricsRegistry getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Start or stop recording, the recorded values are kept
+     *
+     * @param isEnabled - true >> record
+     */
+    public void setEnabled(boolean isEnabled) {
+        this.isEnabled = isEnabled;
+    }
+
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * Start timing a stage
+     *
+     * @return the start time to pass to stopTimer, 0 if disabled
+     */
+    public long startTimer() {
+        return isEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the time of a stage since startTimer
+     *
+     * @param stage - the stage name (STAGE_*)
+     * @param startNanos - the value of startTimer, 0 is ignored
+     */
+    public void stopTimer(String stage, long startNanos) {
+        if (startNanos != 0) {
+            getTimer(stage).record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Add to a counter
+     *
+     * @param counter - the counter name (COUNTER_*)
+     * @param delta - the amount to add
+     */
+    public void add(String counter, long delta) {
+        if (isEnabled) {
+            counters.computeIfAbsent(counter, key -> new LongAdder()).add(delta);
+        }
+    }
+
+    /**
+     * Get the timer of a stage, created on first use
+     *
+     * @param stage - the stage name
+     * @return the histogram in nanoseconds
+     */
+    public LatencyHistogram getTimer(String stage) {
+        return timers.computeIfAbsent(stage, key -> new LatencyHistogram());
+    }
+
+    /**
+     * Get the value of a counter
+     *
+     * @param counter - the counter name
+     * @return the value, 0 if never added to
+     */
+    public long getCount(String counter) {
+        LongAdder value = counters.get(counter);
+        return value == null ? 0 : value.sum();
+    }
+
+    /**
+     * Get the timers sorted by stage name
+     *
+     * @return read only view of the timers
+     */
+    public Map<String, LatencyHistogram> getTimers() {
+        return Collections.unmodifiableMap(timers);
+    }
+
+    /**
+     * Get the counters sorted by name
+     *
+     * @return read only view of the counters
+     */
+    public Map<String, LongAdder> getCounters() {
+        return Collections.unmodifiableMap(counters);
+    }
+
+    /**
+     * Drop every recorded value
+     */
+    public void reset() {
+        timers.clear();
+        counters.clear();
+    }
+
+    private static class Holder {
+
+        private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+    }
+}
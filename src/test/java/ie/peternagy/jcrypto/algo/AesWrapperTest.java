@@ -23,7 +23,12 @@
  */
 package ie.peternagy.jcrypto.algo;
 
+import ie.peternagy.jcrypto.util.ConstantExchange;
 import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import org.apache.commons.codec.binary.Hex;
 import org.bouncycastle.util.Arrays;
 import static org.junit.Assert.*;
@@ -134,4 +139,98 @@ public class AesWrapperTest extends AjUnitWrapper {
         
         assertTrue(Arrays.areEqual(result, input));
     }
+
+    /**
+     * Test writeHeader/readHeader with chunked update
+     */
+    @org.junit.Test
+    public void testStreamWithHeader() throws IOException {
+        System.out.println("writeHeader/readHeader - stream");
+        input = CryptoSecurityUtil.getSecureBytes(100000);
+        AesWrapper encWrapper = new AesWrapper(curve, true);
+        ByteArrayOutputStream encOut = new ByteArrayOutputStream();
+        byte[] outBuffer = new byte[encWrapper.getOutputSize(4096)];
+        
+        encWrapper.writeHeader(encOut);
+        for (int offset = 0; offset < input.length; offset += 4096) {
+            int written = encWrapper.update(input, offset, Math.min(4096, input.length - offset), outBuffer);
+            encOut.write(outBuffer, 0, written);
+        }
+        encOut.write(encWrapper.doFinal());
+        
+        AesWrapper decWrapper = new AesWrapper(curve, false);
+        byte[] result = decWrapper.doFinalWithHeader(encOut.toByteArray());
+        assertTrue(Arrays.areEqual(result, input));
+        
+        ByteArrayInputStream encIn = new ByteArrayInputStream(encOut.toByteArray());
+        decWrapper = new AesWrapper(curve, false);
+        decWrapper.readHeader(encIn);
+        byte[] content = new byte[encIn.available()];
+        encIn.read(content);
+        assertTrue(Arrays.areEqual(decWrapper.doFinal(content), input));
+    }
+
+    /**
+     * Test version 100 (PBKDF2) headers still decrypt next to the HKDF ones
+     */
+    @org.junit.Test
+    public void testKeyDerivationVersions() {
+        System.out.println("doFinalWithHeaders - version 100 and current");
+        input = CryptoSecurityUtil.getSecureBytes(128);
+        AesWrapper legacyWrapper = new AesWrapper(curve);
+        legacyWrapper.isPbkdf2Key = true;
+        legacyWrapper.generateSecretKey();
+        legacyWrapper.initCipher(true);
+        byte[] legacyData = legacyWrapper.doFinalWithHeader(input);
+        
+        AesWrapper currentWrapper = new AesWrapper(curve, true);
+        byte[] currentData = currentWrapper.doFinalWithHeader(input);
+        
+        assertEquals(ConstantExchange.PBKDF2_VERSION, legacyData[0]);
+        assertEquals(ConstantExchange.CURRENT_VERSION, currentData[0]);
+        assertTrue(Arrays.areEqual(new AesWrapper(curve, false).doFinalWithHeader(legacyData), input));
+        assertTrue(Arrays.areEqual(new AesWrapper(curve, false).doFinalWithHeader(currentData), input));
+    }
+
+    /**
+     * Test of update/doFinal with direct buffers, of class AesWrapper.
+     */
+    @org.junit.Test
+    public void testDirectBuffers() {
+        System.out.println("update/doFinal - direct buffers");
+        input = CryptoSecurityUtil.getSecureBytes(100000);
+        AesWrapper encWrapper = new AesWrapper(curve, true);
+        byte[] header = encWrapper.createHeader();
+        ByteBuffer plain = ByteBuffer.allocateDirect(input.length);
+        ByteBuffer encrypted = ByteBuffer.allocateDirect(encWrapper.getOutputSize(input.length));
+        plain.put(input).flip();
+        plain.limit(4096);
+        encWrapper.update(plain, encrypted);
+        plain.limit(input.length);
+        assertTrue(encWrapper.doFinal(plain, encrypted) > 0);
+        encrypted.flip();
+        
+        AesWrapper decWrapper = new AesWrapper(curve, false);
+        byte[] content = new byte[encrypted.remaining()];
+        encrypted.get(content);
+        assertTrue(Arrays.areEqual(decWrapper.doFinalWithHeader(Arrays.concatenate(header, content)), input));
+    }
+
+    /**
+     * Test an oversized or negative length field fails before it is allocated
+     */
+    @org.junit.Test
+    public void testOversizedHeaderLength() {
+        System.out.println("doFinalWithHeaders - oversized length field");
+        byte[] encData = new AesWrapper(curve, true).doFinalWithHeader(CryptoSecurityUtil.getSecureBytes(128));
+        for (int length : new int[]{Integer.MAX_VALUE, -1}) {
+            ByteBuffer.wrap(encData).putInt(1, length);
+            try {
+                new AesWrapper(curve, false).doFinalWithHeader(encData);
+                fail("Oversized header length accepted");
+            } catch (RuntimeException ex) {
+                assertTrue(ex.getMessage().contains("Invalid header field length"));
+            }
+        }
+    }
 }
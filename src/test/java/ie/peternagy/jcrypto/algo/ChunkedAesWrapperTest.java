@@ -0,0 +1,284 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description ChunkedAesWrapperTest - Test class for ChunkedAesWrapper
+ * @package ie.peternagy.jcrypto.algo
+ */
+package ie.peternagy.jcrypto.algo;
+
+import ie.peternagy.jcrypto.module.crypto.ChunkedStreamCrypto;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import ie.peternagy.jcrypto.util.MerkleTree;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import org.bouncycastle.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ChunkedAesWrapperTest extends AjUnitWrapper {
+
+    protected static byte[] input;
+    protected static EllipticCurveWrapper curve;
+
+    public ChunkedAesWrapperTest() {
+        testClassName = ChunkedAesWrapper.class.getName();
+        input = CryptoSecurityUtil.getSecureBytes(10000);
+        curve = new EllipticCurveWrapper();
+    }
+
+    /**
+     * Test doFinalWithHeader over several chunks
+     */
+    @Test
+    public void testDoFinalWithHeader() {
+        System.out.println("doFinalWithHeader - chunked");
+        ChunkedAesWrapper wrapper = new ChunkedAesWrapper(curve, 1024);
+        wrapper.initCipher(true);
+        byte[] data = wrapper.doFinalWithHeader(input);
+
+        ChunkedAesWrapper decWrapper = new ChunkedAesWrapper(curve);
+        decWrapper.initCipher(false);
+        byte[] result = decWrapper.doFinalWithHeader(data);
+
+        assertTrue(Arrays.areEqual(result, input));
+        assertEquals(1024, decWrapper.getChunkSize());
+    }
+
+    /**
+     * Test the parallel pipeline, including empty and chunk aligned input
+     */
+    @Test
+    public void testStreamCrypto() throws IOException {
+        System.out.println("ChunkedStreamCrypto - encrypt and decrypt");
+        for (int length : new int[]{0, 1, 1024, 4096, 10000}) {
+            byte[] plain = CryptoSecurityUtil.getSecureBytes(length);
+            ByteArrayOutputStream encOut = new ByteArrayOutputStream();
+            new ChunkedStreamCrypto(new ChunkedAesWrapper(curve, 1024)).encrypt(new ByteArrayInputStream(plain), encOut);
+
+            ByteArrayOutputStream decOut = new ByteArrayOutputStream();
+            new ChunkedStreamCrypto(new ChunkedAesWrapper(curve)).decrypt(new ByteArrayInputStream(encOut.toByteArray()), decOut);
+
+            assertTrue(Arrays.areEqual(decOut.toByteArray(), plain));
+        }
+    }
+
+    /**
+     * Test that a modified or truncated container is rejected
+     */
+    @Test
+    public void testTamperDetection() throws IOException {
+        System.out.println("doFinalWithHeader - tampered");
+        ChunkedAesWrapper wrapper = new ChunkedAesWrapper(curve, 1024);
+        wrapper.initCipher(true);
+        byte[] data = wrapper.doFinalWithHeader(input);
+
+        //the index trailer with the frame checksums
+        int trailerLength = ChunkIndex.getTrailerLength(input.length / 1024 + 1, true);
+        byte[] modified = Arrays.clone(data);
+        modified[modified.length - trailerLength - 100] ^= 1;
+        //drop the index trailer and the last frame: chunk + length prefix, flags, nonce and tag
+        byte[] truncated = Arrays.copyOf(data, data.length - (trailerLength + input.length % 1024 + 33));
+        //a consistent trailer with an other leaf and root, the root tag is stale
+        byte[] rewritten = Arrays.clone(data);
+        ChunkIndex chunkIndex = ChunkIndex.fromTrailer(ByteBuffer.wrap(data, data.length - trailerLength, trailerLength));
+        ChunkIndex forged = new ChunkIndex();
+        for (int i = 0; i < chunkIndex.getChunkCount(); i++) {
+            forged.add(chunkIndex.getFrameOffset(i), chunkIndex.getFrameCrc(i), i == 0 ? new byte[MerkleTree.HASH_LENGTH] : chunkIndex.getLeafHash(i));
+        }
+        forged.setPlainLength(chunkIndex.getPlainLength());
+        forged.setRootTag(chunkIndex.getRootTag());
+        System.arraycopy(forged.toTrailer(), 0, rewritten, data.length - trailerLength, trailerLength);
+
+        //the header is bound to the frames: a flag that does not change the frames still fails
+        byte[] header = Arrays.clone(data);
+        header[1] ^= ChunkedAesWrapper.HEADER_FLAG_LZ4;
+
+        for (byte[] invalid : new byte[][]{modified, truncated, rewritten, header}) {
+            ChunkedAesWrapper decWrapper = new ChunkedAesWrapper(curve);
+            decWrapper.initCipher(false);
+            Exception ex = null;
+            try {
+                decWrapper.doFinalWithHeader(invalid);
+            } catch (RuntimeException e) {
+                ex = e;
+            }
+            assertNotNull(ex);
+        }
+
+        //unknown header flags are refused before the key is unwrapped
+        byte[] unknownFlag = Arrays.clone(data);
+        unknownFlag[1] |= 64;
+        try {
+            ChunkedAesWrapper decWrapper = new ChunkedAesWrapper(curve);
+            decWrapper.readHeader(new ByteArrayInputStream(unknownFlag));
+            fail("Unknown header flag accepted");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().startsWith("Unknown header flags"));
+        }
+    }
+
+    /**
+     * Test LZ4 compressed chunks next to raw (incompressible) ones
+     */
+    @Test
+    public void testCompression() {
+        System.out.println("doFinalWithHeader - compressed");
+        byte[] text = new byte[100000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 7);
+        }
+        byte[] mixed = Arrays.concatenate(text, input);
+        ChunkedAesWrapper wrapper = new ChunkedAesWrapper(curve, 32 * 1024);
+        wrapper.setCompression(true);
+        wrapper.initCipher(true);
+        byte[] data = wrapper.doFinalWithHeader(mixed);
+
+        ChunkedAesWrapper decWrapper = new ChunkedAesWrapper(curve);
+        decWrapper.initCipher(false);
+        byte[] result = decWrapper.doFinalWithHeader(data);
+
+        assertTrue(Arrays.areEqual(result, mixed));
+        assertTrue(decWrapper.isCompression());
+        assertTrue(data.length < input.length + text.length / 2);
+    }
+
+    /**
+     * Test range decryption through the chunk index, compressed and raw
+     */
+    @Test
+    public void testDecryptRange() throws IOException {
+        System.out.println("ChunkedStreamCrypto - decryptRange");
+        File encFile = File.createTempFile("jcrypto-range", ".enc");
+        encFile.deleteOnExit();
+        for (boolean isCompress : new boolean[]{false, true}) {
+            ChunkedAesWrapper wrapper = new ChunkedAesWrapper(curve, 1024);
+            wrapper.setCompression(isCompress);
+            try (FileOutputStream out = new FileOutputStream(encFile)) {
+                new ChunkedStreamCrypto(wrapper).encrypt(new ByteArrayInputStream(input), out);
+            }
+
+            try (FileChannel in = FileChannel.open(encFile.toPath(), StandardOpenOption.READ)) {
+                long[][] ranges = {{0, 10}, {1000, 100}, {1024, 1024}, {5000, 3000}, {9990, 100}, {10000, 5}, {0, 20000}};
+                for (long[] range : ranges) {
+                    ByteArrayOutputStream rangeOut = new ByteArrayOutputStream();
+                    new ChunkedStreamCrypto(new ChunkedAesWrapper(curve)).decryptRange(in, Channels.newChannel(rangeOut), range[0], range[1]);
+                    int end = (int) Math.min(range[0] + range[1], input.length);
+
+                    assertTrue(Arrays.areEqual(rangeOut.toByteArray(), java.util.Arrays.copyOfRange(input, (int) range[0], end)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Test containers of a session share the wrapped key but not the file key
+     */
+    @Test
+    public void testSessionKey() {
+        System.out.println("setSessionKey - batch");
+        SessionKey sessionKey = SessionKey.create(curve);
+        int files = 20;
+        byte[][] encrypted = new byte[files][];
+        long startTime = System.nanoTime();
+        for (int i = 0; i < files; i++) {
+            ChunkedAesWrapper wrapper = new ChunkedAesWrapper(curve, 1024);
+            wrapper.setSessionKey(sessionKey);
+            wrapper.initCipher(true);
+            encrypted[i] = wrapper.doFinalWithHeader(input);
+        }
+        long sessionMicros = (System.nanoTime() - startTime) / 1000;
+        startTime = System.nanoTime();
+        for (int i = 0; i < files; i++) {
+            ChunkedAesWrapper wrapper = new ChunkedAesWrapper(curve, 1024);
+            wrapper.initCipher(true);
+            wrapper.doFinalWithHeader(input);
+        }
+        System.out.printf("%d files: %dus with a session key, %dus without\n", files, sessionMicros, (System.nanoTime() - startTime) / 1000);
+
+        SessionKeyCache keyCache = new SessionKeyCache();
+        for (byte[] data : encrypted) {
+            ChunkedAesWrapper decWrapper = new ChunkedAesWrapper(curve);
+            decWrapper.setKeyCache(keyCache);
+            decWrapper.initCipher(false);
+            assertTrue(Arrays.areEqual(input, decWrapper.doFinalWithHeader(data)));
+            assertTrue(decWrapper.isSession());
+        }
+        assertEquals(1, keyCache.size());
+        ChunkedAesWrapper uncachedWrapper = new ChunkedAesWrapper(curve);
+        uncachedWrapper.initCipher(false);
+        assertTrue(Arrays.areEqual(input, uncachedWrapper.doFinalWithHeader(encrypted[0])));
+        assertFalse(Arrays.areEqual(java.util.Arrays.copyOfRange(encrypted[0], encrypted[0].length - 1024, encrypted[0].length),
+                java.util.Arrays.copyOfRange(encrypted[1], encrypted[1].length - 1024, encrypted[1].length)));
+
+        sessionKey.destroy();
+        try {
+            new ChunkedAesWrapper(curve).setSessionKey(sessionKey);
+            fail("Destroyed session key used");
+        } catch (IllegalStateException ex) {
+            //expected
+        }
+        keyCache.clear();
+    }
+
+    /**
+     * Test every available chunk cipher through the array and stream paths
+     */
+    @Test
+    public void testChunkCiphers() throws IOException {
+        System.out.println("setChunkCipher - all ciphers");
+        for (ChunkCipher chunkCipher : ChunkCipher.values()) {
+            if (!chunkCipher.isAvailable(null)) {
+                System.out.println(chunkCipher + " not available");
+                continue;
+            }
+            ChunkedAesWrapper wrapper = new ChunkedAesWrapper(curve, 1024);
+            wrapper.setChunkCipher(chunkCipher);
+            wrapper.initCipher(true);
+            byte[] data = wrapper.doFinalWithHeader(input);
+            ChunkedAesWrapper decWrapper = new ChunkedAesWrapper(curve);
+            decWrapper.initCipher(false);
+            assertTrue(Arrays.areEqual(input, decWrapper.doFinalWithHeader(data)));
+            assertEquals(chunkCipher, decWrapper.getChunkCipher());
+
+            ChunkedAesWrapper streamWrapper = new ChunkedAesWrapper(curve, 1024);
+            streamWrapper.setChunkCipher(chunkCipher);
+            ByteArrayOutputStream encOut = new ByteArrayOutputStream();
+            new ChunkedStreamCrypto(streamWrapper).encrypt(new ByteArrayInputStream(input), encOut);
+            ByteArrayOutputStream decOut = new ByteArrayOutputStream();
+            new ChunkedStreamCrypto(new ChunkedAesWrapper(curve)).decrypt(new ByteArrayInputStream(encOut.toByteArray()), decOut);
+            assertTrue(Arrays.areEqual(input, decOut.toByteArray()));
+
+            data[data.length - 100] ^= 1;
+            try {
+                new ChunkedStreamCrypto(new ChunkedAesWrapper(curve)).decrypt(new ByteArrayInputStream(data), new ByteArrayOutputStream());
+                fail(chunkCipher + " accepted a tampered chunk");
+            } catch (IOException | RuntimeException ex) {
+                //expected
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description CipherCalibrationTest - Test class for CipherCalibration
+ * @package ie.peternagy.jcrypto.algo
+ */
+package ie.peternagy.jcrypto.algo;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CipherCalibrationTest extends AjUnitWrapper {
+
+    public CipherCalibrationTest() {
+        testClassName = CipherCalibration.class.getName();
+    }
+
+    /**
+     * Test a calibration survives a save and load, and is dropped for
+     * another host
+     */
+    @Test
+    public void testCalibrateSaveLoad() throws Exception {
+        System.out.println("calibrate/save/load");
+        CipherCalibration calibration = CipherCalibration.calibrate();
+        calibration.printReport();
+        assertTrue(calibration.getThroughput(ChunkCipher.AES_GCM) > 0);
+        assertTrue(calibration.getThroughput(calibration.getPreferred()) >= calibration.getThroughput(ChunkCipher.AES_GCM));
+        //BouncyCastle is timed even when nothing registered it yet
+        assertTrue(calibration.getMeasuredProviders().contains("BC"));
+        assertTrue(calibration.getMeasuredProviders().contains("SunJCE"));
+
+        File file = File.createTempFile("jcrypto", ".calibration");
+        try {
+            calibration.save(file);
+            CipherCalibration loaded = CipherCalibration.load(file);
+            assertEquals(calibration.getPreferred(), loaded.getPreferred());
+            assertEquals(calibration.getProvider(ChunkCipher.AES_GCM), loaded.getProvider(ChunkCipher.AES_GCM));
+
+            //a BouncyCastle pick is registered on use, not on load
+            List<String> lines = Files.readAllLines(file.toPath());
+            lines.replaceAll(line -> line.startsWith("AES_GCM.provider=") ? "AES_GCM.provider=BC" : line);
+            Files.write(file.toPath(), lines);
+            assertEquals("BC", CipherCalibration.load(file).getProvider(ChunkCipher.AES_GCM).getName());
+
+            lines.replaceAll(line -> line.startsWith("host=") ? "host=other" : line);
+            Files.write(file.toPath(), lines);
+            assertNull(CipherCalibration.load(file));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description DataKeyPoolTest - Test class for DataKeyPool
+ * @package ie.peternagy.jcrypto.algo
+ */
+package ie.peternagy.jcrypto.algo;
+
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import org.bouncycastle.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DataKeyPoolTest extends AjUnitWrapper {
+
+    protected static byte[] input;
+    protected static EllipticCurveWrapper curve;
+
+    public DataKeyPoolTest() {
+        testClassName = DataKeyPool.class.getName();
+        input = CryptoSecurityUtil.getSecureBytes(10000);
+        curve = new EllipticCurveWrapper();
+    }
+
+    /**
+     * Test pooled keys round trip as plain single file containers
+     */
+    @Test
+    public void testTake() throws InterruptedException {
+        System.out.println("take - filled pool");
+        DataKeyPool pool = new DataKeyPool(4);
+        pool.start();
+        waitReady(pool, 4);
+
+        long startTime = System.nanoTime();
+        byte[][] encrypted = new byte[4][];
+        for (int i = 0; i < encrypted.length; i++) {
+            encrypted[i] = encrypt(pool.take(curve));
+        }
+        long pooledMicros = (System.nanoTime() - startTime) / 1000;
+        startTime = System.nanoTime();
+        for (int i = 0; i < encrypted.length; i++) {
+            ChunkedAesWrapper wrapper = new ChunkedAesWrapper(curve, 1024);
+            wrapper.initCipher(true);
+            wrapper.doFinalWithHeader(input);
+        }
+        System.out.printf("4 files: %dus with pooled keys, %dus without\n", pooledMicros, (System.nanoTime() - startTime) / 1000);
+        assertEquals(4, pool.getHits());
+
+        for (byte[] data : encrypted) {
+            ChunkedAesWrapper decWrapper = new ChunkedAesWrapper(curve);
+            decWrapper.initCipher(false);
+            assertTrue(Arrays.areEqual(input, decWrapper.doFinalWithHeader(data)));
+            assertFalse(decWrapper.isSession());
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Test an empty pool wraps on the caller and shutdown zeroes the keys
+     */
+    @Test
+    public void testMissAndShutdown() throws InterruptedException {
+        System.out.println("take - empty pool, shutdown");
+        DataKeyPool pool = new DataKeyPool(2);
+        SessionKey key = pool.take(curve);
+        assertNotNull(key.getBaseKey());
+        assertEquals(1, pool.getMisses());
+        assertEquals(0, pool.getHitRate(), 0);
+
+        pool.start();
+        waitReady(pool, 2);
+        pool.take(curve);
+        assertEquals(0.5, pool.getHitRate(), 0);
+        waitReady(pool, 2);
+        pool.shutdown();
+        assertEquals(0, pool.getReady());
+    }
+
+    private byte[] encrypt(SessionKey dataKey) {
+        ChunkedAesWrapper wrapper = new ChunkedAesWrapper(curve, 1024);
+        wrapper.setDataKey(dataKey);
+        dataKey.destroy();
+        wrapper.initCipher(true);
+
+        return wrapper.doFinalWithHeader(input);
+    }
+
+    private void waitReady(DataKeyPool pool, int count) throws InterruptedException {
+        for (int i = 0; i < 500 && pool.getReady() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, pool.getReady());
+    }
+}
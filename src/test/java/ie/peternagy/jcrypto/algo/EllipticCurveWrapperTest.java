@@ -24,6 +24,9 @@
 package ie.peternagy.jcrypto.algo;
 
 import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.bouncycastle.util.Arrays;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -149,4 +152,81 @@ public class EllipticCurveWrapperTest extends AjUnitWrapper {
         assertTrue(ex == null);
     }
 
+    /**
+     * Test the key ring lookup by key id
+     */
+    @Test
+    public void testKeyRingLookup() {
+        System.out.println("keyRing - getKey");
+        EllipticCurveKeyRing keyRing = EllipticCurveKeyRing.getInstance();
+        byte[] keyId = curve.getKeyId();
+        
+        assertTrue(keyRing.size() >= 1);
+        assertTrue(Arrays.areEqual(keyRing.getDefaultKey().getKeyId(), keyId));
+        assertSame(keyRing.getDefaultKey(), keyRing.getKey(keyId));
+        assertNull(keyRing.getKey(new byte[keyId.length]));
+    }
+
+    /**
+     * Test readers keep finding the keys while the ring reloads
+     */
+    @Test
+    public void testKeyRingConcurrentReload() throws InterruptedException {
+        System.out.println("keyRing - reload");
+        EllipticCurveKeyRing keyRing = EllipticCurveKeyRing.getInstance();
+        byte[] keyId = curve.getKeyId();
+        AtomicBoolean isDone = new AtomicBoolean();
+        AtomicInteger misses = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (!isDone.get()) {
+                if (keyRing.getKey(keyId) == null || keyRing.getDefaultKey() == null) {
+                    misses.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 50; i++) {
+            keyRing.reload();
+        }
+        isDone.set(true);
+        reader.join();
+
+        assertEquals(0, misses.get());
+    }
+
+    /**
+     * Test of doFinalWithHeader on a region, of class EllipticCurveWrapper.
+     */
+    @Test
+    public void testDoFinalWithHeaderRegion() {
+        System.out.println("doFinalWithHeader - region");
+        byte[] encData = curve.doFinalWithHeader(input, true);
+        byte[] region = Arrays.concatenate(new byte[7], encData, new byte[5]);
+        byte[] decData = curve.doFinalWithHeader(region, 7, encData.length, false);
+
+        assertTrue(Arrays.areEqual(decData, input));
+        assertEquals(7 + encData.length - curve.extractRawHeader(encData).length, curve.extractRawHeader(region, 7, encData.length));
+    }
+
+    /**
+     * Test an oversized key id length fails before it is allocated
+     */
+    @Test
+    public void testOversizedKeyIdLength() {
+        System.out.println("doFinalWithHeader - oversized key id length");
+        byte[] encData = curve.doFinalWithHeader(input, true);
+        ByteBuffer.wrap(encData).putInt(1, Integer.MAX_VALUE);
+        try {
+            curve.doFinalWithHeader(encData, false);
+            fail("Oversized key id length accepted");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getMessage().contains("Invalid header field length"));
+        }
+        try {
+            curve.extractKeyId(encData);
+            fail("Oversized key id length accepted");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getMessage().contains("Invalid header field length"));
+        }
+    }
 }
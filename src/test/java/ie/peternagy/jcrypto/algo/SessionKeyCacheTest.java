@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description SessionKeyCacheTest - Test class for SessionKeyCache
+ * @package ie.peternagy.jcrypto.algo
+ */
+package ie.peternagy.jcrypto.algo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bouncycastle.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SessionKeyCacheTest extends AjUnitWrapper {
+
+    private static final int THREADS = 4;
+
+    public SessionKeyCacheTest() {
+        testClassName = SessionKeyCache.class.getName();
+    }
+
+    /**
+     * Test unwrapping threads always get the real base key while the cache
+     * is cleared under them
+     */
+    @Test
+    public void testConcurrentUnwrapAndClear() throws InterruptedException {
+        System.out.println("unwrap/clear - concurrent");
+        EllipticCurveWrapper curve = new EllipticCurveWrapper();
+        SessionKey sessionKey = SessionKey.create(curve);
+        byte[] baseKey = sessionKey.getBaseKey();
+        byte[] wrappedKey = sessionKey.getWrappedKey();
+        SessionKeyCache keyCache = new SessionKeyCache();
+        AtomicBoolean isDone = new AtomicBoolean();
+        AtomicInteger unwraps = new AtomicInteger();
+        AtomicInteger mismatches = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(() -> {
+                while (!isDone.get()) {
+                    byte[] unwrapped = keyCache.unwrap(curve, wrappedKey);
+                    if (!Arrays.areEqual(baseKey, unwrapped)) {
+                        mismatches.incrementAndGet();
+                    }
+                    //callers may wipe their copy, the cached key stays intact
+                    java.util.Arrays.fill(unwrapped, (byte) 0);
+                    unwraps.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        while (unwraps.get() < 2000) {
+            keyCache.clear();
+            Thread.yield();
+        }
+        isDone.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        sessionKey.destroy();
+
+        assertEquals(0, mismatches.get());
+        keyCache.clear();
+        assertEquals(0, keyCache.size());
+    }
+}
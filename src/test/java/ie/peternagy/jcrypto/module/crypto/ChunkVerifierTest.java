@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description ChunkVerifierTest - Test class for ChunkVerifier
+ * @package ie.peternagy.jcrypto.module.crypto
+ */
+package ie.peternagy.jcrypto.module.crypto;
+
+import ie.peternagy.jcrypto.algo.AjUnitWrapper;
+import ie.peternagy.jcrypto.algo.ChunkIndex;
+import ie.peternagy.jcrypto.algo.ChunkedAesWrapper;
+import ie.peternagy.jcrypto.algo.EllipticCurveWrapper;
+import ie.peternagy.jcrypto.util.Crc32c;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import org.bouncycastle.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ChunkVerifierTest extends AjUnitWrapper {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    public ChunkVerifierTest() {
+        testClassName = ChunkVerifier.class.getName();
+    }
+
+    /**
+     * Test the CRC32C against the check value of the Castagnoli polynomial
+     */
+    @Test
+    public void testCrc32c() {
+        System.out.println("Crc32c - intrinsic " + Crc32c.isIntrinsic());
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xE3069283, Crc32c.calculate(ByteBuffer.wrap(check)));
+        assertEquals(0xE3069283, Crc32c.calculate(ByteBuffer.wrap(check, 0, 4), ByteBuffer.wrap(check, 4, 5)));
+    }
+
+    /**
+     * Test intact containers pass and a flipped bit is found in its chunk
+     */
+    @Test
+    public void testVerify() throws IOException {
+        System.out.println("verify");
+        File file = File.createTempFile("jcrypto-verify", ".enc");
+        try {
+            byte[] input = CryptoSecurityUtil.getSecureBytes(CHUNK_SIZE * 9 + 123);
+            ChunkedAesWrapper wrapper = new ChunkedAesWrapper(new EllipticCurveWrapper(), CHUNK_SIZE);
+            wrapper.initCipher(true);
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            new ChunkedStreamCrypto(wrapper).encrypt(new ByteArrayInputStream(input), encrypted);
+            Files.write(file.toPath(), encrypted.toByteArray());
+
+            ChunkVerifier verifier = new ChunkVerifier(new ForkJoinPool(4), true);
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                assertEquals(-1, verifier.verify(in));
+                ChunkIndex chunkIndex = ChunkIndex.read(in);
+                assertEquals(10, chunkIndex.getChunkCount());
+
+                in.write(ByteBuffer.wrap(new byte[]{(byte) ~encrypted.toByteArray()[(int) chunkIndex.getFrameOffset(6) + 100]}),
+                        chunkIndex.getFrameOffset(6) + 100);
+                assertEquals(6, verifier.verify(in));
+                assertEquals(6, new ChunkVerifier().verify(in));
+            }
+
+            //the byte array path writes the same trailer
+            wrapper = new ChunkedAesWrapper(new EllipticCurveWrapper(), CHUNK_SIZE);
+            wrapper.initCipher(true);
+            byte[] container = wrapper.doFinalWithHeader(input);
+            Files.write(file.toPath(), container);
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                assertEquals(-1, verifier.verify(in));
+            }
+            wrapper = new ChunkedAesWrapper(new EllipticCurveWrapper());
+            wrapper.initCipher(false);
+            assertTrue(Arrays.areEqual(input, wrapper.doFinalWithHeader(container)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test containers without checksums are refused
+     */
+    @Test(expected = IOException.class)
+    public void testNoChecksums() throws IOException {
+        System.out.println("verify - no checksums");
+        File file = File.createTempFile("jcrypto-verify", ".enc");
+        try {
+            ChunkedAesWrapper wrapper = new ChunkedAesWrapper(new EllipticCurveWrapper(), CHUNK_SIZE);
+            wrapper.initCipher(true);
+            wrapper.setChecksummed(false);
+            Files.write(file.toPath(), wrapper.doFinalWithHeader(CryptoSecurityUtil.getSecureBytes(CHUNK_SIZE * 2)));
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                new ChunkVerifier().verify(in);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description CryptoEngineTest - Test class for CryptoEngine
+ * @package ie.peternagy.jcrypto.module.crypto
+ */
+package ie.peternagy.jcrypto.module.crypto;
+
+import ie.peternagy.jcrypto.algo.AjUnitWrapper;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.bouncycastle.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CryptoEngineTest extends AjUnitWrapper {
+
+    private static final int THREADS = 64;
+    private static final int ROUNDS = 8;
+
+    public CryptoEngineTest() {
+        testClassName = CryptoEngine.class.getName();
+    }
+
+    /**
+     * Test one engine shared by a 64 thread worker pool
+     */
+    @Test
+    public void testSharedEngine() throws Exception {
+        System.out.println("encrypt/decrypt - " + THREADS + " threads");
+        CryptoEngine engine = new CryptoEngine();
+        ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+        try {
+            long startTime = System.nanoTime();
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(workers.submit(() -> {
+                    for (int round = 0; round < ROUNDS; round++) {
+                        byte[] input = CryptoSecurityUtil.getSecureBytes(CryptoSecurityUtil.getRandomIntInRange(0, 64 * 1024));
+                        if (!Arrays.areEqual(input, engine.decrypt(engine.encrypt(input)))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+            System.out.printf("%d round trips in %dms\n", THREADS * ROUNDS, (System.nanoTime() - startTime) / 1000000);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Test the channel calls and a tampered container
+     */
+    @Test
+    public void testChannels() throws Exception {
+        System.out.println("encrypt/decrypt - channels");
+        CryptoEngine engine = new CryptoEngine();
+        byte[] input = CryptoSecurityUtil.getSecureBytes(3 * 1024 * 1024 + 5);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        engine.encrypt(Channels.newChannel(new ByteArrayInputStream(input)), Channels.newChannel(encrypted));
+
+        byte[] container = encrypted.toByteArray();
+        assertTrue(Arrays.areEqual(input, engine.decrypt(container)));
+        container[container.length / 2] ^= 1;
+        try {
+            engine.decrypt(container);
+            fail("Tampered container decrypted");
+        } catch (RuntimeException ex) {
+            //expected
+        }
+    }
+}
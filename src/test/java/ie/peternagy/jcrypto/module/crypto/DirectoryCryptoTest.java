@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description DirectoryCryptoTest - Test class for DirectoryCrypto
+ * @package ie.peternagy.jcrypto.module.crypto
+ */
+package ie.peternagy.jcrypto.module.crypto;
+
+import ie.peternagy.jcrypto.algo.AjUnitWrapper;
+import ie.peternagy.jcrypto.util.ConstantExchange;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DirectoryCryptoTest extends AjUnitWrapper {
+
+    public DirectoryCryptoTest() {
+        testClassName = DirectoryCrypto.class.getName();
+    }
+
+    /**
+     * Test a second run only encrypts the files changed since the first
+     */
+    @Test
+    public void testIncrementalRun() throws IOException {
+        System.out.println("cryptDirectory - incremental");
+        Path rootPath = Files.createTempDirectory("jcrypto-dir");
+        File indexFile = File.createTempFile("jcrypto-index", FileStateIndex.INDEX_EXTENSION);
+        indexFile.delete();
+        try {
+            Files.createDirectories(rootPath.resolve("sub"));
+            Path[] files = {rootPath.resolve("a.txt"), rootPath.resolve("b.txt"), rootPath.resolve("sub/c.txt")};
+            for (Path file : files) {
+                Files.write(file, CryptoSecurityUtil.getSecureBytes(4096));
+            }
+
+            DirectoryCrypto firstRun = createRun(rootPath, indexFile);
+            firstRun.cryptDirectory();
+            assertEquals(3, firstRun.getFilesDone());
+            assertTrue(indexFile.isFile());
+
+            DirectoryCrypto unchangedRun = createRun(rootPath, indexFile);
+            unchangedRun.cryptDirectory();
+            unchangedRun.printReport();
+            assertEquals(0, unchangedRun.getFilesDone());
+            assertEquals(3, unchangedRun.getFilesSkipped());
+
+            //same content with a new mtime is hashed, a new content is encrypted
+            Files.setLastModifiedTime(files[0], FileTime.fromMillis(System.currentTimeMillis() + 5000));
+            Files.write(files[1], CryptoSecurityUtil.getSecureBytes(4096));
+            Files.setLastModifiedTime(files[1], FileTime.fromMillis(System.currentTimeMillis() + 5000));
+            Files.delete(rootPath.resolve("sub/c.txt.enc"));
+            DirectoryCrypto changedRun = createRun(rootPath, indexFile);
+            changedRun.cryptDirectory();
+            changedRun.printReport();
+            assertEquals(2, changedRun.getFilesDone());
+            assertEquals(1, changedRun.getFilesSkipped());
+            assertEquals(0, changedRun.getFilesFailed());
+        } finally {
+            FileUtils.deleteDirectory(rootPath.toFile());
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Test files encrypted under one session key decrypt on their own
+     */
+    @Test
+    public void testSessionRoundTrip() throws IOException {
+        System.out.println("cryptDirectory - session key");
+        Path rootPath = Files.createTempDirectory("jcrypto-dir");
+        try {
+            byte[][] inputs = new byte[5][];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = CryptoSecurityUtil.getSecureBytes(1000 * (i + 1));
+                Files.write(rootPath.resolve(i + ".txt"), inputs[i]);
+            }
+            DirectoryCrypto encryptRun = new DirectoryCrypto(rootPath.toString(), true);
+            encryptRun.cryptDirectory();
+            assertEquals(inputs.length, encryptRun.getFilesDone());
+            for (int i = 0; i < inputs.length; i++) {
+                Files.delete(rootPath.resolve(i + ".txt"));
+            }
+
+            DirectoryCrypto decryptRun = new DirectoryCrypto(rootPath.toString(), false);
+            decryptRun.cryptDirectory();
+            assertEquals(inputs.length, decryptRun.getFilesDone());
+            for (int i = 0; i < inputs.length; i++) {
+                assertTrue(Arrays.areEqual(inputs[i], Files.readAllBytes(rootPath.resolve(i + ".txt"))));
+            }
+        } finally {
+            FileUtils.deleteDirectory(rootPath.toFile());
+        }
+    }
+
+    /**
+     * Test a tree with more small files than a batch holds and a file large
+     * enough to run on its own round trips, and bad containers are counted
+     * as failed without stopping the run
+     */
+    @Test
+    public void testBatchedRoundTrip() throws IOException {
+        System.out.println("cryptDirectory - batches and large file");
+        Path rootPath = Files.createTempDirectory("jcrypto-dir");
+        try {
+            Files.createDirectories(rootPath.resolve("sub"));
+            //300 small files fill more than one batch of 256 files
+            Map<Path, byte[]> inputs = new HashMap<>();
+            for (int i = 0; i < 300; i++) {
+                inputs.put(rootPath.resolve((i % 2 == 0 ? "" : "sub/") + i + ".txt"), CryptoSecurityUtil.getSecureBytes(i * 7));
+            }
+            //over the small file size, crypted as its own task over several chunks
+            inputs.put(rootPath.resolve("large.bin"), CryptoSecurityUtil.getSecureBytes(5 * 1024 * 1024 + 3));
+            for (Map.Entry<Path, byte[]> input : inputs.entrySet()) {
+                Files.write(input.getKey(), input.getValue());
+            }
+
+            DirectoryCrypto encryptRun = new DirectoryCrypto(rootPath.toString(), true);
+            encryptRun.cryptDirectory();
+            encryptRun.printReport();
+            assertEquals(inputs.size(), encryptRun.getFilesDone());
+            assertEquals(0, encryptRun.getFilesFailed());
+            for (Path file : inputs.keySet()) {
+                Files.delete(file);
+            }
+
+            //one tampered and one empty container fail, the rest still decrypts
+            Path tampered = Paths.get(rootPath.resolve("large.bin") + "." + ConstantExchange.ENCRYPTED_EXTENSION);
+            byte[] container = Files.readAllBytes(tampered);
+            container[container.length / 2] ^= 1;
+            Files.write(tampered, container);
+            Path empty = Paths.get(rootPath.resolve("sub/1.txt") + "." + ConstantExchange.ENCRYPTED_EXTENSION);
+            Files.write(empty, new byte[0]);
+
+            DirectoryCrypto decryptRun = new DirectoryCrypto(rootPath.toString(), false);
+            decryptRun.cryptDirectory();
+            decryptRun.printReport();
+            assertEquals(inputs.size() - 2, decryptRun.getFilesDone());
+            assertEquals(2, decryptRun.getFilesFailed());
+            for (Map.Entry<Path, byte[]> input : inputs.entrySet()) {
+                if (input.getKey().equals(rootPath.resolve("large.bin")) || input.getKey().equals(rootPath.resolve("sub/1.txt"))) {
+                    assertFalse(Files.exists(input.getKey()));
+                } else {
+                    assertTrue(Arrays.areEqual(input.getValue(), Files.readAllBytes(input.getKey())));
+                }
+            }
+        } finally {
+            FileUtils.deleteDirectory(rootPath.toFile());
+        }
+    }
+
+    private DirectoryCrypto createRun(Path rootPath, File indexFile) {
+        DirectoryCrypto directoryCrypto = new DirectoryCrypto(rootPath.toString(), true);
+        directoryCrypto.setIndex(new FileStateIndex(indexFile));
+        return directoryCrypto;
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description FileCryptoTest - Test class for FileCrypto
+ * @package ie.peternagy.jcrypto.module.crypto
+ */
+package ie.peternagy.jcrypto.module.crypto;
+
+import ie.peternagy.jcrypto.algo.AjUnitWrapper;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import org.bouncycastle.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FileCryptoTest extends AjUnitWrapper {
+
+    public FileCryptoTest() {
+        testClassName = FileCrypto.class.getName();
+    }
+
+    /**
+     * Test a pipe style round trip, with and without compression
+     */
+    @Test
+    public void testStreamRoundTrip() {
+        System.out.println("encryptStream/decryptStream");
+        byte[] input = CryptoSecurityUtil.getSecureBytes(3 * 1024 * 1024 + 17);
+        for (boolean isCompress : new boolean[]{false, true}) {
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            FileCrypto.encryptStream(new ByteArrayInputStream(input), encrypted, isCompress);
+            assertFalse(Arrays.areEqual(input, encrypted.toByteArray()));
+
+            ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+            FileCrypto.decryptStream(new ByteArrayInputStream(encrypted.toByteArray()), decrypted);
+            assertTrue(Arrays.areEqual(input, decrypted.toByteArray()));
+        }
+    }
+}
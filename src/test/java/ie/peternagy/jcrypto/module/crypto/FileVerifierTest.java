@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description FileVerifierTest - Test class for FileVerifier
+ * @package ie.peternagy.jcrypto.module.crypto
+ */
+package ie.peternagy.jcrypto.module.crypto;
+
+import ie.peternagy.jcrypto.algo.AjUnitWrapper;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FileVerifierTest extends AjUnitWrapper {
+
+    private static final int FILES = 12;
+
+    public FileVerifierTest() {
+        testClassName = FileVerifier.class.getName();
+    }
+
+    /**
+     * Test a directory of intact files passes, then a corrupted frame and a
+     * corrupted header are reported, in full and quick mode
+     */
+    @Test
+    public void testVerifyDirectory() throws IOException {
+        System.out.println("verify - directory");
+        Path rootPath = Files.createTempDirectory("jcrypto-verify");
+        try {
+            for (int i = 0; i < FILES; i++) {
+                Files.write(rootPath.resolve(i + ".txt"), CryptoSecurityUtil.getSecureBytes(50000 * (i + 1)));
+            }
+            new DirectoryCrypto(rootPath.toString(), true).cryptDirectory();
+            long plainCount = Files.list(rootPath).filter(file -> file.toString().endsWith(".txt")).count();
+
+            for (boolean isCorruptionOnly : new boolean[]{false, true}) {
+                FileVerifier verifier = new FileVerifier(new ForkJoinPool(4), 2);
+                verifier.setCorruptionOnly(isCorruptionOnly);
+                assertTrue(verifier.verify(Collections.singletonList(rootPath)));
+                verifier.printReport();
+                assertEquals(FILES, verifier.getFilesVerified());
+            }
+
+            flipByte(rootPath.resolve("5.txt.enc"), -100);
+            flipByte(rootPath.resolve("7.txt.enc"), 0);
+            for (boolean isCorruptionOnly : new boolean[]{false, true}) {
+                FileVerifier verifier = new FileVerifier(new ForkJoinPool(4), 2);
+                verifier.setCorruptionOnly(isCorruptionOnly);
+                assertFalse(verifier.verify(Collections.singletonList(rootPath)));
+                verifier.printReport();
+                assertEquals(FILES - 2, verifier.getFilesVerified());
+                assertEquals(2, verifier.getFilesFailed());
+            }
+            //read only, no plaintext was written
+            assertEquals(plainCount, Files.list(rootPath).filter(file -> file.toString().endsWith(".txt")).count());
+        } finally {
+            FileUtils.deleteDirectory(rootPath.toFile());
+        }
+    }
+
+    /**
+     * Flip one byte of a file
+     *
+     * @param file - the file
+     * @param position - the byte offset, negative from the end of the file
+     */
+    private void flipByte(Path file, int position) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        int index = position < 0 ? data.length + position : position;
+        data[index] ^= 1;
+        Files.write(file, data);
+    }
+}
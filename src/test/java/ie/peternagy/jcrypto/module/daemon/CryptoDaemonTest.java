@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description CryptoDaemonTest - Test class for CryptoDaemon
+ * @package ie.peternagy.jcrypto.module.daemon
+ */
+package ie.peternagy.jcrypto.module.daemon;
+
+import ie.peternagy.jcrypto.algo.AjUnitWrapper;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.bouncycastle.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CryptoDaemonTest extends AjUnitWrapper {
+
+    private static final int CLIENTS = 4;
+
+    public CryptoDaemonTest() {
+        testClassName = CryptoDaemon.class.getName();
+    }
+
+    /**
+     * Test concurrent clients round trip their files and the latencies are
+     * recorded
+     */
+    @Test
+    public void testConcurrentJobs() throws Exception {
+        System.out.println("serve - concurrent jobs");
+        File tokenFile = File.createTempFile("jcrypto-daemon", ".token");
+        CryptoDaemon daemon = new CryptoDaemon(0, CLIENTS, tokenFile);
+        daemon.start();
+        if (tokenFile.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+        }
+        Thread server = new Thread(daemon::serve);
+        server.start();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                results.add(clients.submit(() -> roundTrip(daemon.getPort(), tokenFile)));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+            assertEquals(CLIENTS * 2, daemon.getLatency("ENCRYPT").getCount());
+            assertTrue(daemon.getLatency("DECRYPT").getPercentile(99) >= daemon.getLatency("DECRYPT").getPercentile(50));
+
+            try (DaemonClient client = new DaemonClient(daemon.getPort(), tokenFile)) {
+                List<String> stats = client.send("STATS");
+                stats.forEach(System.out::println);
+                assertEquals(4, stats.size());
+                assertTrue(stats.get(1).startsWith("encrypt count=" + CLIENTS * 2));
+                assertTrue(stats.get(2).startsWith("keypool depth="));
+                assertEquals(CLIENTS * 2, daemon.getKeyPool().getHits() + daemon.getKeyPool().getMisses());
+                assertFalse(DaemonClient.isSuccess(client.send("ENCRYPT relative.txt")));
+                assertTrue(DaemonClient.isSuccess(client.send("SHUTDOWN")));
+            }
+            server.join(5000);
+            assertFalse(server.isAlive());
+            assertFalse(tokenFile.exists());
+        } finally {
+            clients.shutdownNow();
+            daemon.stop();
+        }
+    }
+
+    /**
+     * Test a client with a wrong token is refused
+     */
+    @Test
+    public void testInvalidToken() throws Exception {
+        System.out.println("serve - invalid token");
+        File tokenFile = File.createTempFile("jcrypto-daemon", ".token");
+        CryptoDaemon daemon = new CryptoDaemon(0, 1, tokenFile);
+        daemon.start();
+        Thread server = new Thread(daemon::serve);
+        server.start();
+        File wrongToken = File.createTempFile("jcrypto-daemon", ".token");
+        wrongToken.deleteOnExit();
+        Files.write(wrongToken.toPath(), "00".getBytes());
+
+        try {
+            new DaemonClient(daemon.getPort(), wrongToken).close();
+            fail("Invalid token accepted");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("refused"));
+        } finally {
+            daemon.stop();
+        }
+    }
+
+    /**
+     * Test an endless line before AUTH closes the connection
+     */
+    @Test
+    public void testLineTooLong() throws Exception {
+        System.out.println("serve - line too long");
+        File tokenFile = File.createTempFile("jcrypto-daemon", ".token");
+        CryptoDaemon daemon = new CryptoDaemon(0, 1, tokenFile);
+        daemon.start();
+        Thread server = new Thread(daemon::serve);
+        server.start();
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+            socket.setSoTimeout(5000);
+            byte[] line = new byte[CryptoDaemon.MAX_LINE_LENGTH + 1];
+            Arrays.fill(line, (byte) 'a');
+            socket.getOutputStream().write(line);
+            socket.getOutputStream().flush();
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            daemon.stop();
+        }
+    }
+
+    private boolean roundTrip(int port, File tokenFile) throws IOException {
+        byte[] input = CryptoSecurityUtil.getSecureBytes(10 * 1024);
+        File plainFile = File.createTempFile("jcrypto-daemon", ".txt");
+        File encFile = new File(plainFile.getPath() + ".enc");
+        plainFile.deleteOnExit();
+        encFile.deleteOnExit();
+        Files.write(plainFile.toPath(), input);
+
+        try (DaemonClient client = new DaemonClient(port, tokenFile)) {
+            for (int i = 0; i < 2; i++) {
+                assertTrue(DaemonClient.isSuccess(client.send("ENCRYPT " + plainFile.getAbsolutePath())));
+                assertTrue(plainFile.delete());
+                assertTrue(DaemonClient.isSuccess(client.send("DECRYPT " + encFile.getAbsolutePath())));
+            }
+        }
+
+        return Arrays.areEqual(input, Files.readAllBytes(plainFile.toPath()));
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description MetricsReporterTest - Test class for MetricsReporter
+ * @package ie.peternagy.jcrypto.module.metrics
+ */
+package ie.peternagy.jcrypto.module.metrics;
+
+import ie.peternagy.jcrypto.algo.AjUnitWrapper;
+import ie.peternagy.jcrypto.module.crypto.FileCrypto;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import ie.peternagy.jcrypto.util.MetricsRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MetricsReporterTest extends AjUnitWrapper {
+
+    public MetricsReporterTest() {
+        testClassName = MetricsReporter.class.getName();
+    }
+
+    /**
+     * Test a round trip records every stage and both formats export them
+     */
+    @Test
+    public void testExport() throws IOException {
+        System.out.println("export");
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        File promFile = File.createTempFile("jcrypto-metrics", ".prom");
+        File jsonFile = File.createTempFile("jcrypto-metrics", ".json");
+        MetricsReporter promReporter = new MetricsReporter(promFile);
+        MetricsReporter jsonReporter = new MetricsReporter(jsonFile);
+        try {
+            registry.reset();
+            promReporter.start(0);
+            jsonReporter.start(0);
+            byte[] input = CryptoSecurityUtil.getSecureBytes(3 * 1024 * 1024 + 17);
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            FileCrypto.encryptStream(new ByteArrayInputStream(input), encrypted, false);
+            FileCrypto.decryptStream(new ByteArrayInputStream(encrypted.toByteArray()), new ByteArrayOutputStream());
+            promReporter.stop();
+            jsonReporter.stop();
+
+            for (String stage : new String[]{MetricsRegistry.STAGE_READ, MetricsRegistry.STAGE_KEY_DERIVATION, MetricsRegistry.STAGE_EC_WRAP,
+                MetricsRegistry.STAGE_EC_UNWRAP, MetricsRegistry.STAGE_CIPHER, MetricsRegistry.STAGE_CHECKSUM, MetricsRegistry.STAGE_WRITE}) {
+                assertTrue(stage, registry.getTimer(stage).getCount() > 0);
+            }
+            assertEquals(8, registry.getTimer(MetricsRegistry.STAGE_CIPHER).getCount());
+            assertEquals(input.length + encrypted.size(), registry.getCount(MetricsRegistry.COUNTER_BYTES_WRITTEN));
+
+            String prom = new String(Files.readAllBytes(promFile.toPath()), StandardCharsets.UTF_8);
+            System.out.print(prom);
+            assertTrue(prom.contains("# TYPE jcrypto_stage_seconds summary"));
+            assertTrue(prom.contains("jcrypto_stage_seconds_count{stage=\"cipher\"} 8"));
+            assertTrue(prom.contains("jcrypto_bytes_written_total " + (input.length + encrypted.size())));
+
+            String json = new String(Files.readAllBytes(jsonFile.toPath()), StandardCharsets.UTF_8);
+            System.out.print(json);
+            assertTrue(json.contains("\"cipher\": {\"count\": 8,"));
+            assertTrue(json.contains("\"bytes_written\": " + (input.length + encrypted.size())));
+        } finally {
+            registry.setEnabled(false);
+            registry.reset();
+            promFile.delete();
+            jsonFile.delete();
+        }
+    }
+
+    /**
+     * Test a disabled registry records nothing
+     */
+    @Test
+    public void testDisabled() {
+        System.out.println("export - disabled");
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        registry.reset();
+        FileCrypto.encryptStream(new ByteArrayInputStream(new byte[4096]), new ByteArrayOutputStream(), false);
+        assertTrue(registry.getTimers().isEmpty());
+        assertTrue(registry.getCounters().isEmpty());
+    }
+}
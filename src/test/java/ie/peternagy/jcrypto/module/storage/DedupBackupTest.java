@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description DedupBackupTest - Test class for DedupBackup
+ * @package ie.peternagy.jcrypto.module.storage
+ */
+package ie.peternagy.jcrypto.module.storage;
+
+import ie.peternagy.jcrypto.algo.AjUnitWrapper;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.bouncycastle.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DedupBackupTest extends AjUnitWrapper {
+
+    private static final int MIN_SIZE = 8 * 1024;
+    private static final int AVG_SIZE = 32 * 1024;
+    private static final int MAX_SIZE = 128 * 1024;
+
+    public DedupBackupTest() {
+        testClassName = DedupBackup.class.getName();
+    }
+
+    /**
+     * Test an edited file only uploads the chunks around the edit
+     */
+    @Test
+    public void testIncrementalBackup() throws IOException {
+        System.out.println("backupFile - incremental");
+        byte[] input = CryptoSecurityUtil.getSecureBytes(2 * 1024 * 1024);
+        File plainFile = File.createTempFile("jcrypto-dedup", ".txt");
+        plainFile.deleteOnExit();
+        Files.write(plainFile.toPath(), input);
+        LocalS3Stub s3Stub = new LocalS3Stub();
+        S3Wrapper s3Wrapper = new S3Wrapper(s3Stub, "bucket");
+
+        DedupBackup firstBackup = new DedupBackup(s3Wrapper, MIN_SIZE, AVG_SIZE, MAX_SIZE, 3);
+        firstBackup.backupFile(plainFile, "file");
+        firstBackup.printReport();
+        assertEquals(firstBackup.getChunksTotal(), firstBackup.getChunksUploaded());
+
+        //insert a few bytes in the middle, the later boundaries move with the content
+        byte[] edited = new byte[input.length + 100];
+        System.arraycopy(input, 0, edited, 0, input.length / 2);
+        System.arraycopy(input, input.length / 2, edited, input.length / 2 + 100, input.length - input.length / 2);
+        Files.write(plainFile.toPath(), edited);
+        DedupBackup secondBackup = new DedupBackup(s3Wrapper, MIN_SIZE, AVG_SIZE, MAX_SIZE, 3);
+        secondBackup.backupFile(plainFile, "file-edited");
+        secondBackup.printReport();
+        assertTrue(secondBackup.getChunksUploaded() <= 3);
+        assertTrue(secondBackup.getBytesUploaded() < edited.length / 8);
+
+        File restoredFile = File.createTempFile("jcrypto-dedup", ".restored");
+        restoredFile.deleteOnExit();
+        new DedupBackup(s3Wrapper).restoreFile("file", restoredFile);
+        assertTrue(Arrays.areEqual(Files.readAllBytes(restoredFile.toPath()), input));
+        new DedupBackup(s3Wrapper).restoreFile("file-edited", restoredFile);
+        assertTrue(Arrays.areEqual(Files.readAllBytes(restoredFile.toPath()), edited));
+    }
+
+    /**
+     * Test a tampered chunk fails the restore and removes the output
+     */
+    @Test
+    public void testTamperedChunk() throws IOException {
+        System.out.println("restoreFile - tampered chunk");
+        File plainFile = File.createTempFile("jcrypto-dedup", ".txt");
+        plainFile.deleteOnExit();
+        Files.write(plainFile.toPath(), CryptoSecurityUtil.getSecureBytes(256 * 1024));
+        LocalS3Stub s3Stub = new LocalS3Stub();
+        S3Wrapper s3Wrapper = new S3Wrapper(s3Stub, "bucket");
+        new DedupBackup(s3Wrapper, MIN_SIZE, AVG_SIZE, MAX_SIZE, 2).backupFile(plainFile, "file");
+
+        String chunkKey = s3Wrapper.listKeys(DedupBackup.CHUNK_PREFIX).iterator().next();
+        byte[] chunk = s3Stub.getObjectBytes(chunkKey);
+        chunk[chunk.length / 2] ^= 1;
+
+        File restoredFile = File.createTempFile("jcrypto-dedup", ".restored");
+        restoredFile.deleteOnExit();
+        try {
+            new DedupBackup(s3Wrapper).restoreFile("file", restoredFile);
+            fail("Tampered chunk restored");
+        } catch (IOException ex) {
+            assertFalse(restoredFile.exists());
+        }
+    }
+
+    /**
+     * Test a tampered manifest fails the restore and removes the output
+     */
+    @Test
+    public void testTamperedManifest() throws IOException {
+        System.out.println("restoreFile - tampered manifest");
+        File plainFile = File.createTempFile("jcrypto-dedup", ".txt");
+        plainFile.deleteOnExit();
+        Files.write(plainFile.toPath(), CryptoSecurityUtil.getSecureBytes(256 * 1024));
+        LocalS3Stub s3Stub = new LocalS3Stub();
+        S3Wrapper s3Wrapper = new S3Wrapper(s3Stub, "bucket");
+        new DedupBackup(s3Wrapper, MIN_SIZE, AVG_SIZE, MAX_SIZE, 2).backupFile(plainFile, "file");
+
+        byte[] manifest = s3Stub.getObjectBytes(DedupBackup.getManifestKey("file"));
+        manifest[manifest.length - 100] ^= 1;
+
+        File restoredFile = File.createTempFile("jcrypto-dedup", ".restored");
+        restoredFile.deleteOnExit();
+        try {
+            new DedupBackup(s3Wrapper).restoreFile("file", restoredFile);
+            fail("Tampered manifest restored");
+        } catch (IOException ex) {
+            assertEquals(0, restoredFile.length());
+        }
+    }
+}
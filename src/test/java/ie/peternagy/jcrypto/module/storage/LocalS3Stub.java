@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description LocalS3Stub - In memory S3 stand-in for the storage tests
+ * @package ie.peternagy.jcrypto.module.storage
+ */
+package ie.peternagy.jcrypto.module.storage;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Keeps objects and pending multipart uploads in memory, failures can be
+ * injected per part number
+ */
+public class LocalS3Stub extends AbstractAmazonS3 {
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicInteger> partFailures = new ConcurrentHashMap<>();
+    private final AtomicInteger abortedUploads = new AtomicInteger();
+    private final AtomicInteger getFailures = new AtomicInteger();
+
+    /**
+     * Fail the next uploads of a part number
+     *
+     * @param partNumber - the part to fail
+     * @param times - the number of failed attempts
+     */
+    public void failPart(int partNumber, int times) {
+        partFailures.put(partNumber, new AtomicInteger(times));
+    }
+
+    /**
+     * Fail the next ranged GETs
+     *
+     * @param times - the number of failed requests
+     */
+    public void failGets(int times) {
+        getFailures.set(times);
+    }
+
+    public void putObjectBytes(String key, byte[] data) {
+        objects.put(key, data);
+    }
+
+    public byte[] getObjectBytes(String key) {
+        return objects.get(key);
+    }
+
+    public int getPendingUploads() {
+        return uploads.size();
+    }
+
+    public int getAbortedUploads() {
+        return abortedUploads.get();
+    }
+
+    @Override
+    public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata) {
+        objects.put(key, readAll(input));
+        return new PutObjectResult();
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(getExisting(key).length);
+        return metadata;
+    }
+
+    /**
+     * Serve a range, later ranges answer faster so the reader sees them
+     * complete out of order
+     */
+    @Override
+    public S3Object getObject(GetObjectRequest request) {
+        if (getFailures.getAndDecrement() > 0) {
+            throw new AmazonClientException("Injected failure of range " + request.getRange()[0]);
+        }
+        byte[] data = getExisting(request.getKey());
+        long[] range = request.getRange();
+        int start = (int) range[0];
+        int end = (int) Math.min(data.length, range[1] + 1);
+        try {
+            Thread.sleep(Math.max(0, 20 - start / 65536));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        S3Object object = new S3Object();
+        object.setKey(request.getKey());
+        object.setObjectContent(new ByteArrayInputStream(Arrays.copyOfRange(data, start, end)));
+        return object;
+    }
+
+    @Override
+    public S3Object getObject(String bucketName, String key) {
+        S3Object object = new S3Object();
+        object.setKey(key);
+        object.setObjectContent(new ByteArrayInputStream(getExisting(key)));
+        return object;
+    }
+
+    /**
+     * List every key of the prefix in one page
+     */
+    @Override
+    public ObjectListing listObjects(ListObjectsRequest request) {
+        ObjectListing listing = new ObjectListing();
+        listing.setBucketName(request.getBucketName());
+        listing.setPrefix(request.getPrefix());
+        for (Map.Entry<String, byte[]> entry : objects.entrySet()) {
+            if (entry.getKey().startsWith(request.getPrefix())) {
+                S3ObjectSummary summary = new S3ObjectSummary();
+                summary.setKey(entry.getKey());
+                summary.setSize(entry.getValue().length);
+                listing.getObjectSummaries().add(summary);
+            }
+        }
+        return listing;
+    }
+
+    public int getObjectCount(String prefix) {
+        return (int) objects.keySet().stream().filter(key -> key.startsWith(prefix)).count();
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setUploadId(UUID.randomUUID().toString());
+        uploads.put(result.getUploadId(), new ConcurrentSkipListMap<>());
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+        AtomicInteger failures = partFailures.get(request.getPartNumber());
+        if (failures != null && failures.getAndDecrement() > 0) {
+            throw new AmazonClientException("Injected failure of part " + request.getPartNumber());
+        }
+        byte[] data = readAll(request.getInputStream());
+        if (data.length != request.getPartSize()) {
+            throw new AmazonServiceException("Part size mismatch");
+        }
+        uploads.get(request.getUploadId()).put(request.getPartNumber(), data);
+
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(Integer.toHexString(request.getPartNumber()));
+        return result;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        Map<Integer, byte[]> parts = uploads.remove(request.getUploadId());
+        ByteArrayOutputStream object = new ByteArrayOutputStream();
+        int expectedPart = 1;
+        for (PartETag partETag : request.getPartETags()) {
+            if (partETag.getPartNumber() != expectedPart++ || !parts.containsKey(partETag.getPartNumber())) {
+                throw new AmazonServiceException("Invalid part order");
+            }
+            object.write(parts.get(partETag.getPartNumber()), 0, parts.get(partETag.getPartNumber()).length);
+        }
+        objects.put(request.getKey(), object.toByteArray());
+        return new CompleteMultipartUploadResult();
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        uploads.remove(request.getUploadId());
+        abortedUploads.incrementAndGet();
+    }
+
+    private byte[] getExisting(String key) {
+        byte[] data = objects.get(key);
+        if (data == null) {
+            throw new AmazonServiceException("No such key " + key);
+        }
+        return data;
+    }
+
+    private byte[] readAll(InputStream input) {
+        try {
+            return IOUtils.toByteArray(input);
+        } catch (IOException ex) {
+            throw new AmazonClientException(ex);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description S3WrapperTest - Test class for S3Wrapper
+ * @package ie.peternagy.jcrypto.module.storage
+ */
+package ie.peternagy.jcrypto.module.storage;
+
+import ie.peternagy.jcrypto.algo.AjUnitWrapper;
+import ie.peternagy.jcrypto.module.crypto.FileCrypto;
+import ie.peternagy.jcrypto.util.CryptoSecurityUtil;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import org.bouncycastle.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class S3WrapperTest extends AjUnitWrapper {
+
+    private static final int PART_SIZE = 64 * 1024;
+
+    public S3WrapperTest() {
+        testClassName = S3Wrapper.class.getName();
+    }
+
+    /**
+     * Test the encryptor streaming into a multipart upload, with a retried part
+     */
+    @Test
+    public void testEncryptedMultipartUpload() throws IOException {
+        System.out.println("openUploadStream - encrypted multipart");
+        byte[] input = CryptoSecurityUtil.getSecureBytes(5 * PART_SIZE + 123);
+        File plainFile = File.createTempFile("jcrypto-s3", ".txt");
+        plainFile.deleteOnExit();
+        Files.write(plainFile.toPath(), input);
+        LocalS3Stub s3Stub = new LocalS3Stub();
+        s3Stub.failPart(2, 1);
+        S3Wrapper s3Wrapper = new S3Wrapper(s3Stub, "bucket", PART_SIZE, 3);
+
+        try (OutputStream out = s3Wrapper.openUploadStream("file.enc")) {
+            new FileCrypto(plainFile.getPath()).encryptTo(out);
+        }
+        s3Wrapper.printReport();
+
+        byte[] object = s3Stub.getObjectBytes("file.enc");
+        assertNotNull(object);
+        assertEquals(object.length, s3Wrapper.getBytesUploaded());
+        assertEquals((object.length + PART_SIZE - 1) / PART_SIZE, s3Wrapper.getPartsUploaded());
+        assertEquals(1, s3Wrapper.getPartRetries());
+        assertEquals(0, s3Stub.getPendingUploads());
+
+        File encFile = new File(plainFile.getPath() + ".enc");
+        encFile.deleteOnExit();
+        Files.write(encFile.toPath(), object);
+        plainFile.delete();
+        new FileCrypto(encFile.getPath()).cryptFile();
+        assertTrue(Arrays.areEqual(Files.readAllBytes(plainFile.toPath()), input));
+    }
+
+    /**
+     * Test small objects skip the multipart upload
+     */
+    @Test
+    public void testSinglePartUpload() throws IOException {
+        System.out.println("openUploadStream - single part");
+        byte[] input = CryptoSecurityUtil.getSecureBytes(1000);
+        LocalS3Stub s3Stub = new LocalS3Stub();
+        S3Wrapper s3Wrapper = new S3Wrapper(s3Stub, "bucket", PART_SIZE, 3);
+
+        try (OutputStream out = s3Wrapper.openUploadStream("small")) {
+            out.write(input);
+        }
+
+        assertTrue(Arrays.areEqual(s3Stub.getObjectBytes("small"), input));
+        assertEquals(1, s3Wrapper.getPartsUploaded());
+    }
+
+    /**
+     * Test the part size doubles every PARTS_PER_SIZE_STEP parts
+     */
+    @Test
+    public void testGrowingPartSize() throws IOException {
+        System.out.println("openUploadStream - growing part size");
+        byte[] input = CryptoSecurityUtil.getSecureBytes(S3Wrapper.PARTS_PER_SIZE_STEP * 16 + 500 * 32);
+        LocalS3Stub s3Stub = new LocalS3Stub();
+        S3Wrapper s3Wrapper = new S3Wrapper(s3Stub, "bucket", 16, 3);
+
+        try (OutputStream out = s3Wrapper.openUploadStream("growing")) {
+            out.write(input);
+        }
+
+        assertTrue(Arrays.areEqual(s3Stub.getObjectBytes("growing"), input));
+        assertEquals(S3Wrapper.PARTS_PER_SIZE_STEP + 500, s3Wrapper.getPartsUploaded());
+    }
+
+    /**
+     * Test an upload needing more than MAX_PART_COUNT parts fails before the
+     * extra part and is aborted
+     */
+    @Test
+    public void testTooManyParts() {
+        System.out.println("openUploadStream - part limit");
+        //1 byte parts doubling every step, the first 10000 parts hold 1023 * PARTS_PER_SIZE_STEP bytes
+        for (int extra : new int[]{1024, 1}) {
+            LocalS3Stub s3Stub = new LocalS3Stub();
+            S3Wrapper s3Wrapper = new S3Wrapper(s3Stub, "bucket", 1, 3);
+            byte[] input = new byte[1023 * S3Wrapper.PARTS_PER_SIZE_STEP + extra];
+            try {
+                try (OutputStream out = s3Wrapper.openUploadStream("huge")) {
+                    out.write(input);
+                }
+                fail("Upload over the part limit accepted");
+            } catch (IOException ex) {
+                assertTrue(ex.getMessage().contains("exceeds the " + S3Wrapper.MAX_PART_COUNT + " parts"));
+            }
+            assertNull(s3Stub.getObjectBytes("huge"));
+            assertEquals(0, s3Stub.getPendingUploads());
+            assertEquals(1, s3Stub.getAbortedUploads());
+            assertEquals(S3Wrapper.MAX_PART_COUNT, s3Wrapper.getPartsUploaded());
+        }
+    }
+
+    /**
+     * Test a part failing beyond the retries aborts the upload
+     */
+    @Test
+    public void testFailedUploadIsAborted() {
+        System.out.println("openUploadStream - failed part");
+        LocalS3Stub s3Stub = new LocalS3Stub();
+        s3Stub.failPart(1, Integer.MAX_VALUE);
+        S3Wrapper s3Wrapper = new S3Wrapper(s3Stub, "bucket", PART_SIZE, 2);
+        IOException ex = null;
+
+        try (OutputStream out = s3Wrapper.openUploadStream("failed")) {
+            out.write(CryptoSecurityUtil.getSecureBytes(3 * PART_SIZE));
+        } catch (IOException e) {
+            ex = e;
+        }
+
+        assertNotNull(ex);
+        assertNull(s3Stub.getObjectBytes("failed"));
+        assertEquals(1, s3Stub.getAbortedUploads());
+    }
+
+    /**
+     * Test a writer failing mid-stream keeps the stored object, for multipart
+     * and single part uploads and through upload()
+     */
+    @Test
+    public void testAbortedUploadKeepsObject() throws IOException {
+        System.out.println("openUploadStream - aborted");
+        byte[] stored = CryptoSecurityUtil.getSecureBytes(1000);
+        LocalS3Stub s3Stub = new LocalS3Stub();
+        S3Wrapper s3Wrapper = new S3Wrapper(s3Stub, "bucket", PART_SIZE, 2);
+        try (OutputStream out = s3Wrapper.openUploadStream("file.enc")) {
+            out.write(stored);
+        }
+
+        for (int length : new int[]{3 * PART_SIZE + 5, 100}) {
+            try (S3Wrapper.MultipartUploadStream out = s3Wrapper.openUploadStream("file.enc")) {
+                out.write(CryptoSecurityUtil.getSecureBytes(length));
+                out.abort();
+            }
+            assertTrue(Arrays.areEqual(s3Stub.getObjectBytes("file.enc"), stored));
+        }
+        try {
+            s3Wrapper.upload("file.enc", out -> {
+                out.write(CryptoSecurityUtil.getSecureBytes(3 * PART_SIZE + 5));
+                throw new RuntimeException("Writer failed");
+            });
+            fail("Writer failure not reported");
+        } catch (RuntimeException ex) {
+            assertEquals("Writer failed", ex.getMessage());
+        }
+        assertTrue(Arrays.areEqual(s3Stub.getObjectBytes("file.enc"), stored));
+        assertEquals(2, s3Stub.getAbortedUploads());
+        assertEquals(0, s3Stub.getPendingUploads());
+    }
+
+    /**
+     * Test the parallel ranged download feeding the decryption, with a retried
+     * range
+     */
+    @Test
+    public void testRestoreDownload() throws IOException {
+        System.out.println("openDownloadStream - restore");
+        byte[] input = CryptoSecurityUtil.getSecureBytes(7 * PART_SIZE + 77);
+        File plainFile = File.createTempFile("jcrypto-s3", ".txt");
+        plainFile.deleteOnExit();
+        Files.write(plainFile.toPath(), input);
+        LocalS3Stub s3Stub = new LocalS3Stub();
+        S3Wrapper s3Wrapper = new S3Wrapper(s3Stub, "bucket", PART_SIZE, 3);
+        try (OutputStream out = s3Wrapper.openUploadStream("file.enc")) {
+            new FileCrypto(plainFile.getPath()).encryptTo(out);
+        }
+
+        File restoredFile = File.createTempFile("jcrypto-s3", ".restored");
+        restoredFile.deleteOnExit();
+        s3Stub.failGets(1);
+        try (InputStream in = s3Wrapper.openDownloadStream("file.enc")) {
+            FileCrypto.decryptToFile(in, restoredFile);
+        }
+        s3Wrapper.printReport();
+
+        assertTrue(Arrays.areEqual(Files.readAllBytes(restoredFile.toPath()), input));
+        assertEquals(s3Stub.getObjectBytes("file.enc").length, s3Wrapper.getBytesDownloaded());
+        assertEquals(1, s3Wrapper.getPartRetries());
+    }
+
+    /**
+     * Test a corrupted object is not restored
+     */
+    @Test
+    public void testRestoreCorrupted() throws IOException {
+        System.out.println("openDownloadStream - corrupted");
+        LocalS3Stub s3Stub = new LocalS3Stub();
+        S3Wrapper s3Wrapper = new S3Wrapper(s3Stub, "bucket", PART_SIZE, 2);
+        try (OutputStream out = s3Wrapper.openUploadStream("file.enc")) {
+            out.write(CryptoSecurityUtil.getSecureBytes(3 * PART_SIZE));
+        }
+
+        File restoredFile = File.createTempFile("jcrypto-s3", ".restored");
+        RuntimeException ex = null;
+        try (InputStream in = s3Wrapper.openDownloadStream("file.enc")) {
+            FileCrypto.decryptToFile(in, restoredFile);
+        } catch (RuntimeException e) {
+            ex = e;
+        }
+
+        assertNotNull(ex);
+        assertFalse(restoredFile.exists());
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description ByteBufferPoolTest - Test class for ByteBufferPool
+ * @package ie.peternagy.jcrypto.util
+ */
+package ie.peternagy.jcrypto.util;
+
+import ie.peternagy.jcrypto.algo.AjUnitWrapper;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest extends AjUnitWrapper {
+
+    public ByteBufferPoolTest() {
+        testClassName = ByteBufferPool.class.getName();
+    }
+
+    /**
+     * Test of release, a reused buffer holds no bytes of its last user
+     */
+    @Test
+    public void testReleaseWipesBuffer() {
+        System.out.println("release");
+        ByteBufferPool pool = new ByteBufferPool(20000, 2);
+        ByteBuffer buffer = pool.acquire();
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0x5A);
+        }
+        buffer.flip();
+        pool.release(buffer);
+
+        ByteBuffer reused = pool.acquire();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(20000, reused.limit());
+        while (reused.hasRemaining()) {
+            assertEquals(0, reused.get());
+        }
+    }
+}
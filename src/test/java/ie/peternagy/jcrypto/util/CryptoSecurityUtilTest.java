@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2016 Peter Nagy
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * ======================================================================
+ *
+ * @author Peter Nagy - peternagy.ie
+ * @since August 2016
+ * @version 0.1
+ * @description CryptoSecurityUtilTest - Test class for CryptoSecurityUtil
+ * @package ie.peternagy.jcrypto.util
+ */
+package ie.peternagy.jcrypto.util;
+
+import ie.peternagy.jcrypto.algo.AjUnitWrapper;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.codec.binary.Hex;
+import org.bouncycastle.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CryptoSecurityUtilTest extends AjUnitWrapper {
+
+    private static final int THREADS = 8;
+    private static final int CALLS_PER_THREAD = 1000;
+
+    public CryptoSecurityUtilTest() {
+        testClassName = CryptoSecurityUtil.class.getName();
+    }
+
+    /**
+     * Test of getSecureBytes, across buffer refills and direct requests
+     */
+    @Test
+    public void testGetSecureBytes() {
+        System.out.println("getSecureBytes");
+        for (int length : new int[]{0, 16, 4000, 4096, 100000}) {
+            byte[] first = CryptoSecurityUtil.getSecureBytes(length);
+            byte[] second = CryptoSecurityUtil.getSecureBytes(length);
+
+            assertEquals(length, first.length);
+            assertTrue(length == 0 || !Arrays.areEqual(first, second));
+        }
+    }
+
+    /**
+     * Test of getRandomIntInRange
+     */
+    @Test
+    public void testGetRandomIntInRange() {
+        System.out.println("getRandomIntInRange");
+        for (int i = 0; i < 1000; i++) {
+            int value = CryptoSecurityUtil.getRandomIntInRange(10, 20);
+            assertTrue(value >= 10 && value < 20);
+        }
+    }
+
+    /**
+     * Test threads racing on first use share one registered provider and
+     * never draw the same random bytes
+     */
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        System.out.println("getBouncyCastleProvider/getSecureBytes - concurrent");
+        Set<String> samples = ConcurrentHashMap.newKeySet();
+        CountDownLatch startGate = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Provider>> providers = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                providers.add(threads.submit(() -> {
+                    startGate.await();
+                    Provider provider = CryptoSecurityUtil.getBouncyCastleProvider();
+                    for (int j = 0; j < CALLS_PER_THREAD; j++) {
+                        samples.add(Hex.encodeHexString(CryptoSecurityUtil.getSecureBytes(16)));
+                    }
+                    return provider;
+                }));
+            }
+            startGate.countDown();
+            for (Future<Provider> provider : providers) {
+                assertNotNull(provider.get());
+                assertSame(Security.getProvider(provider.get().getName()), provider.get());
+                assertSame(CryptoSecurityUtil.getBouncyCastleProvider(), provider.get());
+            }
+            assertEquals(THREADS * CALLS_PER_THREAD, samples.size());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+}